@@ -0,0 +1,14 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+/**
+ * A deterministic automaton over characters which can be run by creating
+ * simulators for it. Each simulator is independent of the others.
+ * 
+ * @author Michael
+ */
+public interface CharAutomaton<TState> {
+	public CharSimulator<TState> newSimulator();
+}
@@ -0,0 +1,211 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Utils;
+
+/**
+ * Maps every character to an equivalence class id using a two-level table:
+ * the high byte of a character selects a block and the low byte indexes into
+ * it. Identical blocks are shared, so since lexer alphabets tend to
+ * distinguish only a handful of characters outside of ASCII, most of the 256
+ * blocks are the same array and the whole map is small. Class 0 is the class
+ * of all characters which aren't in any of the sets the map was built from.
+ * 
+ * @author Michael
+ */
+public class CharClassMap {
+	private static final int BLOCK_BITS = 8, BLOCK_SIZE = 1 << BLOCK_BITS,
+			BLOCK_MASK = BLOCK_SIZE - 1;
+
+	private final char[][] blocks;
+	private final int classCount;
+
+	private CharClassMap(char[][] blocks, int classCount) {
+		this.blocks = blocks;
+		this.classCount = classCount;
+	}
+
+	/**
+	 * Creates a map which places the characters of the i-th set in class i +
+	 * 1. The sets must not overlap.
+	 */
+	public static CharClassMap fromPartition(
+			List<? extends Collection<Character>> classes) {
+		Utils.check(classes.size() < Character.MAX_VALUE, "Too many classes!");
+
+		char[] flat = new char[Character.MAX_VALUE + 1];
+		for (int i = 0; i < classes.size(); i++) {
+			char classId = (char) (i + 1);
+			Collection<Character> charClass = classes.get(i);
+			if (charClass instanceof CharSet) {
+				CharSet charSet = (CharSet) charClass;
+				for (int r = 0; r < charSet.rangeCount(); r++) {
+					Arrays.fill(flat, charSet.rangeMin(r),
+							charSet.rangeMax(r) + 1, classId);
+				}
+			} else if (charClass instanceof Characters.Range) {
+				Characters.Range range = (Characters.Range) charClass;
+				for (int ch = range.min(); ch <= range.max(); ch++) {
+					flat[ch] = classId;
+				}
+			} else {
+				for (char ch : charClass) {
+					flat[ch] = classId;
+				}
+			}
+		}
+
+		return fromFlatTable(flat, classes.size() + 1);
+	}
+
+	/**
+	 * Creates a map from a table holding the class of every character. The
+	 * blocks are compared in place in the table, through an open-addressing
+	 * table of the first block with each distinct content, so only distinct
+	 * blocks are copied
+	 */
+	static CharClassMap fromFlatTable(char[] flat, int classCount) {
+		Utils.check(flat.length == Character.MAX_VALUE + 1);
+
+		char[][] blocks = new char[flat.length >>> BLOCK_BITS][];
+		int[] slots = new int[2 * blocks.length];
+		Arrays.fill(slots, -1);
+		int mask = slots.length - 1;
+		for (int i = 0; i < blocks.length; i++) {
+			int slot = blockHash(flat, i) & mask;
+			while (slots[slot] != -1 && !blocksEqual(flat, slots[slot], i)) {
+				slot = (slot + 1) & mask;
+			}
+			if (slots[slot] == -1) {
+				slots[slot] = i;
+				blocks[i] = Arrays.copyOfRange(flat, i << BLOCK_BITS,
+						(i + 1) << BLOCK_BITS);
+			} else {
+				blocks[i] = blocks[slots[slot]];
+			}
+		}
+
+		return new CharClassMap(blocks, classCount);
+	}
+
+	/**
+	 * The hash of the i-th block of the flat table
+	 */
+	private static int blockHash(char[] flat, int i) {
+		int h = 0;
+		for (int ch = i << BLOCK_BITS; ch < (i + 1) << BLOCK_BITS; ch++) {
+			h = 31 * h + flat[ch];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Are blocks a and b of the flat table the same?
+	 */
+	private static boolean blocksEqual(char[] flat, int a, int b) {
+		for (int offset = 0; offset < BLOCK_SIZE; offset++) {
+			if (flat[(a << BLOCK_BITS) + offset] != flat[(b << BLOCK_BITS)
+					+ offset]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a new map where each class c is replaced by mapping[c]. The
+	 * mapping must map class 0 to class 0.
+	 */
+	public CharClassMap remap(int[] mapping, int newClassCount) {
+		Utils.check(mapping.length == this.classCount && mapping[0] == 0);
+
+		char[] flat = new char[Character.MAX_VALUE + 1];
+		for (int ch = 0; ch < flat.length; ch++) {
+			flat[ch] = (char) mapping[this.classOf((char) ch)];
+		}
+
+		return fromFlatTable(flat, newClassCount);
+	}
+
+	public int classOf(char ch) {
+		return this.blocks[ch >>> BLOCK_BITS][ch & BLOCK_MASK];
+	}
+
+	/**
+	 * The number of classes, including class 0
+	 */
+	public int classCount() {
+		return this.classCount;
+	}
+
+	/**
+	 * The number of distinct blocks backing the map
+	 */
+	public int blockCount() {
+		Map<char[], Boolean> distinct = new IdentityHashMap<char[], Boolean>();
+		for (char[] block : this.blocks) {
+			distinct.put(block, true);
+		}
+		return distinct.size();
+	}
+
+	/**
+	 * Writes the map as the class count, the distinct blocks and then the
+	 * index of each block among the distinct blocks
+	 */
+	void write(DataOutput out) throws IOException {
+		Map<char[], Integer> blockIndices = new IdentityHashMap<char[], Integer>();
+		List<char[]> distinctBlocks = new ArrayList<char[]>();
+		for (char[] block : this.blocks) {
+			if (!blockIndices.containsKey(block)) {
+				blockIndices.put(block, distinctBlocks.size());
+				distinctBlocks.add(block);
+			}
+		}
+
+		out.writeInt(this.classCount);
+		out.writeInt(distinctBlocks.size());
+		for (char[] block : distinctBlocks) {
+			for (char classId : block) {
+				out.writeChar(classId);
+			}
+		}
+		for (char[] block : this.blocks) {
+			out.writeChar(blockIndices.get(block));
+		}
+	}
+
+	/**
+	 * Reads a map written by write(), advancing the buffer past it
+	 */
+	static CharClassMap read(ByteBuffer buffer) {
+		int classCount = buffer.getInt();
+		char[][] distinctBlocks = new char[buffer.getInt()][BLOCK_SIZE];
+		for (char[] block : distinctBlocks) {
+			buffer.asCharBuffer().get(block);
+			buffer.position(buffer.position() + 2 * BLOCK_SIZE);
+			for (char classId : block) {
+				Utils.check(classId < classCount, "Bad class!");
+			}
+		}
+
+		char[][] blocks = new char[(Character.MAX_VALUE + 1) >>> BLOCK_BITS][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = distinctBlocks[buffer.getChar()];
+		}
+
+		return new CharClassMap(blocks, classCount);
+	}
+}
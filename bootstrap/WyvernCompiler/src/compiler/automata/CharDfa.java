@@ -0,0 +1,273 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.Utils;
+
+/**
+ * A compiled, table-driven form of a DFA over characters. States are numbered
+ * from 0 (the start state), and the characters are grouped into classes such
+ * that all characters in a class transition identically from every state.
+ * Class 0 holds all characters on which no state has a transition. The
+ * transition table is then just a states x classes array of target states, with
+ * -1 representing the error state.
+ * 
+ * @author Michael
+ */
+public class CharDfa<TState> implements CharAutomaton<TState> {
+	public static final int ERROR_STATE = -1;
+
+	private final CharClassMap classMap;
+	private final int classCount;
+	private final int[] transitions;
+	private final int[] acceptValues;
+	private final List<TState> values;
+
+	private CharDfa(CharClassMap classMap, int[] transitions,
+			int[] acceptValues, List<TState> values) {
+		this.classMap = classMap;
+		this.classCount = classMap.classCount();
+		this.transitions = transitions;
+		this.acceptValues = acceptValues;
+		this.values = values;
+	}
+
+	/**
+	 * Compiles the given DFA, which must not have any epsilon edges or edges
+	 * from one state whose transition sets overlap.
+	 */
+	public static <T> CharDfa<T> compile(FiniteAutomaton<T, Character> dfa) {
+		List<State<T>> states = new ArrayList<State<T>>(dfa.states());
+		Map<State<T>, Integer> stateIndices = new HashMap<State<T>, Integer>();
+		for (int i = 0; i < states.size(); i++) {
+			stateIndices.put(states.get(i), i);
+		}
+
+		// the character classes are the partition of all edge transition sets
+		Set<Collection<Character>> transitionSets = new HashSet<Collection<Character>>();
+		for (Edge<T, Character> edge : dfa.edges()) {
+			Utils.check(edge.transitionOnSet() != null,
+					"Cannot compile an automaton with epsilon edges!");
+			transitionSets.add(edge.transitionOnSet());
+		}
+		List<Collection<Character>> classes = new ArrayList<Collection<Character>>(
+				Characters.setOperations().partitionedUnion(transitionSets));
+		int classCount = classes.size() + 1;
+
+		// fill in the transition table
+		int[] transitions = new int[states.size() * classCount];
+		Arrays.fill(transitions, ERROR_STATE);
+		for (int c = 1; c < classCount; c++) {
+			char representative = Characters.setOperations().min(
+					classes.get(c - 1));
+			for (int s = 0; s < states.size(); s++) {
+				for (Edge<T, Character> edge : dfa.edgesFrom(states.get(s))) {
+					if (edge.transitionOnSet().contains(representative)) {
+						transitions[s * classCount + c] = stateIndices.get(edge
+								.to());
+						break;
+					}
+				}
+			}
+		}
+
+		// merge classes which transition identically from every state. Class 0
+		// maps to the (all error) column of any class which never transitions.
+		// The columns are compared in place through an open-addressing table
+		// of the merged classes, each of which is represented by its first
+		// class
+		int[] classMapping = new int[classCount], firstClasses = new int[classCount];
+		int[] slots = new int[4 * Integer.highestOneBit(classCount)];
+		Arrays.fill(slots, -1);
+		int mask = slots.length - 1, mergedClassCount = 0;
+		for (int c = 0; c < classCount; c++) {
+			int slot = columnHash(transitions, classCount, c) & mask;
+			while (slots[slot] != -1
+					&& !columnsEqual(transitions, classCount,
+							firstClasses[slots[slot]], c)) {
+				slot = (slot + 1) & mask;
+			}
+			if (slots[slot] == -1) {
+				firstClasses[mergedClassCount] = c;
+				slots[slot] = mergedClassCount++;
+			}
+			classMapping[c] = slots[slot];
+		}
+		int[] mergedTransitions = new int[states.size() * mergedClassCount];
+		for (int c = 0; c < classCount; c++) {
+			for (int s = 0; s < states.size(); s++) {
+				mergedTransitions[s * mergedClassCount + classMapping[c]] = transitions[s
+						* classCount + c];
+			}
+		}
+		CharClassMap classMap = CharClassMap.fromPartition(classes).remap(
+				classMapping, mergedClassCount);
+
+		// record the values
+		List<T> values = new ArrayList<T>();
+		Map<T, Integer> valueIndices = new HashMap<T, Integer>();
+		int[] acceptValues = new int[states.size()];
+		for (int s = 0; s < states.size(); s++) {
+			T value = states.get(s).value();
+			if (value == null) {
+				acceptValues[s] = -1;
+			} else {
+				Integer index = valueIndices.get(value);
+				if (index == null) {
+					index = values.size();
+					values.add(value);
+					valueIndices.put(value, index);
+				}
+				acceptValues[s] = index;
+			}
+		}
+
+		return new CharDfa<T>(classMap, mergedTransitions, acceptValues,
+				Collections.unmodifiableList(values));
+	}
+
+	/**
+	 * The hash of the class's column: its transitions from every state
+	 */
+	private static int columnHash(int[] transitions, int classCount,
+			int charClass) {
+		int h = 0;
+		for (int i = charClass; i < transitions.length; i += classCount) {
+			h = 31 * h + transitions[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Do classes a and b transition identically from every state?
+	 */
+	private static boolean columnsEqual(int[] transitions, int classCount,
+			int a, int b) {
+		for (int i = 0; i < transitions.length; i += classCount) {
+			if (transitions[i + a] != transitions[i + b]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int startState() {
+		return 0;
+	}
+
+	public int stateCount() {
+		return this.acceptValues.length;
+	}
+
+	public int classCount() {
+		return this.classCount;
+	}
+
+	/**
+	 * Returns the class of the given character
+	 */
+	public int classOf(char ch) {
+		return this.classMap.classOf(ch);
+	}
+
+	public CharClassMap classMap() {
+		return this.classMap;
+	}
+
+	/**
+	 * Returns the state reached from the given state on the given character,
+	 * or ERROR_STATE
+	 */
+	public int transition(int state, char ch) {
+		return this.transitions[state * this.classCount
+				+ this.classMap.classOf(ch)];
+	}
+
+	/**
+	 * Returns the value of the given state, or null if it does not accept
+	 */
+	public TState value(int state) {
+		int valueIndex = this.acceptValues[state];
+		return valueIndex < 0 ? null : this.values.get(valueIndex);
+	}
+
+	public boolean isAccepting(int state) {
+		return this.acceptValues[state] >= 0;
+	}
+
+	/**
+	 * Returns an equivalent minimized DFA over the UTF-8 encoding of the
+	 * input, where each byte is given as a char from 0 to 255 (see Utf8)
+	 */
+	public CharDfa<TState> toUtf8() {
+		return compile(Utf8.encode(this).minimize());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.CharAutomaton#newSimulator()
+	 */
+	@Override
+	public CharSimulator<TState> newSimulator() {
+		return new CharDfaSimulator<TState>(this);
+	}
+
+	/**
+	 * Writes the DFA's tables in the format read by read(). Each state's value
+	 * is written as its index in valueIndices, or -1 if the state does not
+	 * accept.
+	 */
+	public void write(DataOutput out, Map<TState, Integer> valueIndices)
+			throws IOException {
+		out.writeInt(this.stateCount());
+		this.classMap.write(out);
+		for (int transition : this.transitions) {
+			out.writeInt(transition);
+		}
+		for (int valueIndex : this.acceptValues) {
+			out.writeInt(valueIndex < 0 ? -1 : valueIndices.get(this.values
+					.get(valueIndex)));
+		}
+	}
+
+	/**
+	 * Reads a DFA written by write(), advancing the buffer past it. The
+	 * values must be indexed as they were when the DFA was written.
+	 */
+	public static <T> CharDfa<T> read(ByteBuffer buffer, List<T> values) {
+		int stateCount = buffer.getInt();
+		CharClassMap classMap = CharClassMap.read(buffer);
+		int[] transitions = new int[stateCount * classMap.classCount()];
+		buffer.asIntBuffer().get(transitions);
+		int[] acceptValues = new int[stateCount];
+		buffer.position(buffer.position() + 4 * transitions.length);
+		buffer.asIntBuffer().get(acceptValues);
+		buffer.position(buffer.position() + 4 * acceptValues.length);
+
+		for (int transition : transitions) {
+			Utils.check(transition >= ERROR_STATE && transition < stateCount,
+					"Bad transition!");
+		}
+		for (int valueIndex : acceptValues) {
+			Utils.check(valueIndex >= -1 && valueIndex < values.size(),
+					"Bad value!");
+		}
+
+		return new CharDfa<T>(classMap, transitions, acceptValues, values);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import compiler.Utils;
+
+/**
+ * Simulates a compiled CharDfa. Unlike DfaSimulator, each step is just a
+ * class lookup and a table lookup, and consume(char) avoids boxing.
+ * 
+ * @author Michael
+ */
+public class CharDfaSimulator<TState> implements CharSimulator<TState> {
+	private final CharDfa<TState> dfa;
+	private int currentState;
+
+	public CharDfaSimulator(CharDfa<TState> dfa) {
+		this.dfa = dfa;
+		this.currentState = dfa.startState();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.CharSimulator#consume(char)
+	 */
+	@Override
+	public SimulatorState consume(char input) {
+		if (this.currentState != CharDfa.ERROR_STATE) {
+			this.currentState = this.dfa.transition(this.currentState, input);
+			if (this.currentState != CharDfa.ERROR_STATE) {
+				return this.dfa.isAccepting(this.currentState) ? SimulatorState.Accept
+						: SimulatorState.Reject;
+			}
+		}
+		return SimulatorState.Error;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.CharSimulator#stateId()
+	 */
+	@Override
+	public long stateId() {
+		return this.currentState;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.Simulator#consume(java.lang.Object)
+	 */
+	@Override
+	public SimulatorState consume(Character input) {
+		return this.consume(input.charValue());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.Simulator#simulatorState()
+	 */
+	@Override
+	public SimulatorState simulatorState() {
+		return this.currentState != CharDfa.ERROR_STATE ? (this.dfa
+				.isAccepting(this.currentState) ? SimulatorState.Accept
+				: SimulatorState.Reject) : SimulatorState.Error;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.Simulator#currentValue()
+	 */
+	@Override
+	public TState currentValue() {
+		Utils.check(this.currentState != CharDfa.ERROR_STATE,
+				"The DFA is in an error state!");
+		return this.dfa.value(this.currentState);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.Simulator#reset()
+	 */
+	@Override
+	public SimulatorState reset() {
+		this.currentState = this.dfa.startState();
+		return this.simulatorState();
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import compiler.Utils;
+
+/**
+ * An immutable set of characters stored as a sorted array of disjoint,
+ * non-adjacent ranges. Membership is a binary search over the ranges, and
+ * union, intersection and complement are single merges over the ranges, so
+ * none of these operations depend on the number of characters in the set.
+ * 
+ * @author Michael
+ */
+public final class CharSet extends AbstractSet<Character> {
+	private static final CharSet EMPTY = new CharSet(new char[0]),
+			ALL = new CharSet(new char[] { Character.MIN_VALUE,
+					Character.MAX_VALUE });
+
+	/**
+	 * The ranges as [min0, max0, min1, max1, ...]
+	 */
+	private final char[] ranges;
+	private final int size;
+
+	private CharSet(char[] ranges) {
+		this.ranges = ranges;
+		int size = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			size += ranges[i + 1] - ranges[i] + 1;
+		}
+		this.size = size;
+	}
+
+	public static CharSet empty() {
+		return EMPTY;
+	}
+
+	public static CharSet all() {
+		return ALL;
+	}
+
+	public static CharSet range(char min, char max) {
+		Utils.check(min <= max);
+		return new CharSet(new char[] { min, max });
+	}
+
+	public static CharSet of(char... chars) {
+		char[] sorted = chars.clone();
+		Arrays.sort(sorted);
+		return fromSorted(sorted, sorted.length);
+	}
+
+	/**
+	 * Returns a CharSet with the same characters as the given collection
+	 */
+	public static CharSet copyOf(Collection<Character> chars) {
+		if (chars instanceof CharSet) {
+			return (CharSet) chars;
+		}
+		if (chars instanceof Characters.Range) {
+			Characters.Range range = (Characters.Range) chars;
+			return range(range.min(), range.max());
+		}
+
+		char[] sorted = new char[chars.size()];
+		int i = 0;
+		for (char ch : chars) {
+			sorted[i++] = ch;
+		}
+		Arrays.sort(sorted);
+		return fromSorted(sorted, sorted.length);
+	}
+
+	/**
+	 * Creates a set from sorted characters, which may contain duplicates
+	 */
+	private static CharSet fromSorted(char[] sorted, int length) {
+		Builder builder = new Builder();
+		for (int i = 0; i < length; i++) {
+			builder.add(sorted[i], sorted[i]);
+		}
+		return builder.toCharSet();
+	}
+
+	/**
+	 * The number of ranges in the set
+	 */
+	public int rangeCount() {
+		return this.ranges.length >>> 1;
+	}
+
+	public char rangeMin(int index) {
+		return this.ranges[2 * index];
+	}
+
+	public char rangeMax(int index) {
+		return this.ranges[2 * index + 1];
+	}
+
+	public char min() {
+		Utils.check(!this.isEmpty(), "The set is empty!");
+		return this.ranges[0];
+	}
+
+	public char max() {
+		Utils.check(!this.isEmpty(), "The set is empty!");
+		return this.ranges[this.ranges.length - 1];
+	}
+
+	public boolean contains(char ch) {
+		int index = this.rangeIndex(ch);
+		return index >= 0 && ch <= this.ranges[2 * index + 1];
+	}
+
+	/**
+	 * Returns true if all of [min, max] is in the set
+	 */
+	public boolean containsRange(char min, char max) {
+		int index = this.rangeIndex(min);
+		return index >= 0 && max <= this.ranges[2 * index + 1];
+	}
+
+	/**
+	 * Returns the index of the last range starting at or before ch, or -1
+	 */
+	private int rangeIndex(char ch) {
+		int low = 0, high = this.rangeCount() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.ranges[2 * middle] <= ch) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	public CharSet union(CharSet that) {
+		Builder builder = new Builder();
+		int i = 0, j = 0;
+		while (i < this.ranges.length || j < that.ranges.length) {
+			// take whichever range starts first
+			if (j == that.ranges.length
+					|| (i < this.ranges.length && this.ranges[i] <= that.ranges[j])) {
+				builder.add(this.ranges[i], this.ranges[i + 1]);
+				i += 2;
+			} else {
+				builder.add(that.ranges[j], that.ranges[j + 1]);
+				j += 2;
+			}
+		}
+		return builder.toCharSet();
+	}
+
+	public CharSet intersect(CharSet that) {
+		Builder builder = new Builder();
+		int i = 0, j = 0;
+		while (i < this.ranges.length && j < that.ranges.length) {
+			char min = (char) Math.max(this.ranges[i], that.ranges[j]), max = (char) Math
+					.min(this.ranges[i + 1], that.ranges[j + 1]);
+			if (min <= max) {
+				builder.add(min, max);
+			}
+			// advance past whichever range ends first
+			if (this.ranges[i + 1] < that.ranges[j + 1]) {
+				i += 2;
+			} else {
+				j += 2;
+			}
+		}
+		return builder.toCharSet();
+	}
+
+	public CharSet complement() {
+		Builder builder = new Builder();
+		int next = Character.MIN_VALUE;
+		for (int i = 0; i < this.ranges.length; i += 2) {
+			if (next < this.ranges[i]) {
+				builder.add((char) next, (char) (this.ranges[i] - 1));
+			}
+			next = this.ranges[i + 1] + 1;
+		}
+		if (next <= Character.MAX_VALUE) {
+			builder.add((char) next, Character.MAX_VALUE);
+		}
+		return builder.toCharSet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#contains(java.lang.Object)
+	 */
+	@Override
+	public boolean contains(Object obj) {
+		return obj instanceof Character && this.contains(((Character) obj).charValue());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#containsAll(java.util.Collection)
+	 */
+	@Override
+	public boolean containsAll(Collection<?> collection) {
+		if (collection instanceof CharSet) {
+			CharSet that = (CharSet) collection;
+			for (int i = 0; i < that.ranges.length; i += 2) {
+				if (!this.containsRange(that.ranges[i], that.ranges[i + 1])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (collection instanceof Characters.Range) {
+			Characters.Range range = (Characters.Range) collection;
+			return this.containsRange(range.min(), range.max());
+		}
+		return super.containsAll(collection);
+	}
+
+	@Override
+	public Iterator<Character> iterator() {
+		return new Iterator<Character>() {
+			private int rangeIndex = 0, next = CharSet.this.ranges.length > 0 ? CharSet.this.ranges[0]
+					: 0;
+
+			@Override
+			public boolean hasNext() {
+				return 2 * this.rangeIndex < CharSet.this.ranges.length;
+			}
+
+			@Override
+			public Character next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				char ret = (char) this.next;
+				if (ret == CharSet.this.ranges[2 * this.rangeIndex + 1]) {
+					this.rangeIndex++;
+					if (this.hasNext()) {
+						this.next = CharSet.this.ranges[2 * this.rangeIndex];
+					}
+				} else {
+					this.next++;
+				}
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof CharSet) {
+			return Arrays.equals(((CharSet) obj).ranges, this.ranges);
+		}
+		return super.equals(obj);
+	}
+
+	/**
+	 * As required by Set, the sum of the characters' hash codes (which are just
+	 * their values), but computed range by range
+	 */
+	@Override
+	public int hashCode() {
+		long hashCode = 0;
+		for (int i = 0; i < this.ranges.length; i += 2) {
+			long min = this.ranges[i], max = this.ranges[i + 1];
+			hashCode += (min + max) * (max - min + 1) / 2;
+		}
+		return (int) hashCode;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < this.ranges.length; i += 2) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(this.ranges[i]);
+			if (this.ranges[i + 1] != this.ranges[i]) {
+				sb.append(" through ").append(this.ranges[i + 1]);
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Builds a set from ranges added in order of their min values. Ranges
+	 * which overlap or touch the previous range are merged into it.
+	 */
+	static class Builder {
+		private char[] ranges = new char[8];
+		private int length = 0;
+
+		public void add(char min, char max) {
+			if (this.length > 0 && min <= this.ranges[this.length - 1] + 1) {
+				Utils.check(min >= this.ranges[this.length - 2],
+						"Ranges must be added in order!");
+				if (max > this.ranges[this.length - 1]) {
+					this.ranges[this.length - 1] = max;
+				}
+				return;
+			}
+
+			if (this.length == this.ranges.length) {
+				this.ranges = Arrays.copyOf(this.ranges, 2 * this.length);
+			}
+			this.ranges[this.length++] = min;
+			this.ranges[this.length++] = max;
+		}
+
+		public CharSet toCharSet() {
+			return this.length == 0 ? EMPTY : new CharSet(Arrays.copyOf(
+					this.ranges, this.length));
+		}
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+/**
+ * A simulator over characters which can consume chars without boxing them.
+ * 
+ * @author Michael
+ */
+public interface CharSimulator<TState> extends Simulator<TState, Character> {
+	public SimulatorState consume(char input);
+
+	/**
+	 * Returns a value which identifies the simulator's current state: two
+	 * simulators of the same automaton with equal state ids behave the same
+	 * on any further input. This lets drivers remember which states are known
+	 * to fail at a given position of the input.
+	 */
+	public long stateId();
+}
@@ -5,17 +5,13 @@ package compiler.automata;
 
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import compiler.Utils;
 
@@ -27,116 +23,76 @@ public class Characters {
 	private static final SetOperations<Character> setOperations = new SetOperations<Character>() {
 		private final SetOperations<Character> simpleSetOperations = new SimpleSetOperations<Character>();
 		
+		/**
+		 * Sweeps over the boundaries of the sets' ranges in order, tracking
+		 * which sets cover the current segment as a bit mask. The segments
+		 * covered by the same sets form one set in the result.
+		 */
 		@Override
 		public Set<Collection<Character>> partitionedUnion(
 				Collection<Collection<Character>> sets) {
-			// re-represent all sets as ranges
-			Set<Range> ranges = new HashSet<Range>();
+			// each event is (point << 32) | (set index << 1) | (1 if start)
+			long[] events = new long[2 * sets.size()];
+			int eventCount = 0, setIndex = 0;
 			for (Collection<Character> set : sets) {
-				if (set instanceof Range) {
-					ranges.add((Range) set);
-				} else {
-					for (Character ch : set) {
-						ranges.add(range(ch, ch));
-					}
+				CharSet charSet = CharSet.copyOf(set);
+				if (eventCount + 2 * charSet.rangeCount() > events.length) {
+					events = Arrays.copyOf(events, Math.max(2 * events.length,
+							eventCount + 2 * charSet.rangeCount()));
 				}
-			}
-
-			// partition the ranges
-			Set<Range> partitionedRanges = this.partitionedRangeUnion(ranges);
-
-			// eliminate single-char ranges
-			Set<Collection<Character>> result = new HashSet<Collection<Character>>();
-			Set<Character> singletonChars = new HashSet<Character>();
-			for (Range range : partitionedRanges) {
-				if (range.size() == 1) {
-					singletonChars.add(range.min());
-				} else {
-					result.add(range);
+				for (int i = 0; i < charSet.rangeCount(); i++) {
+					events[eventCount++] = ((long) charSet.rangeMin(i) << 32)
+							| (setIndex << 1) | 1;
+					events[eventCount++] = ((long) (charSet.rangeMax(i) + 1) << 32)
+							| (setIndex << 1);
 				}
+				setIndex++;
 			}
-
-			// merge singletons where possible
-			result.addAll(SimpleSetOperations.groupByContains(singletonChars,
-					new ArrayList<Collection<Character>>(sets)));
-
-			return result;
-		}
-
-		/**
-		 * As normal range partitioning, but operates only on a set of Ranges
-		 */
-		private Set<Range> partitionedRangeUnion(Collection<Range> ranges) {
-			if (ranges.isEmpty()) {
-				return Collections.emptySet();
-			}
-
-			/*
-			 * Associate each point with the number of ranges which start and
-			 * end on it.
-			 */
-			SortedMap<Character, Integer> minValues = new TreeMap<Character, Integer>(), maxValues = new TreeMap<Character, Integer>();
-			SortedSet<Character> allValues = new TreeSet<Character>();
-			for (Range range : ranges) {
-				minValues.put(range.min(),
-						Utils.getOrDefault(minValues, range.min(), 0) + 1);
-				maxValues.put(range.max(),
-						Utils.getOrDefault(maxValues, range.max(), 0) + 1);
-				Collections.addAll(allValues, range.min(), range.max());
-			}
-
-			/*
-			 * Scan through the points, creating a range when some range covers
-			 * that region.
-			 */
-			Set<Range> result = new LinkedHashSet<Range>();
-			// the last char which is not yet represented by a set in result
-			char lastUnrepresentedChar = allValues.first();
-			// the number of ranges which are active at lastUnrepresentedChar
-			int activeRangeCount = 0;
-			for (Character ch : allValues) {
-				int startingRangeCount = Utils.getOrDefault(minValues, ch, 0);
-				int endingRangeCount = Utils.getOrDefault(maxValues, ch, 0);
-
-				/*
-				 * If ranges start at ch, we need a gap range through ch - 1 if
-				 * there are active ranges and if at least one of those chars
-				 * remains unrepresented. Also, we need a singleton set for ch
-				 * if ranges also end at ch.
-				 */
-				if (startingRangeCount > 0) {
-					if (activeRangeCount > 0 && lastUnrepresentedChar <= ch - 1) {
-						result.add(range(lastUnrepresentedChar, (char) (ch - 1)));
-					}
-
-					if (endingRangeCount > 0) {
-						result.add(range(ch, ch));
-						// ch is already represented
-						lastUnrepresentedChar = (char) (ch + 1);
-					} else {
-						lastUnrepresentedChar = ch;
+			Arrays.sort(events, 0, eventCount);
+
+			long[] coverage = new long[(sets.size() + 63) >>> 6];
+			int activeSetCount = 0;
+			StateSetIndex signatures = new StateSetIndex();
+			List<CharSet.Builder> groups = new ArrayList<CharSet.Builder>();
+			for (int e = 0; e < eventCount;) {
+				// apply all events at the point
+				int point = (int) (events[e] >>> 32);
+				do {
+					int event = (int) events[e];
+					coverage[event >>> 7] ^= 1L << (event >>> 1);
+					activeSetCount += (event & 1) != 0 ? 1 : -1;
+				} while (++e < eventCount && (int) (events[e] >>> 32) == point);
+
+				// since every start has an end, there is always a next point
+				// while sets are active
+				if (activeSetCount > 0) {
+					int signature = signatures.get(coverage);
+					if (signature < 0) {
+						signature = signatures.add(coverage.clone());
+						groups.add(new CharSet.Builder());
 					}
+					groups.get(signature).add((char) point,
+							(char) ((int) (events[e] >>> 32) - 1));
 				}
-				/*
-				 * If ranges just end at ch, we need a gap range through ch.
-				 */
-				else {
-					Utils.check(endingRangeCount > 0); // sanity check
-					Utils.check(activeRangeCount > 0); // sanity check
-
-					result.add(range(lastUnrepresentedChar, ch));
-					// ch is already represented
-					lastUnrepresentedChar = (char) (ch + 1);
-				}
-
-				activeRangeCount += (startingRangeCount - endingRangeCount);
 			}
 
+			Set<Collection<Character>> result = new HashSet<Collection<Character>>(
+					2 * groups.size());
+			for (CharSet.Builder group : groups) {
+				// keep single ranges as Ranges, so that partitioning the edges
+				// of a DFA built from Ranges reproduces the same edges
+				CharSet charSet = group.toCharSet();
+				result.add(charSet.rangeCount() == 1 && charSet.size() > 1 ? range(
+						charSet.min(), charSet.max()) : charSet);
+			}
 			return result;
 		}
 
 		@Override
 		public Character min(Collection<Character> collection) {
+			if (collection instanceof CharSet) {
+				return ((CharSet) collection).min();
+			}
 			if (collection instanceof Range) {
 				return ((Range)collection).min();
 			}
@@ -145,6 +101,9 @@ public class Characters {
 
 		@Override
 		public Character max(Collection<Character> collection) {
+			if (collection instanceof CharSet) {
+				return ((CharSet) collection).max();
+			}
 			if (collection instanceof Range) {
 				return ((Range)collection).max();
 			}
@@ -3,11 +3,15 @@
  */
 package compiler.automata;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -64,52 +68,54 @@ public class FiniteAutomaton<TState, TTransition>
 		return this.item3();
 	}
 
+	/**
+	 * Converts this automaton to a DFA using the subset construction. When a
+	 * DFA state contains states with different values, the DFA state takes the
+	 * value which comes first in valuesByPrecedence.
+	 */
 	public FiniteAutomaton<TState, TTransition> toDfa(
 			LinkedHashSet<TState> valuesByPrecedence) {
-		List<Set<State<TState>>> dfaStates = new ArrayList<Set<State<TState>>>();
-		Map<Set<State<TState>>, Integer> dfaStateIndices = new HashMap<Set<State<TState>>, Integer>();
-		Map<Integer, Map<Collection<TTransition>, Integer>> transitions = new HashMap<Integer, Map<Collection<TTransition>, Integer>>();
+		/*
+		 * Each DFA state is an epsilon closed set of NFA states, represented as
+		 * a bit set over the NFA state numbers.
+		 */
+		NumberedNfa<TState, TTransition> nfa = new NumberedNfa<TState, TTransition>(
+				this);
+		List<long[]> dfaStates = new ArrayList<long[]>();
+		StateSetIndex dfaStateIndices = new StateSetIndex();
+		List<List<Collection<TTransition>>> transitionSets = new ArrayList<List<Collection<TTransition>>>();
+		List<int[]> transitionTargets = new ArrayList<int[]>();
 
-		dfaStates.add(this.closure(Collections.singleton(this.startState())));
-		dfaStateIndices.put(dfaStates.get(0), 0);
+		dfaStates.add(nfa.startSet());
+		dfaStateIndices.add(dfaStates.get(0));
 
+		Set<Collection<TTransition>> stateTransitionSets = new HashSet<Collection<TTransition>>();
 		for (int j = 0; j < dfaStates.size(); j++) {
 			// get the "alphabet"
-			Set<Collection<TTransition>> transitionSets = new HashSet<Collection<TTransition>>();
-			for (State<TState> state : dfaStates.get(j)) {
-				for (Edge<TState, TTransition> edge : this.edgesFrom(state)) {
-					// ignore epsilon transitions, since we're working with an
-					// epsilon closure
-					if (edge.transitionOnSet() != null) {
-						transitionSets.add(edge.transitionOnSet());
-					}
-				}
-			}
-
-			Set<Collection<TTransition>> transitionSetAlphabet = this.setOperations
-					.partitionedUnion(transitionSets);
-
-			for (Collection<TTransition> transitionSet : transitionSetAlphabet) {
-				Set<State<TState>> reachableStates = this.reachableStates(
-						dfaStates.get(j), transitionSet);
-				int dfaStateIndex;
+			stateTransitionSets.clear();
+			nfa.collectTransitionSets(dfaStates.get(j), stateTransitionSets);
+			List<Collection<TTransition>> transitionSetAlphabet = new ArrayList<Collection<TTransition>>(
+					this.setOperations.partitionedUnion(stateTransitionSets));
+
+			int[] targets = new int[transitionSetAlphabet.size()];
+			for (int i = 0; i < targets.length; i++) {
+				// since the alphabet is a partition of the edge transition
+				// sets, any member of a set transitions like the whole set
+				long[] reachableStates = nfa.step(dfaStates.get(j),
+						this.setOperations.min(transitionSetAlphabet.get(i)));
+				Utils.check(reachableStates != null); // sanity check
 
 				// if the set of reachable states is a dfa state we've already
-				// found, update it's transitions
-				if (dfaStateIndices.containsKey(reachableStates)) {
-					dfaStateIndex = dfaStateIndices.get(reachableStates);
-					Utils.check(dfaStateIndex <= dfaStates.size()); // sanity
-																	// check
-				}
-				// otherwise, add a new dfa state
-				else {
-					dfaStateIndex = dfaStates.size();
+				// found, use it. Otherwise, add a new dfa state
+				int dfaStateIndex = dfaStateIndices.get(reachableStates);
+				if (dfaStateIndex < 0) {
+					dfaStateIndex = dfaStateIndices.add(reachableStates);
 					dfaStates.add(reachableStates);
-					dfaStateIndices.put(reachableStates, dfaStateIndex);
 				}
-				Utils.check(Utils.put(transitions, HashMap.class, j,
-						transitionSet, dfaStateIndex) == null);
+				targets[i] = dfaStateIndex;
 			}
+			transitionSets.add(transitionSetAlphabet);
+			transitionTargets.add(targets);
 		}
 
 		// build the new dfa
@@ -118,39 +124,301 @@ public class FiniteAutomaton<TState, TTransition>
 				dfaStates.size());
 
 		// create the combined states
-		for (Set<State<TState>> dfaState : dfaStates) {
-			combinedStates.add(builder.newState(getValueForCombinedState(
-					dfaState, valuesByPrecedence)));
+		int[] ranks = nfa.ranks(valuesByPrecedence);
+		for (long[] dfaState : dfaStates) {
+			combinedStates.add(builder.newState(nfa.value(dfaState, ranks)));
 		}
 
 		// create the edges
-		for (int fromStateIndex : transitions.keySet()) {
-			Map<Collection<TTransition>, Integer> edges = transitions
+		for (int fromStateIndex = 0; fromStateIndex < dfaStates.size(); fromStateIndex++) {
+			List<Collection<TTransition>> edgeSets = transitionSets
 					.get(fromStateIndex);
-			for (Collection<TTransition> transitionSet : edges.keySet()) {
-				int toStateIndex = edges.get(transitionSet);
+			int[] targets = transitionTargets.get(fromStateIndex);
+			for (int i = 0; i < targets.length; i++) {
 				builder.createEdge(combinedStates.get(fromStateIndex),
-						transitionSet, combinedStates.get(toStateIndex));
+						edgeSets.get(i), combinedStates.get(targets[i]));
 			}
 		}
 
 		return builder.toFiniteAutomaton();
 	}
 
-	private static <S> S getValueForCombinedState(Set<State<S>> states,
-			LinkedHashSet<S> valuesByPrecedence) {
-		Set<S> values = new HashSet<S>();
-		for (State<S> state : states) {
-			values.add(state.value());
+	/**
+	 * Returns the minimal DFA equivalent to this automaton, which must be a
+	 * DFA (e. g. the output of toDfa()). Uses Hopcroft's partition refinement
+	 * algorithm, starting from the partition of states by value so that states
+	 * which accept different values are never merged. Unreachable states and
+	 * states from which no accepting state is reachable are removed, except
+	 * that the start state is always kept.
+	 */
+	public FiniteAutomaton<TState, TTransition> minimize() {
+		List<State<TState>> stateList = new ArrayList<State<TState>>(
+				this.states());
+		Map<State<TState>, Integer> stateIndices = new HashMap<State<TState>, Integer>();
+		for (int i = 0; i < stateList.size(); i++) {
+			stateIndices.put(stateList.get(i), i);
+		}
+
+		// compute a common alphabet for all states
+		Set<Collection<TTransition>> transitionSets = new HashSet<Collection<TTransition>>();
+		for (Edge<TState, TTransition> edge : this.edges()) {
+			Utils.check(edge.transitionOnSet() != null,
+					"Cannot minimize an automaton with epsilon edges!");
+			transitionSets.add(edge.transitionOnSet());
+		}
+		List<Collection<TTransition>> alphabet = new ArrayList<Collection<TTransition>>(
+				this.setOperations.partitionedUnion(transitionSets));
+
+		// build a total transition function by adding a sink state
+		int sink = stateList.size(), stateCount = sink + 1, classCount = alphabet
+				.size();
+		int[][] transitions = new int[classCount][stateCount];
+		for (int c = 0; c < classCount; c++) {
+			TTransition representative = this.setOperations.min(alphabet
+					.get(c));
+			for (int s = 0; s < sink; s++) {
+				transitions[c][s] = sink;
+				for (Edge<TState, TTransition> edge : this.edgesFrom(stateList
+						.get(s))) {
+					if (edge.transitionOnSet().contains(representative)) {
+						transitions[c][s] = stateIndices.get(edge.to());
+						break;
+					}
+				}
+			}
+			transitions[c][sink] = sink;
+		}
+
+		// the initial partition groups states by value
+		Map<TState, List<Integer>> statesByValue = new LinkedHashMap<TState, List<Integer>>();
+		for (int s = 0; s < stateCount; s++) {
+			Utils.put(statesByValue, ArrayList.class, s < sink ? stateList
+					.get(s).value() : null, s);
+		}
+		Partition partition = new Partition(stateCount);
+		for (List<Integer> block : statesByValue.values()) {
+			partition.addBlock(block);
+		}
+
+		// refine the partition
+		int[][][] predecessors = new int[classCount][][];
+		for (int c = 0; c < classCount; c++) {
+			predecessors[c] = invert(transitions[c]);
+		}
+		partition.refine(predecessors);
+
+		// number the blocks reachable from the start state in breadth-first
+		// order, skipping the dead block
+		int deadBlock = partition.blockOf(sink), startBlock = partition
+				.blockOf(0);
+		int[] newStateIndices = new int[partition.blockCount()];
+		Arrays.fill(newStateIndices, -1);
+		List<Integer> blockOrder = new ArrayList<Integer>();
+		newStateIndices[startBlock] = 0;
+		blockOrder.add(startBlock);
+		for (int i = 0; i < blockOrder.size(); i++) {
+			int representative = partition.representative(blockOrder.get(i));
+			for (int c = 0; c < classCount; c++) {
+				int toBlock = partition
+						.blockOf(transitions[c][representative]);
+				if (toBlock != deadBlock && newStateIndices[toBlock] < 0) {
+					newStateIndices[toBlock] = blockOrder.size();
+					blockOrder.add(toBlock);
+				}
+			}
+		}
+
+		// build the new dfa
+		Builder<TState, TTransition> builder = builder(this.setOperations);
+		List<State<TState>> minimalStates = new ArrayList<State<TState>>(
+				blockOrder.size());
+		for (int block : blockOrder) {
+			minimalStates.add(builder.newState(stateList.get(
+					partition.representative(block)).value()));
+		}
+		for (int i = 0; i < blockOrder.size(); i++) {
+			State<TState> representative = stateList.get(partition
+					.representative(blockOrder.get(i)));
+			for (Edge<TState, TTransition> edge : this
+					.edgesFrom(representative)) {
+				int toBlock = partition.blockOf(stateIndices.get(edge.to()));
+				if (toBlock != deadBlock) {
+					builder.createEdge(minimalStates.get(i),
+							edge.transitionOnSet(),
+							minimalStates.get(newStateIndices[toBlock]));
+				}
+			}
+		}
+
+		return builder.toFiniteAutomaton();
+	}
+
+	/**
+	 * Given a transition function over state indices, returns for each state
+	 * the array of states which transition to it
+	 */
+	private static int[][] invert(int[] transitions) {
+		int[] counts = new int[transitions.length];
+		for (int to : transitions) {
+			counts[to]++;
+		}
+		int[][] inverse = new int[transitions.length][];
+		for (int s = 0; s < transitions.length; s++) {
+			inverse[s] = new int[counts[s]];
+		}
+		for (int from = 0; from < transitions.length; from++) {
+			int to = transitions[from];
+			inverse[to][--counts[to]] = from;
+		}
+
+		return inverse;
+	}
+
+	/**
+	 * A partition of the integers [0, size) which supports the splitting
+	 * operations needed by Hopcroft's algorithm in time proportional to the
+	 * size of the splitter. The members of each block are stored contiguously
+	 * in a single array, so that marking a member is just a swap.
+	 */
+	private static class Partition {
+		private final int[] elements, locations, blocks;
+		private final List<int[]> blockBounds = new ArrayList<int[]>();
+		private int[] markedCounts;
+		private int size = 0;
+
+		public Partition(int size) {
+			this.elements = new int[size];
+			this.locations = new int[size];
+			this.blocks = new int[size];
 		}
 
-		for (S value : valuesByPrecedence) {
-			if (values.contains(value)) {
-				return value;
+		public void addBlock(List<Integer> members) {
+			int block = this.blockBounds.size();
+			this.blockBounds.add(new int[] { this.size,
+					this.size + members.size() });
+			for (int member : members) {
+				this.elements[this.size] = member;
+				this.locations[member] = this.size;
+				this.blocks[member] = block;
+				this.size++;
 			}
 		}
 
-		return null;
+		public int blockCount() {
+			return this.blockBounds.size();
+		}
+
+		public int blockOf(int element) {
+			return this.blocks[element];
+		}
+
+		/**
+		 * Returns the smallest element of the block
+		 */
+		public int representative(int block) {
+			int[] bounds = this.blockBounds.get(block);
+			int min = Integer.MAX_VALUE;
+			for (int i = bounds[0]; i < bounds[1]; i++) {
+				min = Math.min(min, this.elements[i]);
+			}
+			return min;
+		}
+
+		/**
+		 * Refines the partition until no block can be split by the
+		 * predecessors of another block on any transition class.
+		 */
+		public void refine(int[][][] predecessors) {
+			this.markedCounts = new int[this.elements.length];
+			Deque<Integer> worklist = new ArrayDeque<Integer>();
+			for (int block = 0; block < this.blockCount(); block++) {
+				worklist.add(block);
+			}
+
+			int[] splitter = new int[this.elements.length], touched = new int[this.elements.length];
+			while (!worklist.isEmpty()) {
+				int splitterBlock = worklist.poll();
+				int[] bounds = this.blockBounds.get(splitterBlock);
+				int splitterSize = bounds[1] - bounds[0];
+				System.arraycopy(this.elements, bounds[0], splitter, 0,
+						splitterSize);
+
+				for (int[][] classPredecessors : predecessors) {
+					// mark all predecessors, moving them to the front of their
+					// blocks
+					int touchedCount = 0;
+					for (int i = 0; i < splitterSize; i++) {
+						for (int from : classPredecessors[splitter[i]]) {
+							int block = this.blocks[from];
+							if (this.markedCounts[block] == 0) {
+								touched[touchedCount++] = block;
+							}
+							this.mark(from, block);
+						}
+					}
+
+					// split each touched block into its marked and unmarked
+					// parts
+					for (int t = 0; t < touchedCount; t++) {
+						int block = touched[t];
+						int newBlock = this.split(block);
+						// if the old block was waiting to be a splitter, both
+						// halves must be, and it still is. Otherwise, only the
+						// smaller half is needed. Either way, that leaves the
+						// new block, which split() always makes the smaller
+						// half and which can't be in the worklist yet
+						if (newBlock >= 0) {
+							worklist.add(newBlock);
+						}
+					}
+				}
+			}
+		}
+
+		private void mark(int element, int block) {
+			int[] bounds = this.blockBounds.get(block);
+			int markedLocation = bounds[0] + this.markedCounts[block];
+			int location = this.locations[element];
+			if (location >= markedLocation) {
+				int other = this.elements[markedLocation];
+				this.elements[markedLocation] = element;
+				this.locations[element] = markedLocation;
+				this.elements[location] = other;
+				this.locations[other] = location;
+				this.markedCounts[block]++;
+			}
+		}
+
+		/**
+		 * Splits the marked part of the block from the unmarked part,
+		 * returning the index of the new block (which is always the smaller
+		 * part) or -1 if no split occurred.
+		 */
+		private int split(int block) {
+			int[] bounds = this.blockBounds.get(block);
+			int markedCount = this.markedCounts[block], blockSize = bounds[1]
+					- bounds[0];
+			this.markedCounts[block] = 0;
+			if (markedCount == blockSize) {
+				return -1;
+			}
+
+			int newBlock = this.blockBounds.size();
+			int[] newBounds;
+			if (markedCount <= blockSize - markedCount) {
+				newBounds = new int[] { bounds[0], bounds[0] + markedCount };
+				bounds[0] += markedCount;
+			} else {
+				newBounds = new int[] { bounds[0] + markedCount, bounds[1] };
+				bounds[1] = bounds[0] + markedCount;
+			}
+			this.blockBounds.add(newBounds);
+			for (int i = newBounds[0]; i < newBounds[1]; i++) {
+				this.blocks[this.elements[i]] = newBlock;
+			}
+
+			return newBlock;
+		}
 	}
 
 	/**
@@ -254,6 +522,27 @@ public class FiniteAutomaton<TState, TTransition>
 			return this.createEdge(fromState, null, toState);
 		}
 
+		/**
+		 * Copies the states and edges of the given automaton into this builder
+		 * and returns the copy of its start state. The copies are created in
+		 * the automaton's state and edge order, so splicing in an automaton
+		 * built by a separate builder yields the same states as building it
+		 * here directly.
+		 */
+		public State<TState> addAll(
+				FiniteAutomaton<TState, TTransition> automaton) {
+			Map<State<TState>, State<TState>> copies = new HashMap<State<TState>, State<TState>>();
+			for (State<TState> state : automaton.states()) {
+				copies.put(state, this.newState(state.value()));
+			}
+			for (Edge<TState, TTransition> edge : automaton.edges()) {
+				this.createEdge(copies.get(edge.from()),
+						edge.transitionOnSet(), copies.get(edge.to()));
+			}
+
+			return copies.get(automaton.startState());
+		}
+
 		public Set<State<TState>> states() {
 			return Collections.unmodifiableSet(this.states);
 		}
@@ -0,0 +1,367 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import compiler.Utils;
+
+/**
+ * A DFA over characters which is built from an NFA on demand. Instead of
+ * running the subset construction up front, each DFA state (a set of NFA
+ * states) is created the first time a simulator reaches it, and each
+ * transition is computed the first time it is taken. Creating the automaton
+ * therefore only costs a pass over the NFA, and simulation runs at DFA speed
+ * over the states that the input actually touches.
+ * 
+ * The states are cached per thread, so simulators never synchronize. A
+ * simulator always steps through the cache of the thread which is using it: if
+ * it is handed to another thread, it moves its current state over to that
+ * thread's cache before its next step. State ids are unique across all of the
+ * caches. Each cache holds at most maxStates states: when it fills up it is
+ * flushed and rebuilt from scratch. If the cache is flushing so often that
+ * little input is consumed between flushes, the simulators stop caching for a
+ * while and step the NFA state sets directly, since building states which are
+ * immediately thrown away costs more than the plain NFA simulation.
+ * 
+ * @author Michael
+ */
+public class LazyCharDfa<TState> implements CharAutomaton<TState> {
+	public static final int DEFAULT_MAX_STATES = 1000;
+
+	/**
+	 * If less than this many characters per cached state are consumed between
+	 * two flushes, the cache is considered to be thrashing
+	 */
+	private static final int MIN_CHARS_PER_STATE = 10;
+
+	private static final Node DEAD = new Node(-1, null, null, 0);
+
+	private final NumberedNfa<TState, Character> nfa;
+	private final int[] ranks;
+	private final CharClassMap classMap;
+	private final long[][][] edgeClasses;
+	private final int maxStates;
+	private final AtomicLong nodeCount = new AtomicLong();
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			return new Cache();
+		}
+	};
+
+	/**
+	 * Creates a lazy DFA for the given NFA. As with FiniteAutomaton.toDfa(),
+	 * when a DFA state contains states with different values it takes the
+	 * value which comes first in valuesByPrecedence.
+	 */
+	public LazyCharDfa(FiniteAutomaton<TState, Character> nfa,
+			LinkedHashSet<TState> valuesByPrecedence, int maxStates) {
+		Utils.check(maxStates > 0, "The cache must hold at least one state!");
+
+		this.nfa = new NumberedNfa<TState, Character>(nfa);
+		this.ranks = this.nfa.ranks(valuesByPrecedence);
+		this.maxStates = maxStates;
+
+		// the character classes are the partition of all edge transition sets
+		Set<Collection<Character>> transitionSets = new HashSet<Collection<Character>>();
+		for (int s = 0; s < this.nfa.stateCount(); s++) {
+			for (Collection<Character> edgeSet : this.nfa.edgeSets(s)) {
+				transitionSets.add(edgeSet);
+			}
+		}
+		List<Collection<Character>> classes = new ArrayList<Collection<Character>>(
+				Characters.setOperations().partitionedUnion(transitionSets));
+		this.classMap = CharClassMap.fromPartition(classes);
+
+		// for each edge, record the classes it transitions on as a bit set.
+		// Class 0 never transitions
+		int classWords = (this.classMap.classCount() + 63) >>> 6;
+		this.edgeClasses = new long[this.nfa.stateCount()][][];
+		for (int s = 0; s < this.nfa.stateCount(); s++) {
+			Collection<Character>[] edgeSets = this.nfa.edgeSets(s);
+			this.edgeClasses[s] = new long[edgeSets.length][classWords];
+			for (int i = 0; i < edgeSets.length; i++) {
+				for (int c = 1; c < this.classMap.classCount(); c++) {
+					if (edgeSets[i].contains(Characters.setOperations().min(
+							classes.get(c - 1)))) {
+						this.edgeClasses[s][i][c >>> 6] |= 1L << c;
+					}
+				}
+			}
+		}
+	}
+
+	public LazyCharDfa(FiniteAutomaton<TState, Character> nfa,
+			LinkedHashSet<TState> valuesByPrecedence) {
+		this(nfa, valuesByPrecedence, DEFAULT_MAX_STATES);
+	}
+
+	public int maxStates() {
+		return this.maxStates;
+	}
+
+	/**
+	 * The number of states currently cached for the calling thread
+	 */
+	public int cachedStateCount() {
+		return this.caches.get().states.size();
+	}
+
+	/**
+	 * The number of times the calling thread's cache has been flushed
+	 */
+	public int flushCount() {
+		return this.caches.get().flushCount;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.CharAutomaton#newSimulator()
+	 */
+	@Override
+	public CharSimulator<TState> newSimulator() {
+		return new LazySimulator();
+	}
+
+	/**
+	 * Returns the closure of the states reachable from the given set on the
+	 * given class, or null
+	 */
+	private long[] step(long[] stateSet, int charClass) {
+		long[] result = null;
+		int word = charClass >>> 6;
+		long bit = 1L << charClass;
+		for (int s = NumberedNfa.nextState(stateSet, 0); s >= 0; s = NumberedNfa
+				.nextState(stateSet, s + 1)) {
+			long[][] stateEdgeClasses = this.edgeClasses[s];
+			for (int i = 0; i < stateEdgeClasses.length; i++) {
+				if ((stateEdgeClasses[i][word] & bit) != 0) {
+					if (result == null) {
+						result = new long[this.nfa.words()];
+					}
+					long[] closure = this.nfa.closure(this.nfa.edgeTargets(s)[i]);
+					for (int w = 0; w < result.length; w++) {
+						result[w] |= closure[w];
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * A DFA state. The next array holds the known transitions out of the
+	 * state, with null meaning that the transition hasn't been computed yet.
+	 * Ids are unique across caches and never reused, even across flushes
+	 */
+	private static class Node {
+		private final long id;
+		private final long[] stateSet;
+		private final Object value;
+		private final Node[] next;
+
+		public Node(long id, long[] stateSet, Object value, int classCount) {
+			this.id = id;
+			this.stateSet = stateSet;
+			this.value = value;
+			this.next = new Node[classCount];
+		}
+	}
+
+	/**
+	 * The states built by one thread
+	 */
+	private class Cache {
+		private StateSetIndex index = new StateSetIndex();
+		private final List<Node> states = new ArrayList<Node>();
+		private Node start = null;
+		private int flushCount = 0;
+		private long consumed = 0, consumedAtFlush = 0, bypassUntil = -1;
+
+		public Node start() {
+			if (this.start == null) {
+				this.start = this.cachedNode(LazyCharDfa.this.nfa.startSet());
+			}
+			return this.start;
+		}
+
+		/**
+		 * Computes the transition from the given node on the given class
+		 */
+		public Node transition(Node node, int charClass) {
+			long[] stateSet = LazyCharDfa.this.step(node.stateSet, charClass);
+			if (stateSet == null) {
+				return node.next[charClass] = DEAD;
+			}
+
+			// while bypassing the cache, just step the state sets
+			if (this.consumed < this.bypassUntil) {
+				return this.newNode(stateSet);
+			}
+
+			return node.next[charClass] = this.cachedNode(stateSet);
+		}
+
+		/**
+		 * Returns this cache's node for the given state set, which may come
+		 * from another thread's cache
+		 */
+		public Node cachedNode(long[] stateSet) {
+			int index = this.index.get(stateSet);
+			if (index >= 0) {
+				return this.states.get(index);
+			}
+
+			if (this.states.size() == LazyCharDfa.this.maxStates) {
+				boolean thrashing = this.consumed - this.consumedAtFlush < (long) MIN_CHARS_PER_STATE
+						* LazyCharDfa.this.maxStates;
+				this.flush();
+				if (thrashing) {
+					this.bypassUntil = this.consumed
+							+ (long) MIN_CHARS_PER_STATE
+							* LazyCharDfa.this.maxStates;
+					return this.newNode(stateSet);
+				}
+			}
+
+			Node node = this.newNode(stateSet);
+			this.index.add(stateSet);
+			this.states.add(node);
+			return node;
+		}
+
+		private Node newNode(long[] stateSet) {
+			return new Node(LazyCharDfa.this.nodeCount.getAndIncrement(),
+					stateSet,
+					LazyCharDfa.this.nfa.value(stateSet, LazyCharDfa.this.ranks),
+					LazyCharDfa.this.classMap.classCount());
+		}
+
+		/**
+		 * Drops all cached states. Simulators which are in a dropped state can
+		 * keep running, since the transitions they follow are still correct.
+		 * Any new states they reach are added to the new cache
+		 */
+		private void flush() {
+			this.index = new StateSetIndex();
+			this.states.clear();
+			this.start = null;
+			this.flushCount++;
+			this.consumedAtFlush = this.consumed;
+		}
+	}
+
+	private class LazySimulator implements CharSimulator<TState> {
+		private Thread thread;
+		private Cache cache;
+		private Node current;
+
+		public LazySimulator() {
+			this.thread = Thread.currentThread();
+			this.cache = LazyCharDfa.this.caches.get();
+			this.current = this.cache.start();
+		}
+
+		/**
+		 * Switches to the calling thread's cache if the simulator has changed
+		 * threads, so that no thread ever writes to another's nodes
+		 */
+		private void checkThread() {
+			if (this.thread != Thread.currentThread()) {
+				this.thread = Thread.currentThread();
+				this.cache = LazyCharDfa.this.caches.get();
+				if (this.current != DEAD) {
+					this.current = this.cache.cachedNode(this.current.stateSet);
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.CharSimulator#consume(char)
+		 */
+		@Override
+		public SimulatorState consume(char input) {
+			this.checkThread();
+			if (this.current != DEAD) {
+				this.cache.consumed++;
+				int charClass = LazyCharDfa.this.classMap.classOf(input);
+				Node next = this.current.next[charClass];
+				this.current = next != null ? next : this.cache.transition(
+						this.current, charClass);
+				if (this.current != DEAD) {
+					return this.current.value != null ? SimulatorState.Accept
+							: SimulatorState.Reject;
+				}
+			}
+			return SimulatorState.Error;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.CharSimulator#stateId()
+		 */
+		@Override
+		public long stateId() {
+			return this.current.id;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#consume(java.lang.Object)
+		 */
+		@Override
+		public SimulatorState consume(Character input) {
+			return this.consume(input.charValue());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#simulatorState()
+		 */
+		@Override
+		public SimulatorState simulatorState() {
+			return this.current != DEAD ? (this.current.value != null ? SimulatorState.Accept
+					: SimulatorState.Reject)
+					: SimulatorState.Error;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#currentValue()
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public TState currentValue() {
+			Utils.check(this.current != DEAD, "The DFA is in an error state!");
+			return (TState) this.current.value;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#reset()
+		 */
+		@Override
+		public SimulatorState reset() {
+			this.checkThread();
+			this.current = this.cache.start();
+			return this.simulatorState();
+		}
+	}
+}
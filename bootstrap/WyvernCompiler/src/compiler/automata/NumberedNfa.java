@@ -0,0 +1,239 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An array-based view of a FiniteAutomaton for the subset construction. The
+ * states are numbered from 0 (the start state) and sets of states are bit sets
+ * stored as long[]s of a fixed length, so that they can be combined with a few
+ * word operations and hashed without boxing. The epsilon closure of each state
+ * is computed once up front, so the closure of any set is just the union of
+ * the closures of its members.
+ * 
+ * @author Michael
+ */
+class NumberedNfa<TState, TTransition> {
+	private final List<State<TState>> states;
+	private final Collection<TTransition>[][] edgeSets;
+	private final int[][] edgeTargets;
+	private final long[][] closures;
+	private final int words;
+
+	// generic arrays can't be created, so the edge set arrays are raw
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public NumberedNfa(FiniteAutomaton<TState, TTransition> nfa) {
+		// number the start state 0
+		this.states = new ArrayList<State<TState>>();
+		this.states.add(nfa.startState());
+		for (State<TState> state : nfa.states()) {
+			if (!state.equals(nfa.startState())) {
+				this.states.add(state);
+			}
+		}
+		this.words = (this.states.size() + 63) >>> 6;
+		Map<State<TState>, Integer> indices = new HashMap<State<TState>, Integer>();
+		for (int i = 0; i < this.states.size(); i++) {
+			indices.put(this.states.get(i), i);
+		}
+
+		// split the edges into epsilon and non-epsilon edges
+		int[][] epsilonTargets = new int[this.states.size()][];
+		this.edgeSets = new Collection[this.states.size()][];
+		this.edgeTargets = new int[this.states.size()][];
+		for (int s = 0; s < this.states.size(); s++) {
+			List<Edge<TState, TTransition>> edges = new ArrayList<Edge<TState, TTransition>>(), epsilonEdges = new ArrayList<Edge<TState, TTransition>>();
+			for (Edge<TState, TTransition> edge : nfa.edgesFrom(this.states
+					.get(s))) {
+				(edge.transitionOnSet() == null ? epsilonEdges : edges)
+						.add(edge);
+			}
+			this.edgeSets[s] = new Collection[edges.size()];
+			this.edgeTargets[s] = new int[edges.size()];
+			for (int i = 0; i < edges.size(); i++) {
+				this.edgeSets[s][i] = edges.get(i).transitionOnSet();
+				this.edgeTargets[s][i] = indices.get(edges.get(i).to());
+			}
+			epsilonTargets[s] = new int[epsilonEdges.size()];
+			for (int i = 0; i < epsilonEdges.size(); i++) {
+				epsilonTargets[s][i] = indices.get(epsilonEdges.get(i).to());
+			}
+		}
+
+		// compute the closure of each state with a depth-first search
+		this.closures = new long[this.states.size()][];
+		int[] stack = new int[this.states.size()];
+		for (int s = 0; s < this.states.size(); s++) {
+			long[] closure = new long[this.words];
+			int stackSize = 0;
+			stack[stackSize++] = s;
+			add(closure, s);
+			while (stackSize > 0) {
+				for (int target : epsilonTargets[stack[--stackSize]]) {
+					if (!contains(closure, target)) {
+						add(closure, target);
+						stack[stackSize++] = target;
+					}
+				}
+			}
+			this.closures[s] = closure;
+		}
+	}
+
+	public int stateCount() {
+		return this.states.size();
+	}
+
+	public State<TState> state(int index) {
+		return this.states.get(index);
+	}
+
+	/**
+	 * The transition sets of the non-epsilon edges leading out of the given
+	 * state
+	 */
+	Collection<TTransition>[] edgeSets(int state) {
+		return this.edgeSets[state];
+	}
+
+	/**
+	 * The targets of the edges returned by edgeSets(state)
+	 */
+	int[] edgeTargets(int state) {
+		return this.edgeTargets[state];
+	}
+
+	/**
+	 * The epsilon closure of the given state. The array must not be modified.
+	 */
+	long[] closure(int state) {
+		return this.closures[state];
+	}
+
+	/**
+	 * The number of longs in each state set
+	 */
+	int words() {
+		return this.words;
+	}
+
+	/**
+	 * The closure of the start state
+	 */
+	public long[] startSet() {
+		return this.closures[0].clone();
+	}
+
+	/**
+	 * Adds the transition sets of the non-epsilon edges leading out of the
+	 * given states to the provided set
+	 */
+	public void collectTransitionSets(long[] stateSet,
+			Set<Collection<TTransition>> transitionSets) {
+		for (int s = nextState(stateSet, 0); s >= 0; s = nextState(stateSet,
+				s + 1)) {
+			for (Collection<TTransition> edgeSet : this.edgeSets[s]) {
+				transitionSets.add(edgeSet);
+			}
+		}
+	}
+
+	/**
+	 * Returns the closure of the set of states reachable from the given
+	 * (closed) set of states on the given input, or null if no states are
+	 * reachable
+	 */
+	public long[] step(long[] stateSet, TTransition input) {
+		long[] result = null;
+		for (int s = nextState(stateSet, 0); s >= 0; s = nextState(stateSet,
+				s + 1)) {
+			Collection<TTransition>[] sets = this.edgeSets[s];
+			for (int i = 0; i < sets.length; i++) {
+				if (sets[i].contains(input)) {
+					if (result == null) {
+						result = new long[this.words];
+					}
+					long[] closure = this.closures[this.edgeTargets[s][i]];
+					for (int w = 0; w < this.words; w++) {
+						result[w] |= closure[w];
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns, for each state, the index of its value in valuesByPrecedence,
+	 * or Integer.MAX_VALUE if it has no value or its value is not ranked.
+	 */
+	public int[] ranks(LinkedHashSet<TState> valuesByPrecedence) {
+		Map<TState, Integer> valueRanks = new HashMap<TState, Integer>();
+		for (TState value : valuesByPrecedence) {
+			valueRanks.put(value, valueRanks.size());
+		}
+		int[] ranks = new int[this.states.size()];
+		for (int s = 0; s < ranks.length; s++) {
+			TState value = this.states.get(s).value();
+			Integer rank = value != null ? valueRanks.get(value) : null;
+			ranks[s] = rank != null ? rank : Integer.MAX_VALUE;
+		}
+
+		return ranks;
+	}
+
+	/**
+	 * Returns the value of the highest-precedence state in the set according
+	 * to the given ranks, or null
+	 */
+	public TState value(long[] stateSet, int[] ranks) {
+		int best = -1;
+		for (int s = nextState(stateSet, 0); s >= 0; s = nextState(stateSet,
+				s + 1)) {
+			if (ranks[s] != Integer.MAX_VALUE
+					&& (best < 0 || ranks[s] < ranks[best])) {
+				best = s;
+			}
+		}
+
+		return best < 0 ? null : this.states.get(best).value();
+	}
+
+	/**
+	 * Returns the index of the first state in the set at or after the given
+	 * index, or -1
+	 */
+	public static int nextState(long[] stateSet, int fromIndex) {
+		int w = fromIndex >>> 6;
+		if (w >= stateSet.length) {
+			return -1;
+		}
+		long word = stateSet[w] & (-1L << fromIndex);
+		while (true) {
+			if (word != 0) {
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++w == stateSet.length) {
+				return -1;
+			}
+			word = stateSet[w];
+		}
+	}
+
+	private static boolean contains(long[] stateSet, int state) {
+		return (stateSet[state >>> 6] & (1L << state)) != 0;
+	}
+
+	private static void add(long[] stateSet, int state) {
+		stateSet[state >>> 6] |= 1L << state;
+	}
+}
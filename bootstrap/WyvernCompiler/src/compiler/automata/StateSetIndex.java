@@ -0,0 +1,81 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from NFA state sets (bit sets stored as long[]s
+ * of a fixed length) to the indices of the DFA states they represent. Indices
+ * are assigned in insertion order.
+ * 
+ * @author Michael
+ */
+class StateSetIndex {
+	private long[][] keys = new long[16][];
+	private int[] values = new int[16];
+	private int size = 0;
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the index of the given state set, or -1 if it has not been
+	 * added
+	 */
+	public int get(long[] stateSet) {
+		int mask = this.keys.length - 1;
+		for (int slot = hash(stateSet) & mask; this.keys[slot] != null; slot = (slot + 1)
+				& mask) {
+			if (Arrays.equals(this.keys[slot], stateSet)) {
+				return this.values[slot];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the state set, which must not already be present, and returns its
+	 * index
+	 */
+	public int add(long[] stateSet) {
+		if (2 * (this.size + 1) > this.keys.length) {
+			this.resize();
+		}
+		int index = this.size++;
+		this.insert(stateSet, index);
+		return index;
+	}
+
+	private void insert(long[] stateSet, int index) {
+		int mask = this.keys.length - 1;
+		int slot = hash(stateSet) & mask;
+		while (this.keys[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		this.keys[slot] = stateSet;
+		this.values[slot] = index;
+	}
+
+	private void resize() {
+		long[][] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new long[oldKeys.length * 2][];
+		this.values = new int[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				this.insert(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private static int hash(long[] stateSet) {
+		long h = 0;
+		for (long word : stateSet) {
+			h = (h ^ word) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+}
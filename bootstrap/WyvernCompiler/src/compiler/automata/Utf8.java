@@ -0,0 +1,297 @@
+/**
+ * 
+ */
+package compiler.automata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Utils;
+
+/**
+ * Helpers for working with UTF-8 encoded input, including the construction of
+ * byte-level DFAs from character DFAs (see CharDfa.toUtf8()).
+ * 
+ * A byte DFA has one state for each state of the character DFA, which it is
+ * in at the boundaries between encoded characters, plus intermediate states
+ * for partly read multi-byte sequences. The intermediate states form a tree
+ * below each character state, with one level per continuation byte, much as
+ * in RE2 or ripgrep. Subtrees with the same transitions are shared, so since
+ * lexer alphabets distinguish few characters outside of ASCII, the trees stay
+ * small. Supplementary characters, which a character DFA reads as a pair of
+ * surrogates, are read as one four-byte sequence, so the byte DFA never stops
+ * between the surrogates. Invalid sequences (overlong encodings, encoded
+ * surrogates, stray continuation bytes, etc.) have no transitions.
+ * 
+ * @author Michael
+ */
+public final class Utf8 {
+	private static final int CONTINUATION_COUNT = 64;
+
+	private Utf8() {
+	}
+
+	/**
+	 * Returns the length of the sequence which starts with the given lead
+	 * byte. Bytes which cannot start a sequence have length 1.
+	 */
+	public static int sequenceLength(int lead) {
+		if (lead < 0xC2) {
+			return 1;
+		}
+		if (lead < 0xE0) {
+			return 2;
+		}
+		if (lead < 0xF0) {
+			return 3;
+		}
+		return lead <= 0xF4 ? 4 : 1;
+	}
+
+	/**
+	 * Can b be the index-th byte (counting from 0) of a well-formed sequence
+	 * which starts with lead? The second byte is restricted for some lead
+	 * bytes to rule out overlong encodings, surrogates and code points past
+	 * U+10FFFF.
+	 */
+	public static boolean isContinuation(int lead, int index, int b) {
+		if (index == 1) {
+			switch (lead) {
+			case 0xE0:
+				return b >= 0xA0 && b <= 0xBF;
+			case 0xED:
+				return b >= 0x80 && b <= 0x9F;
+			case 0xF0:
+				return b >= 0x90 && b <= 0xBF;
+			case 0xF4:
+				return b >= 0x80 && b <= 0x8F;
+			}
+		}
+		return b >= 0x80 && b <= 0xBF;
+	}
+
+	/**
+	 * Returns an equivalent DFA over the UTF-8 encoding of the input
+	 */
+	static <T> FiniteAutomaton<T, Character> encode(CharDfa<T> dfa) {
+		return new Encoder<T>(dfa).encode();
+	}
+
+	/**
+	 * Builds a byte DFA. The states are identified by ids: ids below the
+	 * character DFA's state count are character states, and the rest are
+	 * intermediate states, each of which is defined by the targets of its 64
+	 * continuation bytes. -1 is the error state.
+	 */
+	private static class Encoder<T> {
+		private final CharDfa<T> dfa;
+		private final int charStateCount;
+		private final Map<Children, Integer> intermediateIds = new HashMap<Children, Integer>();
+		private final List<int[]> intermediateStates = new ArrayList<int[]>();
+		/**
+		 * The last-byte states for supplementary characters, by the state
+		 * reached on the high surrogate and by which 64 low surrogates they
+		 * cover
+		 */
+		private final int[][] lowSurrogateStates;
+
+		public Encoder(CharDfa<T> dfa) {
+			this.dfa = dfa;
+			this.charStateCount = dfa.stateCount();
+			this.lowSurrogateStates = new int[this.charStateCount][1024 / CONTINUATION_COUNT];
+			for (int[] states : this.lowSurrogateStates) {
+				Arrays.fill(states, -2);
+			}
+		}
+
+		public FiniteAutomaton<T, Character> encode() {
+			// the byte transitions of each character state
+			int[][] charStateTargets = new int[this.charStateCount][];
+			for (int s = 0; s < this.charStateCount; s++) {
+				charStateTargets[s] = this.charStateTargets(s);
+			}
+
+			FiniteAutomaton.Builder<T, Character> builder = FiniteAutomaton
+					.builder(Characters.setOperations());
+			List<State<T>> states = new ArrayList<State<T>>();
+			for (int s = 0; s < this.charStateCount; s++) {
+				states.add(builder.newState(this.dfa.value(s)));
+			}
+			for (int i = 0; i < this.intermediateStates.size(); i++) {
+				states.add(builder.newState());
+			}
+
+			for (int s = 0; s < this.charStateCount; s++) {
+				createEdges(builder, states, states.get(s),
+						charStateTargets[s], 0);
+			}
+			for (int i = 0; i < this.intermediateStates.size(); i++) {
+				createEdges(builder, states,
+						states.get(this.charStateCount + i),
+						this.intermediateStates.get(i), 0x80);
+			}
+
+			return builder.toFiniteAutomaton();
+		}
+
+		/**
+		 * Creates an edge from the state to each distinct target, where the
+		 * i-th target is reached on byte firstByte + i
+		 */
+		private static <T> void createEdges(
+				FiniteAutomaton.Builder<T, Character> builder,
+				List<State<T>> states, State<T> from, int[] targets,
+				int firstByte) {
+			Map<Integer, CharSet.Builder> targetBytes = new LinkedHashMap<Integer, CharSet.Builder>();
+			for (int i = 0; i < targets.length; i++) {
+				if (targets[i] >= 0) {
+					CharSet.Builder bytes = targetBytes.get(targets[i]);
+					if (bytes == null) {
+						targetBytes.put(targets[i],
+								bytes = new CharSet.Builder());
+					}
+					char b = (char) (firstByte + i);
+					bytes.add(b, b);
+				}
+			}
+			for (Map.Entry<Integer, CharSet.Builder> entry : targetBytes
+					.entrySet()) {
+				builder.createEdge(from, entry.getValue().toCharSet(),
+						states.get(entry.getKey()));
+			}
+		}
+
+		/**
+		 * Returns the target of each byte from the given character state
+		 */
+		private int[] charStateTargets(int s) {
+			int[] targets = new int[256];
+			Arrays.fill(targets, -1);
+			for (int b = 0; b < 0x80; b++) {
+				targets[b] = this.dfa.transition(s, (char) b);
+			}
+
+			int[] children = new int[CONTINUATION_COUNT], grandchildren = new int[CONTINUATION_COUNT];
+			for (int lead = 0xC2; lead <= 0xF4; lead++) {
+				switch (sequenceLength(lead)) {
+				case 2:
+					targets[lead] = this.lastByteState(s, (lead & 0x1F) << 6);
+					break;
+				case 3:
+					for (int i = 0; i < CONTINUATION_COUNT; i++) {
+						children[i] = isContinuation(lead, 1, 0x80 + i) ? this
+								.lastByteState(s, (lead & 0x0F) << 12 | i << 6)
+								: -1;
+					}
+					targets[lead] = this.intermediateState(children);
+					break;
+				case 4:
+					for (int i = 0; i < CONTINUATION_COUNT; i++) {
+						if (isContinuation(lead, 1, 0x80 + i)) {
+							for (int j = 0; j < CONTINUATION_COUNT; j++) {
+								grandchildren[j] = this
+										.supplementaryLastByteState(s,
+												(lead & 0x07) << 18 | i << 12
+														| j << 6);
+							}
+							children[i] = this.intermediateState(grandchildren);
+						} else {
+							children[i] = -1;
+						}
+					}
+					targets[lead] = this.intermediateState(children);
+					break;
+				}
+			}
+
+			return targets;
+		}
+
+		/**
+		 * Returns the state from which the last byte of a sequence leads from
+		 * s on the 64 characters starting at codePoint
+		 */
+		private int lastByteState(int s, int codePoint) {
+			int[] children = new int[CONTINUATION_COUNT];
+			for (int i = 0; i < CONTINUATION_COUNT; i++) {
+				children[i] = this.dfa.transition(s, (char) (codePoint + i));
+			}
+			return this.intermediateState(children);
+		}
+
+		/**
+		 * As lastByteState(), but for the 64 supplementary characters starting
+		 * at codePoint, which share a high surrogate
+		 */
+		private int supplementaryLastByteState(int s, int codePoint) {
+			int offset = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+			int highSurrogateState = this.dfa.transition(s,
+					(char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10)));
+			if (highSurrogateState == CharDfa.ERROR_STATE) {
+				return -1;
+			}
+
+			int chunk = (offset & 0x3FF) / CONTINUATION_COUNT;
+			int state = this.lowSurrogateStates[highSurrogateState][chunk];
+			if (state == -2) {
+				state = this.lastByteState(highSurrogateState,
+						Character.MIN_LOW_SURROGATE + chunk
+								* CONTINUATION_COUNT);
+				this.lowSurrogateStates[highSurrogateState][chunk] = state;
+			}
+			return state;
+		}
+
+		/**
+		 * Returns the id of the intermediate state with the given targets, or
+		 * -1 if it has no transitions
+		 */
+		private int intermediateState(int[] children) {
+			boolean hasTransition = false;
+			for (int child : children) {
+				hasTransition |= child >= 0;
+			}
+			if (!hasTransition) {
+				return -1;
+			}
+
+			Children key = new Children(children);
+			Integer id = this.intermediateIds.get(key);
+			if (id == null) {
+				key = new Children(children.clone());
+				id = this.charStateCount + this.intermediateStates.size();
+				this.intermediateStates.add(key.children);
+				this.intermediateIds.put(key, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * The targets of an intermediate state, as a hash key
+	 */
+	private static class Children {
+		private final int[] children;
+		private final int hashCode;
+
+		public Children(int[] children) {
+			this.children = children;
+			this.hashCode = Arrays.hashCode(children);
+		}
+
+		@Override
+		public boolean equals(Object thatObj) {
+			Children that = Utils.cast(thatObj, Children.class);
+			return that != null && Arrays.equals(this.children, that.children);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+	}
+}
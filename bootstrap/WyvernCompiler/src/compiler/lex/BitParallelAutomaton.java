@@ -0,0 +1,240 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Symbol;
+import compiler.Utils;
+import compiler.automata.CharAutomaton;
+import compiler.automata.CharClassMap;
+import compiler.automata.CharSimulator;
+import compiler.automata.Characters;
+import compiler.automata.SimulatorState;
+
+/**
+ * Simulates the Glushkov automaton of a small set of regexes with bit
+ * operations (Shift-And style). The automaton has one state per position (see
+ * RegexPositions) plus a start state, so when there are fewer than 64
+ * positions the set of active states fits in a single long. Each step ORs
+ * together precomputed follow sets for each byte of the active mask and then
+ * masks out the positions which don't match the character, so a step costs a
+ * handful of table lookups regardless of how many states are active. Nothing
+ * is determinized, so building the automaton is linear in the size of the
+ * regexes.
+ * 
+ * @author Michael
+ */
+public class BitParallelAutomaton<TState> implements CharAutomaton<TState> {
+	/**
+	 * The maximum number of positions, since bit 0 is the start state
+	 */
+	public static final int MAX_POSITIONS = 63;
+
+	private static final int CHUNK_BITS = 8, CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private final CharClassMap classMap;
+	private final long[] classMasks;
+	private final long[][] followTables;
+	private final long finalMask;
+	private final List<TState> values;
+
+	private BitParallelAutomaton(CharClassMap classMap, long[] classMasks,
+			long[][] followTables, long finalMask, List<TState> values) {
+		this.classMap = classMap;
+		this.classMasks = classMasks;
+		this.followTables = followTables;
+		this.finalMask = finalMask;
+		this.values = values;
+	}
+
+	/**
+	 * Creates an automaton which matches the given canonicalized regex parse
+	 * trees, or returns null if they have more than MAX_POSITIONS positions.
+	 * When a string matches several regexes, the value of the one which comes
+	 * first in the map is used.
+	 */
+	public static <TState> BitParallelAutomaton<TState> create(
+			Map<TState, Symbol> regexParseTrees) {
+		RegexPositions positions = new RegexPositions();
+		long firstMask = 0, finalMask = 0;
+		List<TState> values = new ArrayList<TState>();
+		values.add(null);
+		for (Map.Entry<TState, Symbol> entry : regexParseTrees.entrySet()) {
+			RegexPositions.Pattern pattern = positions.add(entry.getValue());
+			if (positions.size() > MAX_POSITIONS) {
+				return null;
+			}
+
+			firstMask |= toMask(pattern.first());
+			finalMask |= toMask(pattern.last());
+			while (values.size() <= positions.size()) {
+				values.add(entry.getKey());
+			}
+			// the start state takes the value of the first nullable regex
+			if (pattern.nullable() && (finalMask & 1L) == 0) {
+				finalMask |= 1L;
+				values.set(0, entry.getKey());
+			}
+		}
+
+		// the follow set of each state. Position p is state p + 1
+		int stateCount = positions.size() + 1;
+		long[] follows = new long[stateCount];
+		follows[0] = firstMask;
+		for (int p = 0; p < positions.size(); p++) {
+			follows[p + 1] = toMask(positions.follow(p));
+		}
+
+		// for each chunk of the active mask, the union of the follow sets of
+		// the states in each possible value of the chunk
+		long[][] followTables = new long[(stateCount + CHUNK_BITS - 1) / CHUNK_BITS][CHUNK_SIZE];
+		for (int chunk = 0; chunk < followTables.length; chunk++) {
+			for (int value = 1; value < CHUNK_SIZE; value++) {
+				int lowBit = Integer.numberOfTrailingZeros(value), state = chunk
+						* CHUNK_BITS + lowBit;
+				followTables[chunk][value] = followTables[chunk][value
+						& (value - 1)]
+						| (state < stateCount ? follows[state] : 0);
+			}
+		}
+
+		// the states which match each character class
+		List<Collection<Character>> charSets = new ArrayList<Collection<Character>>();
+		for (int p = 0; p < positions.size(); p++) {
+			charSets.add(positions.charSet(p));
+		}
+		List<Collection<Character>> classes = new ArrayList<Collection<Character>>(
+				Characters.setOperations().partitionedUnion(charSets));
+		CharClassMap classMap = CharClassMap.fromPartition(classes);
+		long[] classMasks = new long[classMap.classCount()];
+		for (int c = 1; c < classMasks.length; c++) {
+			char ch = Characters.setOperations().min(classes.get(c - 1));
+			for (int p = 0; p < positions.size(); p++) {
+				if (positions.charSet(p).contains(ch)) {
+					classMasks[c] |= 1L << (p + 1);
+				}
+			}
+		}
+
+		return new BitParallelAutomaton<TState>(classMap, classMasks,
+				followTables, finalMask, values);
+	}
+
+	/**
+	 * Converts a set of positions to a mask of states
+	 */
+	private static long toMask(BitSet positions) {
+		long mask = 0;
+		for (int p = positions.nextSetBit(0); p >= 0; p = positions
+				.nextSetBit(p + 1)) {
+			mask |= 1L << (p + 1);
+		}
+		return mask;
+	}
+
+	/**
+	 * The number of states, including the start state
+	 */
+	public int stateCount() {
+		return this.values.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.automata.CharAutomaton#newSimulator()
+	 */
+	@Override
+	public CharSimulator<TState> newSimulator() {
+		return new BitParallelSimulator();
+	}
+
+	private class BitParallelSimulator implements CharSimulator<TState> {
+		private long active = 1L;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.CharSimulator#consume(char)
+		 */
+		@Override
+		public SimulatorState consume(char input) {
+			long[][] followTables = BitParallelAutomaton.this.followTables;
+			long next = 0, active = this.active;
+			for (int chunk = 0; active != 0; chunk++, active >>>= CHUNK_BITS) {
+				next |= followTables[chunk][(int) active & (CHUNK_SIZE - 1)];
+			}
+			this.active = next
+					& BitParallelAutomaton.this.classMasks[BitParallelAutomaton.this.classMap
+							.classOf(input)];
+			return this.simulatorState();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.CharSimulator#stateId()
+		 */
+		@Override
+		public long stateId() {
+			return this.active;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#consume(java.lang.Object)
+		 */
+		@Override
+		public SimulatorState consume(Character input) {
+			return this.consume(input.charValue());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#simulatorState()
+		 */
+		@Override
+		public SimulatorState simulatorState() {
+			if (this.active == 0) {
+				return SimulatorState.Error;
+			}
+			return (this.active & BitParallelAutomaton.this.finalMask) != 0 ? SimulatorState.Accept
+					: SimulatorState.Reject;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#currentValue()
+		 */
+		@Override
+		public TState currentValue() {
+			Utils.check(this.active != 0, "The automaton is in an error state!");
+
+			// positions are numbered in order of precedence, so the lowest
+			// accepting state wins
+			long accepting = this.active & BitParallelAutomaton.this.finalMask;
+			return accepting != 0 ? BitParallelAutomaton.this.values.get(Long
+					.numberOfTrailingZeros(accepting)) : null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.automata.Simulator#reset()
+		 */
+		@Override
+		public SimulatorState reset() {
+			this.active = 1L;
+			return this.simulatorState();
+		}
+	}
+}
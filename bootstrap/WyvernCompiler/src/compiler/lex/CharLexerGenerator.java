@@ -15,6 +15,15 @@ import compiler.*;
  * @author Michael
  */
 public class CharLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
+	/**
+	 * The strings of the Latin-1 characters, so that lexing them doesn't
+	 * allocate
+	 */
+	private static final String[] CHAR_STRINGS = new String[256];
+	static {
+		for (int i = 0; i < CHAR_STRINGS.length; i++)
+			CHAR_STRINGS[i] = String.valueOf((char) i);
+	}
 
 	@Override
 	protected Result generateImpl(final Context context,
@@ -24,6 +33,7 @@ public class CharLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
 			Utils.check(la.pattern().length() <= 1,
 					String.format("Pattern \"%s\" is too long!", la.pattern()));
 
+		final Tables tables = new Tables(allActions, groupedActions);
 		final Lexer lexer = new Lexer() {
 
 			@Override
@@ -39,10 +49,12 @@ public class CharLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
 
 				return new Iterator<Symbol>() {
 					private boolean sentEOF = false;
-					private Deque<String> stateStack = new ArrayDeque<String>(
-							LexerAction.DEFAULT_SET);
-					private LinkedHashMap<String, LexerAction> stateActions = groupedActions
-							.get(Lexer.DEFAULT_STATE);
+					// the ids of the lexer states, from the bottom of the stack
+					// up
+					private int[] stateStack = { tables.defaultState };
+					private int stateCount = 1;
+					private LexerAction[] stateActions = tables.actions[tables.defaultState];
+					private int[] stateEndStates = tables.endStates[tables.defaultState];
 
 					@Override
 					public boolean hasNext() {
@@ -69,44 +81,55 @@ public class CharLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
 										bufferedReader.position());
 							}
 
-							String text = String.valueOf((char) c);
-							LexerAction action = this.stateActions.get(text);
-							if (action == null)
-								action = this.stateActions.get("");
+							// characters past the end of the table only match
+							// the wildcard, which is in the last slot
+							int wildcard = this.stateActions.length - 1, slot = c < wildcard
+									&& this.stateActions[c] != null ? c : wildcard;
+							LexerAction action = this.stateActions[slot];
 
 							if (action == null) {
 								tokenType = context.unrecognizedType();
 							} else {
-								tokenType = action.symbolType();
+								tokenType = action.keywords() == null ? action.symbolType() : action
+										.symbolType(charString(c), 0, 1);
 								switch (action.actionType()) {
 								case Swap:
-									this.stateStack.pop();
+									this.stateCount--;
 									// fall through
 								case Enter:
-									this.stateStack.push(action.endState());
-									this.stateActions = groupedActions
-											.get(action.endState());
+									if (this.stateCount == this.stateStack.length)
+										this.stateStack = Arrays.copyOf(this.stateStack, 2 * this.stateCount);
+									this.stateStack[this.stateCount++] = this.stateEndStates[slot];
+									this.setState();
 									break;
 								case Leave:
-									this.stateStack.pop();
-									this.stateActions = groupedActions
-											.get(this.stateStack.peekFirst());
+									Utils.check(this.stateCount > 1, "Cannot leave the last lexer state!");
+									this.stateCount--;
+									this.setState();
 									break;
 								case None:
 									break;
 								}
 							}
 
-							// if we have a token type, create a token
+							// if we have a token type, create a token. A
+							// character with its own action is that action's
+							// pattern, and other characters are usually cached
 							if (tokenType != null)
-								token = tokenType.createSymbol(text,
-										bufferedReader.lineNumber(),
+								token = tokenType.createSymbol(slot != wildcard ? action.pattern()
+										: charString(c), bufferedReader.lineNumber(),
 										bufferedReader.position());
 						} while (token == null);
 
 						return token;
 					}
 
+					private void setState() {
+						int state = this.stateStack[this.stateCount - 1];
+						this.stateActions = tables.actions[state];
+						this.stateEndStates = tables.endStates[state];
+					}
+
 					@Override
 					public void remove() {
 						throw new UnsupportedOperationException("remove");
@@ -133,4 +156,63 @@ public class CharLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
 			}
 		};
 	}
+
+	/**
+	 * The string of the character, which is only allocated for characters
+	 * past the cache
+	 */
+	private static String charString(int c) {
+		return c < CHAR_STRINGS.length ? CHAR_STRINGS[c] : String.valueOf((char) c);
+	}
+
+	/**
+	 * The actions of each lexer state, by id, indexed by character. The last
+	 * slot of each table holds the wildcard action (the one for the empty
+	 * string), and each table is only as long as needed for the characters
+	 * with their own actions. Along with each action is the id of its end
+	 * state, if any.
+	 */
+	private static class Tables {
+		public final LexerAction[][] actions;
+		public final int[][] endStates;
+		public final int defaultState;
+
+		public Tables(Collection<LexerAction> allActions,
+				Map<String, LinkedHashMap<String, LexerAction>> groupedActions) {
+			Map<String, Integer> ids = new HashMap<String, Integer>();
+			ids.put(Lexer.DEFAULT_STATE, 0);
+			for (String state : groupedActions.keySet())
+				if (!ids.containsKey(state))
+					ids.put(state, ids.size());
+			for (LexerAction action : allActions)
+				if (action.endState() != null && !ids.containsKey(action.endState()))
+					ids.put(action.endState(), ids.size());
+
+			this.actions = new LexerAction[ids.size()][];
+			this.endStates = new int[ids.size()][];
+			this.defaultState = ids.get(Lexer.DEFAULT_STATE);
+			for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+				Map<String, LexerAction> stateActions = groupedActions.get(entry.getKey());
+				if (stateActions == null)
+					stateActions = Collections.emptyMap();
+
+				int wildcard = 0;
+				for (String pattern : stateActions.keySet())
+					if (pattern.length() == 1)
+						wildcard = Math.max(wildcard, pattern.charAt(0) + 1);
+				LexerAction[] table = new LexerAction[wildcard + 1];
+				int[] tableEndStates = new int[wildcard + 1];
+				for (Map.Entry<String, LexerAction> actionEntry : stateActions.entrySet()) {
+					String pattern = actionEntry.getKey();
+					LexerAction action = actionEntry.getValue();
+					int slot = pattern.isEmpty() ? wildcard : pattern.charAt(0);
+					table[slot] = action;
+					if (action.endState() != null)
+						tableEndStates[slot] = ids.get(action.endState());
+				}
+				this.actions[entry.getValue()] = table;
+				this.endStates[entry.getValue()] = tableEndStates;
+			}
+		}
+	}
 }
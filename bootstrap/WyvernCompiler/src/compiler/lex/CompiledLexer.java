@@ -0,0 +1,249 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import compiler.Context;
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+
+/**
+ * The base class of the lexers generated as Java source by
+ * JavaLexerGenerator. The generated class implements lex(char[], int,
+ * TokenWriter), which runs the DFAs as straight-line code, and this class
+ * handles creating the tokens.
+ * 
+ * A compiled lexer lexes the whole input up front, and gives the same tokens
+ * as the RegexLexer generated from the same actions. Since the generated code
+ * needs all of the input in an array, only lex(CharSequence) runs it; reading
+ * the whole of a Reader first would give up streaming, so lex(Reader) uses
+ * that RegexLexer instead.
+ * 
+ * @author Michael
+ */
+public abstract class CompiledLexer implements Lexer {
+	private final Context context;
+	private final LexerAction[] actions;
+	private volatile RegexLexer streamingLexer;
+
+	/**
+	 * The actions must be the ones the lexer was generated from, whose
+	 * patterns are given
+	 */
+	protected CompiledLexer(Context context, List<LexerAction> actions,
+			String[] patterns) {
+		Utils.check(actions.size() == patterns.length,
+				"The lexer was generated from a different number of actions!");
+		this.context = context;
+		this.actions = new LexerAction[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			LexerAction action = actions.get(i);
+			Utils.check(action.pattern().equals(patterns[i]),
+					"The lexer was generated from different actions!");
+			this.actions[i] = action;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.Lexer#isCompiled()
+	 */
+	@Override
+	public boolean isCompiled() {
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.Lexer#lex(java.io.Reader)
+	 */
+	@Override
+	public Iterator<Symbol> lex(Reader reader) {
+		RegexLexer streamingLexer = this.streamingLexer;
+		if (streamingLexer == null) {
+			// racing threads may both build one, but they are the same
+			streamingLexer = (RegexLexer) new RegexLexerGenerator()
+					.generate(
+							this.context,
+							new LinkedHashSet<LexerAction>(Arrays
+									.asList(this.actions))).lexer();
+			this.streamingLexer = streamingLexer;
+		}
+		return streamingLexer.lex(reader);
+	}
+
+	/**
+	 * Lexes the text. As with RegexLexer, the tokens refer to the text rather
+	 * than copying it (see SourceToken).
+	 */
+	public Iterator<Symbol> lex(CharSequence text) {
+		String source = text.toString();
+		TokenWriter tokens = new TokenWriter(source, null);
+		this.lex(source.toCharArray(), source.length(), tokens);
+		return tokens.symbols.iterator();
+	}
+
+	/**
+	 * Lexes the text into the buffer, replacing its contents (see
+	 * RegexLexer.lex(CharSequence, TokenBuffer))
+	 */
+	public void lex(CharSequence text, TokenBuffer buffer) {
+		String source = text.toString();
+		buffer.clear(source);
+		this.lex(source.toCharArray(), source.length(), new TokenWriter(
+				source, buffer));
+	}
+
+	/**
+	 * Lexes chars[0, length), adding the tokens to the writer, ending with
+	 * EOF
+	 */
+	protected abstract void lex(char[] chars, int length, TokenWriter tokens);
+
+	/**
+	 * The failure memo of a lexer state (see FailureMemo), along with the
+	 * trail of states which the current scan has reached since its last
+	 * match. The generated scans report each state they reach, and stop when
+	 * it is known to fail.
+	 * 
+	 * A scan which is split across several methods keeps its progress here
+	 * between them.
+	 */
+	protected static final class ScanMemo {
+		private final FailureMemo memo = new FailureMemo();
+		private long[] trail = new long[16];
+		private int trailLength = 0, trailEnd;
+
+		/**
+		 * The offset which a split scan has read up to, its DFA state and
+		 * its longest match so far
+		 */
+		public int offset, state;
+		public long match;
+
+		public ScanMemo() {
+		}
+
+		/**
+		 * Records that the scan reached the non-accepting state having read
+		 * up to offset. Returns whether the state is known to fail there
+		 */
+		public boolean rejects(int state, int offset) {
+			if (this.trailLength == this.trail.length) {
+				this.trail = Arrays.copyOf(this.trail, 2 * this.trailLength);
+			}
+			this.trail[this.trailLength++] = state;
+			this.trailEnd = offset;
+			return this.memo.contains(state, offset);
+		}
+
+		/**
+		 * Records that the scan reached an accepting state
+		 */
+		public void accept() {
+			this.trailLength = 0;
+		}
+
+		/**
+		 * Records that the scan ended, so every state it reached since its
+		 * last match fails
+		 */
+		public void fail() {
+			this.memo.addAll(this.trail, this.trailLength, this.trailEnd
+					- this.trailLength + 1);
+			this.trailLength = 0;
+		}
+	}
+
+	/**
+	 * Creates the tokens which the generated code matches, tracking lines and
+	 * positions as LineNumberAndPositionBufferedReader does
+	 */
+	protected final class TokenWriter {
+		private final String source;
+		private final TokenBuffer buffer;
+		private final List<Symbol> symbols;
+		private int offset = 0, line = 0, position = 0;
+		private boolean sawLineFeed = true;
+
+		private TokenWriter(String source, TokenBuffer buffer) {
+			this.source = source;
+			this.buffer = buffer;
+			this.symbols = buffer == null ? new ArrayList<Symbol>() : null;
+		}
+
+		/**
+		 * Adds a token for source[start, end) matched by the action with the
+		 * given index, if it has a symbol type (or the text is one of its
+		 * keywords)
+		 */
+		public void add(int action, int start, int end) {
+			SymbolType type = CompiledLexer.this.actions[action].symbolType(
+					this.source, start, end);
+			if (type != null) {
+				this.add(type, start, end);
+			}
+		}
+
+		/**
+		 * Adds an unrecognized token for source[start, end)
+		 */
+		public void addUnrecognized(int start, int end) {
+			this.add(CompiledLexer.this.context.unrecognizedType(), start, end);
+		}
+
+		/**
+		 * Adds EOF, at the line and position of the last character
+		 */
+		public void addEof() {
+			this.advanceTo(this.source.length());
+			SymbolType type = CompiledLexer.this.context.eofType();
+			if (this.buffer != null) {
+				this.buffer.add(type, this.offset, 0, this.line,
+						this.position, this.line, this.position);
+			} else {
+				this.symbols.add(type.createSymbol("", this.line,
+						this.position));
+			}
+		}
+
+		private void add(SymbolType type, int start, int end) {
+			this.advanceTo(start + 1);
+			int line = this.line, position = this.position;
+			this.advanceTo(end);
+			if (this.buffer != null) {
+				this.buffer.add(type, start, end - start, line, position,
+						this.line, this.position);
+			} else {
+				this.symbols.add(new SourceToken(type, this.source, start, end
+						- start, line, position, this.line, this.position));
+			}
+		}
+
+		/**
+		 * Updates the line and position to those of the character before
+		 * offset
+		 */
+		private void advanceTo(int offset) {
+			for (; this.offset < offset; this.offset++) {
+				if (this.sawLineFeed) {
+					this.line++;
+					this.position = 1;
+				} else {
+					this.position++;
+				}
+				this.sawLineFeed = this.source.charAt(this.offset) == '\n';
+			}
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Symbol;
+import compiler.Utils;
+import compiler.automata.CharDfa;
+import compiler.automata.CharSet;
+import compiler.automata.Characters;
+import compiler.automata.Edge;
+import compiler.automata.FiniteAutomaton;
+import compiler.automata.State;
+
+/**
+ * A regex compiled to minimized DFAs for matching outside of a lexer (see
+ * Regex.compile()). Matching never backtracks: matches() and lookingAt() read
+ * each character at most once. find() and findAll() scan forwards from
+ * successive starting positions (for findAll(), those found by one backward
+ * scan), and since a scan can read far past the end of the match it finds,
+ * they share a failure memo between scans (see FailureMemo): a scan which
+ * reaches a state already known to fail at its offset stops there. Each
+ * character is therefore read a bounded number of times, and the time taken
+ * is linear in the length of the input no matter the pattern. Compiled
+ * regexes are immutable and can be shared between threads.
+ * 
+ * Since the regex is matched by a DFA, find() returns the leftmost-longest
+ * match, as in POSIX, rather than the leftmost match of the first alternative
+ * to succeed, as in java.util.regex.
+ * 
+ * @author Michael
+ */
+public class CompiledRegex {
+	private final String pattern;
+	private final CharDfa<Boolean> dfa;
+	/**
+	 * Matches the reverse of any string which ends with a match of the regex,
+	 * which is used to find where matches start by scanning backwards
+	 */
+	private final CharDfa<Boolean> reverseDfa;
+
+	CompiledRegex(String pattern) {
+		Symbol parseTree = Regex.parse(pattern).parseTree();
+		Utils.check(parseTree != null, "Invalid regex " + pattern);
+		this.pattern = pattern;
+
+		FiniteAutomaton.Builder<Boolean, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		Regex.buildGlushkovNfaFor(builder, Boolean.TRUE,
+				Regex.canonicalize(parseTree));
+		FiniteAutomaton<Boolean, Character> nfa = builder.toFiniteAutomaton();
+		LinkedHashSet<Boolean> values = Utils.set(Boolean.TRUE);
+		this.dfa = CharDfa.compile(nfa.toDfa(values).minimize());
+		this.reverseDfa = CharDfa.compile(reverse(nfa).toDfa(values)
+				.minimize());
+	}
+
+	/**
+	 * Builds an NFA for .*R', where R' is the reverse of the given NFA's
+	 * language: a new start state which loops on every character and has
+	 * epsilon edges to the accepting states, with every edge flipped
+	 */
+	private static FiniteAutomaton<Boolean, Character> reverse(
+			FiniteAutomaton<Boolean, Character> nfa) {
+		FiniteAutomaton.Builder<Boolean, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		State<Boolean> startState = builder.newState();
+		Map<State<Boolean>, State<Boolean>> reversedStates = new HashMap<State<Boolean>, State<Boolean>>();
+		for (State<Boolean> state : nfa.states()) {
+			reversedStates.put(state, builder.newState(state.equals(nfa
+					.startState()) ? Boolean.TRUE : null));
+		}
+
+		builder.createEdge(startState, CharSet.all(), startState);
+		for (State<Boolean> state : nfa.states()) {
+			if (state.value() != null) {
+				builder.createEdge(startState, reversedStates.get(state));
+			}
+		}
+		for (Edge<Boolean, Character> edge : nfa.edges()) {
+			builder.createEdge(reversedStates.get(edge.to()),
+					edge.transitionOnSet(), reversedStates.get(edge.from()));
+		}
+
+		return builder.toFiniteAutomaton();
+	}
+
+	public String pattern() {
+		return this.pattern;
+	}
+
+	/**
+	 * Does the regex match the entire input?
+	 */
+	public boolean matches(CharSequence input) {
+		return this.matches(input, 0, input.length());
+	}
+
+	/**
+	 * Does the regex match chars[start, end)?
+	 */
+	public boolean matches(char[] chars, int start, int end) {
+		return this.matches(CharBuffer.wrap(chars), start, end);
+	}
+
+	private boolean matches(CharSequence input, int start, int end) {
+		checkRange(input, start, end);
+		int state = this.dfa.startState();
+		for (int i = start; i < end && state != CharDfa.ERROR_STATE; i++) {
+			state = this.dfa.transition(state, input.charAt(i));
+		}
+		return state != CharDfa.ERROR_STATE && this.dfa.isAccepting(state);
+	}
+
+	/**
+	 * Does the regex match a prefix of the input?
+	 */
+	public boolean lookingAt(CharSequence input) {
+		return new Scanner(input, input.length()).longestMatchEnd(0) >= 0;
+	}
+
+	/**
+	 * Does the regex match a prefix of chars[start, end)?
+	 */
+	public boolean lookingAt(char[] chars, int start, int end) {
+		CharBuffer input = CharBuffer.wrap(chars);
+		checkRange(input, start, end);
+		return new Scanner(input, end).longestMatchEnd(start) >= 0;
+	}
+
+	/**
+	 * Returns the leftmost-longest match in the input, or null
+	 */
+	public Match find(CharSequence input) {
+		return this.find(input, 0);
+	}
+
+	/**
+	 * Returns the leftmost-longest match in the input which starts at or after
+	 * from, or null
+	 */
+	public Match find(CharSequence input, int from) {
+		return this.find(input, from, input.length());
+	}
+
+	/**
+	 * Returns the leftmost-longest match in chars[start, end), or null
+	 */
+	public Match find(char[] chars, int start, int end) {
+		return this.find(CharBuffer.wrap(chars), start, end);
+	}
+
+	private Match find(CharSequence input, int start, int end) {
+		checkRange(input, start, end);
+
+		// the leftmost match starts at the first position from which the
+		// scan succeeds, so nothing past where that scan stops is read
+		Scanner scanner = new Scanner(input, end);
+		for (int matchStart = start; matchStart <= end; matchStart++) {
+			int matchEnd = scanner.longestMatchEnd(matchStart);
+			if (matchEnd >= 0) {
+				return new Match(matchStart, matchEnd);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the successive non-overlapping leftmost-longest matches in the
+	 * input. As in java.util.regex, an empty match is never directly followed
+	 * by another match at the same position. The input is scanned backwards
+	 * once to find where matches start, and the forward scans for the matches
+	 * share a failure memo, so the whole input is processed in linear time.
+	 */
+	public List<Match> findAll(CharSequence input) {
+		return this.findAll(input, 0, input.length());
+	}
+
+	/**
+	 * Returns the successive non-overlapping leftmost-longest matches in
+	 * chars[start, end)
+	 */
+	public List<Match> findAll(char[] chars, int start, int end) {
+		return this.findAll(CharBuffer.wrap(chars), start, end);
+	}
+
+	private List<Match> findAll(CharSequence input, int start, int end) {
+		checkRange(input, start, end);
+
+		// where matches start doesn't depend on where the previous match
+		// ended, so one backwards scan serves every match
+		BitSet matchStarts = this.matchStarts(input, start, end);
+		Scanner scanner = new Scanner(input, end);
+		List<Match> matches = new ArrayList<Match>();
+		int from = start;
+		while (from <= end) {
+			int matchStart = matchStarts.nextSetBit(from);
+			if (matchStart < 0) {
+				break;
+			}
+			Match match = new Match(matchStart,
+					scanner.longestMatchEnd(matchStart));
+			matches.add(match);
+			from = match.end() > match.start() ? match.end() : match.end() + 1;
+		}
+		return matches;
+	}
+
+
+	/**
+	 * Returns the positions in [start, end] at which a match within [start,
+	 * end) starts. Scanning backwards with the reverse DFA, the DFA is
+	 * accepting after reading input[i] exactly when some input[i, j) with j <=
+	 * end matches.
+	 */
+	private BitSet matchStarts(CharSequence input, int start, int end) {
+		BitSet matchStarts = new BitSet(end + 1);
+		int state = this.reverseDfa.startState();
+		if (this.reverseDfa.isAccepting(state)) {
+			matchStarts.set(end);
+		}
+		for (int i = end - 1; i >= start; i--) {
+			state = this.reverseDfa.transition(state, input.charAt(i));
+			if (this.reverseDfa.isAccepting(state)) {
+				matchStarts.set(i);
+			}
+		}
+		return matchStarts;
+	}
+
+	private static void checkRange(CharSequence input, int start, int end) {
+		Utils.check(0 <= start && start <= end && end <= input.length(),
+				"Invalid range!");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.pattern;
+	}
+
+	/**
+	 * Runs forward scans over input[..., end) from increasing starting
+	 * positions. The states which a scan passes through after its last
+	 * accepting state can't reach another one, so they are recorded in the
+	 * memo, and later scans stop as soon as they reach one of them at the same
+	 * offset
+	 */
+	private class Scanner {
+		private final CharSequence input;
+		private final int end;
+		private final FailureMemo memo = new FailureMemo();
+		private long[] trail = new long[16];
+
+		public Scanner(CharSequence input, int end) {
+			this.input = input;
+			this.end = end;
+		}
+
+		/**
+		 * Returns the end of the longest match of the regex which starts at
+		 * start, or -1
+		 */
+		public int longestMatchEnd(int start) {
+			CharDfa<Boolean> dfa = CompiledRegex.this.dfa;
+			int state = dfa.startState(), matchEnd = dfa.isAccepting(state) ? start
+					: -1, trailLength = 0, trailEnd = start;
+			for (int i = start; i < this.end;) {
+				state = dfa.transition(state, this.input.charAt(i++));
+				if (state == CharDfa.ERROR_STATE) {
+					break;
+				}
+				if (dfa.isAccepting(state)) {
+					matchEnd = i;
+					trailLength = 0;
+				} else {
+					if (trailLength == this.trail.length) {
+						this.trail = Arrays.copyOf(this.trail, 2 * trailLength);
+					}
+					this.trail[trailLength++] = state;
+					trailEnd = i;
+					if (this.memo.contains(state, i)) {
+						break;
+					}
+				}
+			}
+
+			// the states on the trail were reached at the offsets up to
+			// trailEnd, and none of them led to a match
+			this.memo.addAll(this.trail, trailLength, trailEnd - trailLength
+					+ 1);
+			return matchEnd;
+		}
+	}
+
+	/**
+	 * The bounds of a match
+	 */
+	public static class Match {
+		private final int start, end;
+
+		private Match(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public int start() {
+			return this.start;
+		}
+
+		public int end() {
+			return this.end;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "[" + this.start + ", " + this.end + ")";
+		}
+	}
+}
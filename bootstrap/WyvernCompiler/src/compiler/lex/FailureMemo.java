@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package compiler.lex;
+
+/**
+ * The memo table of Reps' linear-time maximal munch ("Maximal-munch"
+ * tokenization in linear time, TOPLAS 1998). When the lexer reads past the
+ * end of the longest match and fails, every (state, offset) pair that it
+ * passed through after the match is known to fail: from that state at that
+ * offset, the automaton never reaches another accepting state. If a later
+ * scan reaches one of those pairs, it can fail right away instead of reading
+ * the same characters again. This bounds the number of times each character
+ * is read by a constant, so lexing is linear in the length of the input even
+ * when the lexer has to look far ahead to find out that a long token fails.
+ *
+ * The pairs are kept in an open-addressing hash set. Since scans only move
+ * forward through the input, once a scan starts past every recorded offset,
+ * the table is cleared.
+ *
+ * @author Michael
+ */
+class FailureMemo {
+	private long[] states = new long[16], offsets = new long[16];
+	private boolean[] used = new boolean[16];
+	private int size = 0;
+	private long maxOffset = -1;
+
+	/**
+	 * Is the state known to fail at the given offset?
+	 */
+	public boolean contains(long state, long offset) {
+		if (offset > this.maxOffset) {
+			return false;
+		}
+		int mask = this.used.length - 1;
+		for (int slot = hash(state, offset) & mask; this.used[slot]; slot = (slot + 1)
+				& mask) {
+			if (this.states[slot] == state && this.offsets[slot] == offset) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the given states fail at consecutive offsets starting at
+	 * startOffset
+	 */
+	public void addAll(long[] failedStates, int count, long startOffset) {
+		if (count == 0) {
+			return;
+		}
+
+		// everything recorded so far is behind the scan
+		if (startOffset > this.maxOffset && this.size > 0) {
+			this.clear();
+		}
+		for (int i = 0; i < count; i++) {
+			this.add(failedStates[i], startOffset + i);
+		}
+		this.maxOffset = Math.max(this.maxOffset, startOffset + count - 1);
+	}
+
+	private void add(long state, long offset) {
+		if (2 * (this.size + 1) > this.used.length) {
+			this.resize();
+		}
+		if (this.insert(state, offset)) {
+			this.size++;
+		}
+	}
+
+	private boolean insert(long state, long offset) {
+		int mask = this.used.length - 1;
+		int slot = hash(state, offset) & mask;
+		while (this.used[slot]) {
+			if (this.states[slot] == state && this.offsets[slot] == offset) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.used[slot] = true;
+		this.states[slot] = state;
+		this.offsets[slot] = offset;
+		return true;
+	}
+
+	private void resize() {
+		long[] oldStates = this.states, oldOffsets = this.offsets;
+		boolean[] oldUsed = this.used;
+		this.states = new long[2 * oldUsed.length];
+		this.offsets = new long[2 * oldUsed.length];
+		this.used = new boolean[2 * oldUsed.length];
+		for (int i = 0; i < oldUsed.length; i++) {
+			if (oldUsed[i]) {
+				this.insert(oldStates[i], oldOffsets[i]);
+			}
+		}
+	}
+
+	private void clear() {
+		this.states = new long[16];
+		this.offsets = new long[16];
+		this.used = new boolean[16];
+		this.size = 0;
+		this.maxOffset = -1;
+	}
+
+	private static int hash(long state, long offset) {
+		long h = (state * 0x9E3779B97F4A7C15L) ^ offset;
+		h *= 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
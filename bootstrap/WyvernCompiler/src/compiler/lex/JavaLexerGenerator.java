@@ -0,0 +1,667 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import compiler.Context;
+import compiler.Utils;
+import compiler.automata.CharAutomaton;
+import compiler.automata.CharDfa;
+
+/**
+ * Generates the source of a Java class which lexes the same tokens as the
+ * RegexLexer for a set of actions (see CompiledLexer). The DFA of each lexer
+ * state becomes a method which loops over the input, with a switch case per
+ * DFA state that tests the next character against the ranges leading to each
+ * target state, so the JIT sees straight-line code rather than a table walk.
+ * Large DFAs are split across several such methods.
+ * The lexer states are tracked in an int stack, and entering and leaving them
+ * is done inline.
+ * 
+ * Like RegexLexer, each lexer state has a failure memo (see FailureMemo),
+ * so lexing takes linear time even when the lexer has to look far ahead to
+ * find that a match fails.
+ * 
+ * As a LexerGenerator, it compiles the source in-process with javax.tools
+ * and loads it, which requires a JDK.
+ * 
+ * @author Michael
+ */
+public class JavaLexerGenerator extends LexerGenerator.AbstractLexerGenerator {
+	private static final String CLASS_NAME = "GeneratedLexer";
+	/**
+	 * The most source which the scan of a lexer state generates into one
+	 * method. The source is about four times as long as its bytecode, so this
+	 * keeps each method well under the 8000 bytes which HotSpot will compile
+	 */
+	private static final int MAX_METHOD_SOURCE_LENGTH = 20000;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * compiler.lex.LexerGenerator.AbstractLexerGenerator#generateImpl(compiler
+	 * .Context, java.util.LinkedHashSet, java.util.Map)
+	 */
+	@Override
+	protected Result generateImpl(Context context,
+			LinkedHashSet<LexerAction> allActions,
+			Map<String, LinkedHashMap<String, LexerAction>> groupedActions) {
+		String source = generateSource(context, allActions, null, CLASS_NAME);
+		final CompiledLexer lexer;
+		try {
+			lexer = compile(CLASS_NAME, source).getConstructor(Context.class,
+					List.class).newInstance(context,
+					new ArrayList<LexerAction>(allActions));
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw Utils.err(ex);
+		}
+
+		return new Result() {
+			@Override
+			public List<String> errors() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public List<String> warnings() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public Lexer lexer() {
+				return lexer;
+			}
+		};
+	}
+
+	/**
+	 * Generates the source of a CompiledLexer subclass for the actions. The
+	 * class has a public constructor taking the context and the actions as a
+	 * list. If packageName is null, the class is in the default package.
+	 */
+	public static String generateSource(Context context,
+			LinkedHashSet<LexerAction> actions, String packageName,
+			String className) {
+		RegexLexer regexLexer = (RegexLexer) new RegexLexerGenerator()
+				.generate(context, actions).lexer();
+		List<LexerAction> actionList = new ArrayList<LexerAction>(actions);
+		Map<LexerAction, Integer> actionIndices = new HashMap<LexerAction, Integer>();
+		for (LexerAction action : actionList) {
+			actionIndices.put(action, actionIndices.size());
+		}
+
+		// number the lexer states, starting with the default state
+		Map<String, Integer> lexerStates = new LinkedHashMap<String, Integer>();
+		lexerStates.put(Lexer.DEFAULT_STATE, 0);
+		for (LexerAction action : actionList) {
+			for (String lexerState : action.validStates()) {
+				addLexerState(lexerStates, lexerState);
+			}
+			if (action.endState() != null) {
+				addLexerState(lexerStates, action.endState());
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		if (packageName != null) {
+			sb.append("package ").append(packageName).append(";\n\n");
+		}
+		sb.append("import java.util.Arrays;\n");
+		sb.append("import java.util.List;\n\n");
+		sb.append("import compiler.Context;\n");
+		sb.append("import compiler.Utils;\n");
+		sb.append("import compiler.lex.CompiledLexer;\n");
+		sb.append("import compiler.lex.LexerAction;\n\n");
+		sb.append("/**\n * Generated by JavaLexerGenerator\n */\n");
+		sb.append("public final class ").append(className)
+				.append(" extends CompiledLexer {\n");
+
+		sb.append("\tprivate static final String[] PATTERNS = {");
+		for (int i = 0; i < actionList.size(); i++) {
+			sb.append(i == 0 ? " " : ", ").append(
+					literal(actionList.get(i).pattern()));
+		}
+		sb.append(" };\n\n");
+
+		sb.append("\tpublic ").append(className)
+				.append("(Context context, List<LexerAction> actions) {\n");
+		sb.append("\t\tsuper(context, actions, PATTERNS);\n");
+		sb.append("\t}\n\n");
+
+		appendLex(sb, actionList, lexerStates, regexLexer.automata());
+
+		for (Map.Entry<String, Integer> entry : lexerStates.entrySet()) {
+			CharAutomaton<LexerAction> automaton = regexLexer.automata().get(
+					entry.getKey());
+			if (automaton != null) {
+				Utils.check(automaton instanceof CharDfa,
+						"Only compiled DFAs can be generated as Java!");
+				appendScan(sb, entry.getKey(), entry.getValue(),
+						(CharDfa<LexerAction>) automaton, actionIndices);
+			}
+		}
+
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static void addLexerState(Map<String, Integer> lexerStates,
+			String lexerState) {
+		if (!lexerStates.containsKey(lexerState)) {
+			lexerStates.put(lexerState, lexerStates.size());
+		}
+	}
+
+	/**
+	 * Appends the main loop, which scans for the longest match in the current
+	 * lexer state and then performs its action
+	 */
+	private static void appendLex(StringBuilder sb,
+			List<LexerAction> actions, Map<String, Integer> lexerStates,
+			Map<String, CharAutomaton<LexerAction>> automata) {
+		sb.append("\t@Override\n");
+		sb.append("\tprotected void lex(char[] chars, int length, TokenWriter tokens) {\n");
+		sb.append("\t\tint[] stack = new int[16];\n");
+		sb.append("\t\tint depth = 0, lexerState = 0, start = 0;\n");
+		sb.append("\t\tScanMemo[] memos = new ScanMemo[")
+				.append(lexerStates.size()).append("];\n");
+		sb.append("\t\tfor (int i = 0; i < memos.length; i++) {\n");
+		sb.append("\t\t\tmemos[i] = new ScanMemo();\n");
+		sb.append("\t\t}\n");
+		sb.append("\t\twhile (start < length) {\n");
+		sb.append("\t\t\tlong match;\n");
+		sb.append("\t\t\tswitch (lexerState) {\n");
+		for (Map.Entry<String, Integer> entry : lexerStates.entrySet()) {
+			if (automata.containsKey(entry.getKey())) {
+				sb.append("\t\t\tcase ").append(entry.getValue())
+						.append(":\n");
+				sb.append("\t\t\t\tmatch = scan").append(entry.getValue())
+						.append("(chars, start, length, memos[")
+						.append(entry.getValue()).append("]);\n");
+				sb.append("\t\t\t\tbreak;\n");
+			}
+		}
+		sb.append("\t\t\tdefault:\n");
+		sb.append("\t\t\t\tthrow Utils.err(\"No actions in lexer state \" + lexerState);\n");
+		sb.append("\t\t\t}\n\n");
+
+		sb.append("\t\t\t// with no match, the next character is unrecognized\n");
+		sb.append("\t\t\tif (match < 0) {\n");
+		sb.append("\t\t\t\ttokens.addUnrecognized(start, start + 1);\n");
+		sb.append("\t\t\t\tstart++;\n");
+		sb.append("\t\t\t\tcontinue;\n");
+		sb.append("\t\t\t}\n\n");
+
+		sb.append("\t\t\tint end = (int) match;\n");
+		sb.append("\t\t\tswitch ((int) (match >>> 32)) {\n");
+		for (int i = 0; i < actions.size(); i++) {
+			LexerAction action = actions.get(i);
+			boolean hasToken = action.symbolType() != null;
+			if (!hasToken && action.actionType() == LexerAction.ActionType.None) {
+				// skipped
+				continue;
+			}
+
+			sb.append("\t\t\tcase ").append(i).append(":\n");
+			if (hasToken) {
+				sb.append("\t\t\t\ttokens.add(").append(i)
+						.append(", start, end);\n");
+			}
+			switch (action.actionType()) {
+			case Leave:
+				sb.append("\t\t\t\tif (depth == 0) {\n");
+				sb.append("\t\t\t\t\tthrow Utils.err(\"Cannot leave the last lexer state!\");\n");
+				sb.append("\t\t\t\t}\n");
+				sb.append("\t\t\t\tlexerState = stack[--depth];\n");
+				break;
+			case Swap:
+				// swapping only replaces the current state, so it is allowed
+				// at the bottom of the stack
+				sb.append("\t\t\t\tlexerState = ")
+						.append(lexerStates.get(action.endState()))
+						.append(";\n");
+				break;
+			case Enter:
+				sb.append("\t\t\t\tif (depth == stack.length) {\n");
+				sb.append("\t\t\t\t\tstack = Arrays.copyOf(stack, 2 * depth);\n");
+				sb.append("\t\t\t\t}\n");
+				sb.append("\t\t\t\tstack[depth++] = lexerState;\n");
+				sb.append("\t\t\t\tlexerState = ")
+						.append(lexerStates.get(action.endState()))
+						.append(";\n");
+				break;
+			case None:
+				break;
+			}
+			sb.append("\t\t\t\tbreak;\n");
+		}
+		sb.append("\t\t\t}\n");
+		sb.append("\t\t\tstart = end;\n");
+		sb.append("\t\t}\n\n");
+		sb.append("\t\ttokens.addEof();\n");
+		sb.append("\t}\n");
+	}
+
+	/**
+	 * Appends the method which runs the DFA of a lexer state from start. It
+	 * returns the index of the longest match's action in the high 32 bits and
+	 * the match's end in the low 32 bits, or -1 if nothing matches. The scan
+	 * stops as soon as it reaches a state which the lexer state's memo knows
+	 * to fail.
+	 * 
+	 * A method's bytecode can't be over 64KB, and HotSpot won't JIT compile
+	 * one over 8000 bytes, so a DFA whose states don't fit in
+	 * MAX_METHOD_SOURCE_LENGTH is split into methods which each run a group
+	 * of consecutive states. When the scan moves to a state in another group,
+	 * it saves its progress in the memo and returns to the scan method, which
+	 * calls that group's method.
+	 */
+	private static void appendScan(StringBuilder sb, String lexerState,
+			int lexerStateId, CharDfa<LexerAction> dfa,
+			Map<LexerAction, Integer> actionIndices) {
+		// the ranges of characters in each class
+		List<List<int[]>> classRanges = new ArrayList<List<int[]>>();
+		for (int c = 0; c < dfa.classCount(); c++) {
+			classRanges.add(new ArrayList<int[]>());
+		}
+		for (int ch = 0, rangeStart = 0; ch <= Character.MAX_VALUE; ch++) {
+			int charClass = dfa.classOf((char) ch);
+			if (ch == Character.MAX_VALUE
+					|| dfa.classOf((char) (ch + 1)) != charClass) {
+				classRanges.get(charClass).add(new int[] { rangeStart, ch });
+				rangeStart = ch + 1;
+			}
+		}
+
+		// the ranges leading to each target of each state, in order of first
+		// appearance
+		List<Map<Integer, List<int[]>>> transitions = new ArrayList<Map<Integer, List<int[]>>>();
+		for (int s = 0; s < dfa.stateCount(); s++) {
+			Map<Integer, List<int[]>> targetRanges = new LinkedHashMap<Integer, List<int[]>>();
+			for (int c = 0; c < dfa.classCount(); c++) {
+				List<int[]> ranges = classRanges.get(c);
+				if (ranges.isEmpty()) {
+					continue;
+				}
+				int target = dfa.transition(s, (char) ranges.get(0)[0]);
+				if (target != CharDfa.ERROR_STATE) {
+					List<int[]> targetRangeList = targetRanges.get(target);
+					if (targetRangeList == null) {
+						targetRanges.put(target,
+								targetRangeList = new ArrayList<int[]>());
+					}
+					targetRangeList.addAll(ranges);
+				}
+			}
+			transitions.add(targetRanges);
+		}
+
+		// group the states. A state's code is longest when all of its targets
+		// are in other groups, so that bounds the length of each method
+		List<Integer> groupStarts = new ArrayList<Integer>();
+		for (int s = 0, length = 0; s < dfa.stateCount(); s++) {
+			StringBuilder stateSource = new StringBuilder();
+			appendState(stateSource, dfa, s, transitions.get(s),
+					actionIndices, s, s);
+			if (groupStarts.isEmpty()
+					|| length + stateSource.length() > MAX_METHOD_SOURCE_LENGTH) {
+				groupStarts.add(s);
+				length = 0;
+			}
+			length += stateSource.length();
+		}
+		groupStarts.add(dfa.stateCount());
+
+		sb.append("\n\t/**\n\t * ").append(escape(lexerState))
+				.append("\n\t */\n");
+		sb.append("\tprivate static long scan").append(lexerStateId)
+				.append("(char[] chars, int start, int length, ScanMemo memo) {\n");
+		if (groupStarts.size() == 2) {
+			// the whole DFA fits in the scan method
+			sb.append("\t\tint p = start, state = ")
+					.append(dfa.startState()).append(";\n");
+			sb.append("\t\tlong match = -1L;\n");
+			appendStates(sb, dfa, transitions, actionIndices, 0,
+					dfa.stateCount());
+			sb.append("\t\tmemo.fail();\n");
+			sb.append("\t\treturn match;\n");
+			sb.append("\t}\n");
+			return;
+		}
+
+		sb.append("\t\tmemo.offset = start;\n");
+		sb.append("\t\tmemo.state = ").append(dfa.startState())
+				.append(";\n");
+		sb.append("\t\tmemo.match = -1L;\n");
+		sb.append("\t\tboolean more;\n");
+		sb.append("\t\tdo {\n");
+		appendGroupSearch(sb, lexerStateId, groupStarts, 0,
+				groupStarts.size() - 1, "\t\t\t");
+		sb.append("\t\t} while (more);\n");
+		sb.append("\t\tmemo.fail();\n");
+		sb.append("\t\treturn memo.match;\n");
+		sb.append("\t}\n");
+
+		for (int g = 0; g < groupStarts.size() - 1; g++) {
+			sb.append("\n\t/**\n\t * ").append(escape(lexerState))
+					.append(", states ").append(groupStarts.get(g))
+					.append(" to ").append(groupStarts.get(g + 1) - 1)
+					.append("\n\t */\n");
+			sb.append("\tprivate static boolean scan").append(lexerStateId)
+					.append('_').append(g)
+					.append("(char[] chars, int start, int length, ScanMemo memo) {\n");
+			sb.append("\t\tint p = memo.offset, state = memo.state;\n");
+			sb.append("\t\tlong match = memo.match;\n");
+			appendStates(sb, dfa, transitions, actionIndices,
+					groupStarts.get(g), groupStarts.get(g + 1));
+			sb.append("\t\tmemo.match = match;\n");
+			sb.append("\t\treturn false;\n");
+			sb.append("\t}\n");
+		}
+	}
+
+	/**
+	 * Appends a binary search of the groups in [from, to) for the one holding
+	 * the scan's state, which calls that group's method
+	 */
+	private static void appendGroupSearch(StringBuilder sb, int lexerStateId,
+			List<Integer> groupStarts, int from, int to, String indent) {
+		if (to - from == 1) {
+			sb.append(indent).append("more = scan").append(lexerStateId)
+					.append('_').append(from)
+					.append("(chars, start, length, memo);\n");
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		sb.append(indent).append("if (memo.state < ")
+				.append(groupStarts.get(middle)).append(") {\n");
+		appendGroupSearch(sb, lexerStateId, groupStarts, from, middle, indent
+				+ "\t");
+		sb.append(indent).append("} else {\n");
+		appendGroupSearch(sb, lexerStateId, groupStarts, middle, to, indent
+				+ "\t");
+		sb.append(indent).append("}\n");
+	}
+
+	/**
+	 * Appends the loop which runs the DFA through the states in [groupStart,
+	 * groupEnd), leaving it at the end of the scan
+	 */
+	private static void appendStates(StringBuilder sb,
+			CharDfa<LexerAction> dfa,
+			List<Map<Integer, List<int[]>>> transitions,
+			Map<LexerAction, Integer> actionIndices, int groupStart,
+			int groupEnd) {
+		sb.append("\t\tchar c;\n");
+		sb.append("\t\tscan: while (true) {\n");
+		sb.append("\t\t\tswitch (state) {\n");
+		for (int s = groupStart; s < groupEnd; s++) {
+			appendState(sb, dfa, s, transitions.get(s), actionIndices,
+					groupStart, groupEnd);
+		}
+		sb.append("\t\t\t}\n");
+		sb.append("\t\t}\n");
+	}
+
+	/**
+	 * Appends the case for a DFA state, which records its match or checks
+	 * the memo and then moves to the target of the next character. A target
+	 * outside of [groupStart, groupEnd) is run by another method, so the scan
+	 * saves its progress and returns true.
+	 */
+	private static void appendState(StringBuilder sb,
+			CharDfa<LexerAction> dfa, int s,
+			Map<Integer, List<int[]>> targetRanges,
+			Map<LexerAction, Integer> actionIndices, int groupStart,
+			int groupEnd) {
+		sb.append("\t\t\tcase ").append(s).append(":\n");
+		String indent = "\t\t\t\t";
+		if (dfa.isAccepting(s)) {
+			// matches are never empty, so the start state only accepts
+			// once it has been returned to
+			if (s == dfa.startState()) {
+				sb.append(indent).append("if (p > start) {\n");
+				indent += "\t";
+			}
+			sb.append(indent).append("match = (long) ")
+					.append(actionIndices.get(dfa.value(s)))
+					.append(" << 32 | p;\n");
+			sb.append(indent).append("memo.accept();\n");
+			if (s == dfa.startState()) {
+				sb.append("\t\t\t\t}\n");
+			}
+		} else if (s == dfa.startState()) {
+			sb.append("\t\t\t\tif (p > start && memo.rejects(").append(s)
+					.append(", p)) {\n");
+			sb.append("\t\t\t\t\tbreak scan;\n");
+			sb.append("\t\t\t\t}\n");
+		} else {
+			sb.append("\t\t\t\tif (memo.rejects(").append(s)
+					.append(", p)) {\n");
+			sb.append("\t\t\t\t\tbreak scan;\n");
+			sb.append("\t\t\t\t}\n");
+		}
+
+		if (targetRanges.isEmpty()) {
+			sb.append("\t\t\t\tbreak scan;\n");
+			return;
+		}
+
+		sb.append("\t\t\t\tif (p == length) {\n");
+		sb.append("\t\t\t\t\tbreak scan;\n");
+		sb.append("\t\t\t\t}\n");
+		sb.append("\t\t\t\tc = chars[p++];\n");
+		for (Map.Entry<Integer, List<int[]>> entry : targetRanges.entrySet()) {
+			int target = entry.getKey();
+			sb.append("\t\t\t\tif (").append(condition(entry.getValue()))
+					.append(") {\n");
+			if (target >= groupStart && target < groupEnd) {
+				sb.append("\t\t\t\t\tstate = ").append(target).append(";\n");
+				sb.append("\t\t\t\t\tcontinue;\n");
+			} else {
+				sb.append("\t\t\t\t\tmemo.offset = p;\n");
+				sb.append("\t\t\t\t\tmemo.state = ").append(target)
+						.append(";\n");
+				sb.append("\t\t\t\t\tmemo.match = match;\n");
+				sb.append("\t\t\t\t\treturn true;\n");
+			}
+			sb.append("\t\t\t\t}\n");
+		}
+		sb.append("\t\t\t\tbreak scan;\n");
+	}
+
+	/**
+	 * Returns a condition which tests whether c is in any of the ranges
+	 */
+	private static String condition(List<int[]> ranges) {
+		// merge adjacent ranges, which come from different classes
+		Collections.sort(ranges, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return a[0] - b[0];
+			}
+		});
+		List<int[]> merged = new ArrayList<int[]>();
+		for (int[] range : ranges) {
+			int[] last = merged.isEmpty() ? null : merged
+					.get(merged.size() - 1);
+			if (last != null && last[1] + 1 == range[0]) {
+				last[1] = range[1];
+			} else {
+				merged.add(new int[] { range[0], range[1] });
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int[] range : merged) {
+			if (sb.length() > 0) {
+				sb.append(" || ");
+			}
+			if (range[0] == range[1]) {
+				sb.append("c == ").append(charLiteral(range[0]));
+			} else if (range[0] == 0) {
+				sb.append("c <= ").append(charLiteral(range[1]));
+			} else if (range[1] == Character.MAX_VALUE) {
+				sb.append("c >= ").append(charLiteral(range[0]));
+			} else {
+				sb.append("(c >= ").append(charLiteral(range[0]))
+						.append(" && c <= ").append(charLiteral(range[1]))
+						.append(")");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Printable ASCII characters are written as char literals, and the rest
+	 * as numbers
+	 */
+	private static String charLiteral(int ch) {
+		if (ch >= ' ' && ch <= '~' && ch != '\'' && ch != '\\') {
+			return "'" + (char) ch + "'";
+		}
+		return String.valueOf(ch);
+	}
+
+	private static String literal(String value) {
+		return '"' + escape(value) + '"';
+	}
+
+	/**
+	 * Escapes the text for a string literal or comment. Line terminators,
+	 * quotes and backslashes are escaped so that unicode escapes can't
+	 * produce them when the source is compiled.
+	 */
+	private static String escape(String text) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			switch (ch) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (ch >= ' ' && ch <= '~') {
+					sb.append(ch);
+				} else {
+					sb.append(String.format("\\u%04x", (int) ch));
+				}
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compiles the source of the class with the given fully qualified name
+	 * in-process, using the class path of the running program, and loads it
+	 * with a new class loader
+	 */
+	public static Class<? extends CompiledLexer> compile(String className,
+			final String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Utils.check(compiler != null,
+				"Compiling lexers requires a Java compiler!");
+
+		// keep the class files in memory
+		final Map<String, ByteArrayOutputStream> classFiles = new HashMap<String, ByteArrayOutputStream>();
+		StandardJavaFileManager standardFileManager = compiler
+				.getStandardFileManager(null, null, null);
+		JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(
+				standardFileManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location,
+					final String outputClassName, Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///"
+						+ outputClassName.replace('.', '/') + kind.extension),
+						kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream stream = new ByteArrayOutputStream();
+						classFiles.put(outputClassName, stream);
+						return stream;
+					}
+				};
+			}
+		};
+		JavaFileObject sourceFile = new SimpleJavaFileObject(
+				URI.create("string:///" + className.replace('.', '/')
+						+ Kind.SOURCE.extension), Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		StringWriter output = new StringWriter();
+		boolean succeeded = compiler.getTask(
+				output,
+				fileManager,
+				null,
+				Arrays.asList("-classpath",
+						System.getProperty("java.class.path")), null,
+				Arrays.asList(sourceFile)).call();
+		Utils.check(succeeded, "Failed to compile " + className + ": "
+				+ output);
+
+		ClassLoader classLoader = new ClassLoader(
+				CompiledLexer.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String name)
+					throws ClassNotFoundException {
+				ByteArrayOutputStream classFile = classFiles.get(name);
+				if (classFile == null) {
+					throw new ClassNotFoundException(name);
+				}
+				byte[] bytes = classFile.toByteArray();
+				return this.defineClass(name, bytes, 0, bytes.length);
+			}
+		};
+		try {
+			return classLoader.loadClass(className).asSubclass(
+					CompiledLexer.class);
+		} catch (ClassNotFoundException ex) {
+			throw Utils.err(ex);
+		}
+	}
+}
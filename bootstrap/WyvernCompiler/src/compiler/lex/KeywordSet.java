@@ -0,0 +1,281 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.SymbolType;
+import compiler.Utils;
+
+/**
+ * The keywords of an identifier action (see LexerAction.lexToken(Set, String,
+ * SymbolType, Map)), each with its own symbol type. Rather than the lexer's
+ * DFA matching each keyword, it matches just the identifier, and its text is
+ * then looked up here.
+ * 
+ * The lookup uses a minimal perfect hash: one 64 bit hash of the text picks a
+ * bucket, whose displacement (found when the set is created) combines with
+ * the hash to give the one slot which the text could be in. The text is then
+ * compared with the keyword in that slot. Nothing is allocated.
+ * 
+ * @author Michael
+ */
+public final class KeywordSet {
+	/**
+	 * How many displacements to try for a bucket before choosing a new seed
+	 */
+	private static final int MAX_DISPLACEMENT_TRIES = 1 << 12, MAX_SEEDS = 1 << 10;
+
+	private final Map<String, SymbolType> keywordTypes;
+	private final long seed;
+	private final int[] displacements;
+	/**
+	 * The keyword in each slot, as the code units the lexer reads, and its
+	 * type
+	 */
+	private final char[][] keywords;
+	private final SymbolType[] types;
+	private final int maxLength;
+	/**
+	 * The set for lexing UTF-8 bytes, which is this set if the keywords are
+	 * ASCII
+	 */
+	private final KeywordSet utf8;
+
+	private KeywordSet(Map<String, SymbolType> keywordTypes, char[][] units,
+			boolean isUtf8) {
+		this.keywordTypes = keywordTypes;
+		int count = units.length, maxLength = 0;
+		for (char[] keyword : units) {
+			maxLength = Math.max(maxLength, keyword.length);
+		}
+		this.maxLength = maxLength;
+		this.displacements = new int[Math.max(1, count)];
+		this.keywords = new char[count][];
+		this.types = new SymbolType[count];
+
+		SymbolType[] unitTypes = keywordTypes.values().toArray(
+				new SymbolType[count]);
+		long seed = 0;
+		while (!this.tryBuild(seed, units, unitTypes)) {
+			// only keywords with the same code units can't be placed
+			Utils.check(++seed < MAX_SEEDS, "Could not hash the keywords "
+					+ keywordTypes.keySet());
+		}
+		this.seed = seed;
+
+		this.utf8 = isUtf8 || isAscii(units) ? this : new KeywordSet(
+				keywordTypes, utf8Units(keywordTypes.keySet()), true);
+	}
+
+	/**
+	 * Creates a set of the given keywords, each of which is lexed as the
+	 * given type. The types must be terminals.
+	 */
+	public static KeywordSet create(Map<String, SymbolType> keywordTypes) {
+		Map<String, SymbolType> copy = Collections
+				.unmodifiableMap(new LinkedHashMap<String, SymbolType>(
+						keywordTypes));
+		char[][] units = new char[copy.size()][];
+		int i = 0;
+		for (Map.Entry<String, SymbolType> entry : copy.entrySet()) {
+			Utils.check(entry.getValue() != null
+					&& entry.getValue().isTerminal(),
+					"Keywords must have terminal symbol types!");
+			units[i++] = entry.getKey().toCharArray();
+		}
+		return new KeywordSet(copy, units, false);
+	}
+
+	/**
+	 * The keywords and their types
+	 */
+	public Map<String, SymbolType> keywordTypes() {
+		return this.keywordTypes;
+	}
+
+	/**
+	 * The type of the keyword text[start, end), or null if it isn't one
+	 */
+	public SymbolType get(CharSequence text, int start, int end) {
+		int length = end - start;
+		if (length > this.maxLength || this.keywords.length == 0) {
+			return null;
+		}
+
+		long hash = this.seed;
+		for (int i = start; i < end; i++) {
+			hash = step(hash, text.charAt(i));
+		}
+		int slot = this.slot(hash);
+
+		char[] keyword = this.keywords[slot];
+		if (keyword.length != length) {
+			return null;
+		}
+		for (int i = 0; i < length; i++) {
+			if (keyword[i] != text.charAt(start + i)) {
+				return null;
+			}
+		}
+		return this.types[slot];
+	}
+
+	/**
+	 * The type of the keyword text, or null if it isn't one
+	 */
+	public SymbolType get(CharSequence text) {
+		return this.get(text, 0, text.length());
+	}
+
+	/**
+	 * The set for a lexer which reads UTF-8 bytes as chars from 0 to 255 (see
+	 * RegexLexer.lex(ByteBuffer)), whose keywords are the UTF-8 encodings of
+	 * these
+	 */
+	KeywordSet utf8() {
+		return this.utf8;
+	}
+
+	private static boolean isAscii(char[][] units) {
+		for (char[] keyword : units) {
+			for (char ch : keyword) {
+				if (ch > 0x7F) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static char[][] utf8Units(Collection<String> keywords) {
+		char[][] units = new char[keywords.size()][];
+		int i = 0;
+		for (String keyword : keywords) {
+			byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+			units[i] = new char[bytes.length];
+			for (int j = 0; j < bytes.length; j++) {
+				units[i][j] = (char) (bytes[j] & 0xFF);
+			}
+			i++;
+		}
+		return units;
+	}
+
+	/**
+	 * Tries to place every keyword using the given seed, placing the largest
+	 * buckets first
+	 */
+	private boolean tryBuild(long seed, char[][] units, SymbolType[] unitTypes) {
+		Arrays.fill(this.keywords, null);
+		long[] hashes = new long[units.length];
+		final List<List<Integer>> buckets = new ArrayList<List<Integer>>();
+		for (int i = 0; i < this.displacements.length; i++) {
+			buckets.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < units.length; i++) {
+			long hash = seed;
+			for (char ch : units[i]) {
+				hash = step(hash, ch);
+			}
+			hashes[i] = hash;
+			buckets.get(this.bucket(hash)).add(i);
+		}
+
+		List<Integer> bucketOrder = new ArrayList<Integer>();
+		for (int i = 0; i < buckets.size(); i++) {
+			bucketOrder.add(i);
+		}
+		Collections.sort(bucketOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return buckets.get(b).size() - buckets.get(a).size();
+			}
+		});
+
+		int[] slots = new int[units.length];
+		for (int bucket : bucketOrder) {
+			List<Integer> members = buckets.get(bucket);
+			if (members.isEmpty()) {
+				break;
+			}
+
+			boolean placed = false;
+			for (int displacement = 0; displacement < MAX_DISPLACEMENT_TRIES
+					&& !placed; displacement++) {
+				this.displacements[bucket] = displacement;
+				placed = true;
+				for (int i = 0; i < members.size() && placed; i++) {
+					slots[i] = this.slot(hashes[members.get(i)]);
+					placed = this.keywords[slots[i]] == null;
+					for (int j = 0; j < i && placed; j++) {
+						placed = slots[j] != slots[i];
+					}
+				}
+			}
+			if (!placed) {
+				return false;
+			}
+			for (int i = 0; i < members.size(); i++) {
+				this.keywords[slots[i]] = units[members.get(i)];
+				this.types[slots[i]] = unitTypes[members.get(i)];
+			}
+		}
+		return true;
+	}
+
+	private static long step(long hash, char ch) {
+		// FNV-1a
+		return (hash ^ ch) * 0x100000001B3L;
+	}
+
+	private int bucket(long hash) {
+		return (int) ((hash >>> 33) % this.displacements.length);
+	}
+
+	private int slot(long hash) {
+		long mixed = (hash ^ (hash >>> 29)) + this.displacements[this.bucket(hash)]
+				* ((hash >>> 32) | 1);
+		return (int) ((mixed & Long.MAX_VALUE) % this.keywords.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object thatObj) {
+		KeywordSet that = Utils.cast(thatObj, KeywordSet.class);
+		return that != null && that.keywordTypes.equals(this.keywordTypes);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return this.keywordTypes.hashCode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.keywordTypes.keySet().toString();
+	}
+}
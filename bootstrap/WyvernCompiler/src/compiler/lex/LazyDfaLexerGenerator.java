@@ -0,0 +1,63 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import compiler.Symbol;
+import compiler.automata.CharAutomaton;
+import compiler.automata.FiniteAutomaton;
+import compiler.automata.LazyCharDfa;
+
+/**
+ * A regex lexer generator which skips the subset construction. The NFA for
+ * each lexer state is kept as is, and DFA states are built lazily as the lexer
+ * reaches them (see LazyCharDfa). This makes generation nearly free for
+ * lexers with many patterns, at the cost of building states while lexing the
+ * first few inputs.
+ * 
+ * Lexer states whose regexes are small enough skip even that, and are
+ * simulated bit-parallel over their Glushkov automata (see
+ * BitParallelAutomaton).
+ * 
+ * @author Michael
+ */
+public class LazyDfaLexerGenerator extends RegexLexerGenerator {
+	private final int maxCachedStates;
+
+	public LazyDfaLexerGenerator() {
+		this(LazyCharDfa.DEFAULT_MAX_STATES);
+	}
+
+	/**
+	 * Creates a generator whose lexers cache at most maxCachedStates DFA
+	 * states per lexer state and thread
+	 */
+	public LazyDfaLexerGenerator(int maxCachedStates) {
+		super(false);
+		this.maxCachedStates = maxCachedStates;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * compiler.lex.RegexLexerGenerator#buildAutomaton(compiler.automata.FiniteAutomaton
+	 * , java.util.LinkedHashMap, java.util.LinkedHashSet)
+	 */
+	@Override
+	protected CharAutomaton<LexerAction> buildAutomaton(
+			FiniteAutomaton<LexerAction, Character> nfa,
+			LinkedHashMap<LexerAction, Symbol> regexParseTrees,
+			LinkedHashSet<LexerAction> allActions) {
+		CharAutomaton<LexerAction> bitParallel = BitParallelAutomaton
+				.create(regexParseTrees);
+		if (bitParallel != null) {
+			return bitParallel;
+		}
+		return new LazyCharDfa<LexerAction>(nfa, allActions,
+				this.maxCachedStates);
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+
+/**
+ * A text lexed by a RegexLexer, which can be re-lexed incrementally after an
+ * edit (see RegexLexer.lexDocument()). This is meant for editors, which would
+ * otherwise re-lex the whole text on every keystroke.
+ * 
+ * Along with each token, the document records the lexer states in which the
+ * match that produced it started, and how far into the text the lexer had
+ * read (including lookahead) before that match started. Lexing from a token
+ * in its lexer states always reproduces the rest of the tokens, so after an
+ * edit, lexing restarts from the last token whose match started before the
+ * lexer had read any of the edited text. Once it produces a token past the
+ * edit which starts at the same place in the text as an old token, in the
+ * same lexer states, the rest of the old tokens are reused, shifted to
+ * account for the edit. The amount of lexing therefore depends on the size
+ * of the edit (and on how far lookahead and lexer states carry its effects),
+ * not on the size of the text.
+ * 
+ * The tokens are kept in columns of primitive arrays, and the Symbols
+ * returned by tokens() are created when they are accessed.
+ * 
+ * @author Michael
+ */
+public class LexedDocument {
+	private final RegexLexer lexer;
+	private final String text;
+	private final Columns columns;
+	private final int relexedTokenCount;
+
+	private LexedDocument(RegexLexer lexer, String text, Columns columns,
+			int relexedTokenCount) {
+		this.lexer = lexer;
+		this.text = text;
+		this.columns = columns;
+		this.relexedTokenCount = relexedTokenCount;
+	}
+
+	/**
+	 * Lexes the whole text
+	 */
+	static LexedDocument lex(RegexLexer lexer, CharSequence text) {
+		String source = text.toString();
+		Columns columns = new Columns(16);
+		int lexedTokenCount = lex(lexer, source, 0, 1, 1,
+				LexerStateStack.initial(), 0, columns, null, 0, 0, 0);
+		return new LexedDocument(lexer, source, columns, lexedTokenCount);
+	}
+
+	/**
+	 * Returns the document which results from replacing the deletedLength
+	 * characters at offset with insertedText, re-lexing as little as
+	 * possible.
+	 */
+	public LexedDocument edit(int offset, int deletedLength,
+			CharSequence insertedText) {
+		Utils.check(offset >= 0 && deletedLength >= 0
+				&& offset + deletedLength <= this.text.length(),
+				"Invalid edit!");
+		String newText = new StringBuilder(this.text.length()
+				- deletedLength + insertedText.length())
+				.append(this.text, 0, offset).append(insertedText)
+				.append(this.text, offset + deletedLength, this.text.length())
+				.toString();
+
+		// find the last token whose match started before any of the edited
+		// text was read. The reaches never decrease
+		Columns old = this.columns;
+		int low = 0, high = old.count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (old.reaches[middle] > offset) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		int restart = low - 1;
+
+		// the tokens before it are unchanged
+		Columns columns = new Columns(old.count + 16);
+		if (restart < 0) {
+			// even the first token depends on the edited text
+			return new LexedDocument(this.lexer, newText, columns, lex(
+					this.lexer, newText, 0, 1, 1, LexerStateStack.initial(), 0,
+					columns, old, 0, offset + insertedText.length(),
+					insertedText.length() - deletedLength));
+		}
+		// if the restart token is EOF and nothing was inserted after it, there
+		// is nothing to read, and EOF stays on the last character. The reader
+		// couldn't work out that character's position if it ends a line
+		if (restart == old.count - 1 && old.starts[restart] == newText.length()) {
+			columns.addAll(old, 0, old.count);
+			return new LexedDocument(this.lexer, newText, columns, 0);
+		}
+		columns.addAll(old, 0, restart);
+
+		// find the line and position of the character where the restart
+		// token starts. For EOF, the token's line and position are those of
+		// the last character, so they have to be worked out
+		int start = old.starts[restart], line = old.lines[restart], position = old.positions[restart];
+		if (restart == old.count - 1) {
+			if (start == 0) {
+				line = position = 1;
+			} else if (this.text.charAt(start - 1) == '\n') {
+				line++;
+				position = 1;
+			} else {
+				position++;
+			}
+		}
+
+		// the lexer had already read up to the restart token's reach, so
+		// lexing continues from there. Otherwise the new reaches could be
+		// less than those of the tokens before them
+		int lexedTokenCount = lex(this.lexer, newText, start, line, position,
+				old.lexerStates[restart], old.reaches[restart], columns, old,
+				restart, offset
+						+ insertedText.length(), insertedText.length()
+						- deletedLength);
+		return new LexedDocument(this.lexer, newText, columns, lexedTokenCount);
+	}
+
+	/**
+	 * Lexes the text from start, whose first character is at the given line
+	 * and position, in the given lexer states, adding the tokens to columns.
+	 * The text before reach had already been read when lexing reached start.
+	 * If old is non-null, the text is an edit of old's text which shifted
+	 * the text at and after insertEnd by delta, and lexing stops as soon as
+	 * the rest of the old tokens, from oldIndex on, can be reused. Returns
+	 * the number of tokens lexed.
+	 */
+	private static int lex(RegexLexer lexer, String text, int start, int line,
+			int position, LexerStateStack lexerStates, int reach,
+			Columns columns, Columns old, int oldIndex, int insertEnd,
+			int delta) {
+		char[] chars = text.toCharArray();
+		RegexLexer.TokenIterator tokens = lexer.new TokenIterator(
+				new LineNumberAndPositionBufferedReader(chars, start,
+						chars.length, line, position),
+				lexer.automata(), text, lexerStates, start, reach);
+		int lexedTokenCount = 0;
+		while (true) {
+			Symbol token = tokens.next();
+			lexedTokenCount++;
+			boolean isEof = !tokens.hasNext();
+			int tokenStart = isEof ? text.length() : ((SourceToken) token)
+					.start();
+
+			// the old token which starts at the same place after the edit
+			if (old != null && !isEof && tokenStart >= insertEnd) {
+				while (oldIndex < old.count
+						&& old.starts[oldIndex] < tokenStart - delta) {
+					oldIndex++;
+				}
+				if (oldIndex < old.count
+						&& old.starts[oldIndex] == tokenStart - delta
+						&& old.lexerStates[oldIndex].equals(tokens
+								.lastTokenLexerStates())) {
+					columns.addShifted(old, oldIndex, delta, token.line()
+							- old.lines[oldIndex], token.position()
+							- old.positions[oldIndex],
+							(int) tokens.lastTokenReach());
+					return lexedTokenCount - 1;
+				}
+			}
+
+			columns.add(token.type(), tokenStart, isEof ? 0
+					: ((SourceToken) token).length(), token.line(), token
+					.position(), token.endLine(), token.endPosition(),
+					tokens.lastTokenLexerStates(),
+					(int) tokens.lastTokenReach());
+			if (isEof) {
+				return lexedTokenCount;
+			}
+		}
+	}
+
+	/**
+	 * The lexer which lexed the document
+	 */
+	public RegexLexer lexer() {
+		return this.lexer;
+	}
+
+	public String text() {
+		return this.text;
+	}
+
+	/**
+	 * The tokens, ending with EOF. The tokens refer to the text (see
+	 * SourceToken).
+	 */
+	public List<Symbol> tokens() {
+		return new AbstractList<Symbol>() {
+			@Override
+			public Symbol get(int index) {
+				Columns columns = LexedDocument.this.columns;
+				Utils.check(index >= 0 && index < columns.count,
+						"Invalid index!");
+				return new SourceToken(columns.types[index],
+						LexedDocument.this.text, columns.starts[index],
+						columns.lengths[index], columns.lines[index],
+						columns.positions[index], columns.endLines[index],
+						columns.endPositions[index]);
+			}
+
+			@Override
+			public int size() {
+				return LexedDocument.this.columns.count;
+			}
+		};
+	}
+
+	/**
+	 * The lexer states, from the bottom of the stack to the top, in which the
+	 * match that produced the given token started
+	 */
+	public List<String> lexerStates(int tokenIndex) {
+		Utils.check(tokenIndex >= 0 && tokenIndex < this.columns.count,
+				"Invalid index!");
+		return this.columns.lexerStates[tokenIndex].toList();
+	}
+
+	/**
+	 * The number of tokens which were lexed to create this document, rather
+	 * than being reused from the document it was edited from
+	 */
+	public int relexedTokenCount() {
+		return this.relexedTokenCount;
+	}
+
+	/**
+	 * Growable columns of token data
+	 */
+	private static class Columns {
+		private int count = 0;
+		private SymbolType[] types;
+		private int[] starts, lengths, lines, positions, endLines,
+				endPositions, reaches;
+		private LexerStateStack[] lexerStates;
+
+		public Columns(int capacity) {
+			this.types = new SymbolType[capacity];
+			this.starts = new int[capacity];
+			this.lengths = new int[capacity];
+			this.lines = new int[capacity];
+			this.positions = new int[capacity];
+			this.endLines = new int[capacity];
+			this.endPositions = new int[capacity];
+			this.reaches = new int[capacity];
+			this.lexerStates = new LexerStateStack[capacity];
+		}
+
+		public void add(SymbolType type, int start, int length, int line,
+				int position, int endLine, int endPosition,
+				LexerStateStack lexerStates, int reach) {
+			this.ensureCapacity(this.count + 1);
+			this.types[this.count] = type;
+			this.starts[this.count] = start;
+			this.lengths[this.count] = length;
+			this.lines[this.count] = line;
+			this.positions[this.count] = position;
+			this.endLines[this.count] = endLine;
+			this.endPositions[this.count] = endPosition;
+			this.lexerStates[this.count] = lexerStates;
+			this.reaches[this.count] = reach;
+			this.count++;
+		}
+
+		/**
+		 * Copies that[from, to) as is
+		 */
+		public void addAll(Columns that, int from, int to) {
+			int length = to - from;
+			this.ensureCapacity(this.count + length);
+			System.arraycopy(that.types, from, this.types, this.count, length);
+			System.arraycopy(that.starts, from, this.starts, this.count,
+					length);
+			System.arraycopy(that.lengths, from, this.lengths, this.count,
+					length);
+			System.arraycopy(that.lines, from, this.lines, this.count, length);
+			System.arraycopy(that.positions, from, this.positions, this.count,
+					length);
+			System.arraycopy(that.endLines, from, this.endLines, this.count,
+					length);
+			System.arraycopy(that.endPositions, from, this.endPositions,
+					this.count, length);
+			System.arraycopy(that.lexerStates, from, this.lexerStates,
+					this.count, length);
+			System.arraycopy(that.reaches, from, this.reaches, this.count,
+					length);
+			this.count += length;
+		}
+
+		/**
+		 * Copies the tokens of that from index from onwards, moving them by
+		 * delta characters and lineDelta lines. Positions on the line of
+		 * token from move by positionDelta. Reaches are at least minReach.
+		 */
+		public void addShifted(Columns that, int from, int delta,
+				int lineDelta, int positionDelta, int minReach) {
+			int shiftedLine = that.lines[from];
+			for (int i = from; i < that.count; i++) {
+				this.add(that.types[i], that.starts[i] + delta,
+						that.lengths[i], that.lines[i] + lineDelta,
+						that.positions[i]
+								+ (that.lines[i] == shiftedLine ? positionDelta
+										: 0), that.endLines[i] + lineDelta,
+						that.endPositions[i]
+								+ (that.endLines[i] == shiftedLine ? positionDelta
+										: 0), that.lexerStates[i], Math.max(
+								that.reaches[i] + delta, minReach));
+			}
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > this.types.length) {
+				int newCapacity = Math.max(capacity, 2 * this.types.length);
+				this.types = Arrays.copyOf(this.types, newCapacity);
+				this.starts = Arrays.copyOf(this.starts, newCapacity);
+				this.lengths = Arrays.copyOf(this.lengths, newCapacity);
+				this.lines = Arrays.copyOf(this.lines, newCapacity);
+				this.positions = Arrays.copyOf(this.positions, newCapacity);
+				this.endLines = Arrays.copyOf(this.endLines, newCapacity);
+				this.endPositions = Arrays.copyOf(this.endPositions,
+						newCapacity);
+				this.reaches = Arrays.copyOf(this.reaches, newCapacity);
+				this.lexerStates = Arrays.copyOf(this.lexerStates,
+						newCapacity);
+			}
+		}
+	}
+}
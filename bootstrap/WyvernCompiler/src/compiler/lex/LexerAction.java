@@ -23,9 +23,16 @@ public class LexerAction {
 	private final String pattern, endState;
 	private final SymbolType symbolType;
 	private final ActionType actionType;
+	private final KeywordSet keywords;
 
 	private LexerAction(Set<String> validStates, String pattern,
 			SymbolType symbolType, ActionType actionType, String endState) {
+		this(validStates, pattern, symbolType, actionType, endState, null);
+	}
+
+	private LexerAction(Set<String> validStates, String pattern,
+			SymbolType symbolType, ActionType actionType, String endState,
+			KeywordSet keywords) {
 		Utils.check(pattern != null, "Pattern cannot be null!");
 		Utils.check(!validStates.isEmpty(),
 				"Action must be valid in at least one state!");
@@ -38,6 +45,7 @@ public class LexerAction {
 		this.symbolType = symbolType;
 		this.actionType = actionType;
 		this.endState = endState;
+		this.keywords = keywords;
 	}
 
 	public Set<String> validStates() {
@@ -60,6 +68,28 @@ public class LexerAction {
 		return this.endState;
 	}
 
+	/**
+	 * The keywords which are lexed as their own types rather than
+	 * symbolType(), or null if there are none
+	 */
+	public KeywordSet keywords() {
+		return this.keywords;
+	}
+
+	/**
+	 * The type of the token which this action lexes from text[start, end):
+	 * the keyword's type if the text is a keyword, and symbolType() otherwise
+	 */
+	public SymbolType symbolType(CharSequence text, int start, int end) {
+		if (this.keywords != null) {
+			SymbolType keywordType = this.keywords.get(text, start, end);
+			if (keywordType != null) {
+				return keywordType;
+			}
+		}
+		return this.symbolType;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -70,14 +100,16 @@ public class LexerAction {
 				&& that.validStates.equals(this.validStates)
 				&& Utils.equals(that.symbolType, this.symbolType)
 				&& that.actionType.equals(this.actionType)
-				&& Utils.equals(that.endState, this.endState);
+				&& Utils.equals(that.endState, this.endState)
+				&& Utils.equals(that.keywords, this.keywords);
 	}
 
 	@Override
 	public int hashCode() {
 		return this.pattern.hashCode() ^ this.validStates.hashCode()
 				^ Utils.hashCode(this.symbolType) ^ this.actionType.hashCode()
-				^ Utils.hashCode(this.endState);
+				^ Utils.hashCode(this.endState)
+				^ Utils.hashCode(this.keywords);
 	}
 
 	@Override
@@ -89,6 +121,8 @@ public class LexerAction {
 
 		if (doLex)
 			s += " lex " + this.symbolType.name();
+		if (this.keywords != null)
+			s += " or one of the keywords " + this.keywords;
 		if (doAction) {
 			s += doLex ? " and " : " ";
 			switch (this.actionType) {
@@ -142,6 +176,31 @@ public class LexerAction {
 				symbolType, ActionType.None, null);
 	}
 
+	/**
+	 * Lexes a token in the given states whose type is that of the matched
+	 * keyword, if the text is one of the keywords, and symbolType otherwise.
+	 * This lets the lexer's automata match only the general pattern (e.g.
+	 * identifiers) rather than every keyword too. Keywords which the pattern
+	 * doesn't match are never lexed.
+	 */
+	public static LexerAction lexToken(Set<String> validStates,
+			String pattern, SymbolType symbolType,
+			Map<String, SymbolType> keywords) {
+		Utils.check(symbolType != null, "Only tokens can have keywords!");
+
+		return new LexerAction(Utils.immutableCopy(validStates), pattern,
+				symbolType, ActionType.None, null, KeywordSet.create(keywords));
+	}
+
+	/**
+	 * Lexes a token in the default state, or one of the keywords (see
+	 * lexToken(Set, String, SymbolType, Map))
+	 */
+	public static LexerAction lexToken(String pattern, SymbolType symbolType,
+			Map<String, SymbolType> keywords) {
+		return lexToken(DEFAULT_SET, pattern, symbolType, keywords);
+	}
+
 	/**
 	 * Enters (pushes) the specified state
 	 */
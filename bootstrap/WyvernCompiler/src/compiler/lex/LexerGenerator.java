@@ -38,6 +38,11 @@ public interface LexerGenerator {
 				Utils.check(lexerAction.symbolType() == null
 						|| lexerAction.symbolType().context().equals(context),
 						"Bad context!");
+				if (lexerAction.keywords() != null) {
+					for (SymbolType keywordType : lexerAction.keywords().keywordTypes().values()) {
+						Utils.check(keywordType.context().equals(context), "Bad context!");
+					}
+				}
 				for (String validState : lexerAction.validStates()) {
 					if (Utils.put(groupedActions, LinkedHashMap.class, validState, lexerAction.pattern(), lexerAction) != null)	
 						Utils.err("Cannot have two lexer actions for a given (state, pattern) pair!");
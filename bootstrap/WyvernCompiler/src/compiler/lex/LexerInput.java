@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.io.IOException;
+
+/**
+ * The input read by RegexLexer: a stream of characters (or bytes) which
+ * tracks line numbers and positions and supports returning to a mark (see
+ * LineNumberAndPositionBufferedReader).
+ * 
+ * @author Michael
+ */
+interface LexerInput {
+	/**
+	 * Returns the next character, or -1 at the end of the input
+	 */
+	public int uncheckedRead();
+
+	public void mark();
+
+	public void reset();
+
+	/**
+	 * The number of characters read since the last call to mark() or reset()
+	 */
+	public int offsetFromMark();
+
+	/**
+	 * The character (or byte) at the given offset from the mark, which must
+	 * have been read since the mark was set
+	 */
+	public char charFromMark(int offset);
+
+	/**
+	 * The 1-based line number of the last character read
+	 */
+	public int lineNumber();
+
+	/**
+	 * The 1-based position of the last character read in the current line
+	 */
+	public int position();
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,117 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import compiler.Utils;
+
+/**
+ * An immutable stack of lexer states. Pushing and popping share the rest of
+ * the stack, so a lexer can cheaply take a snapshot of its states at every
+ * token.
+ * 
+ * @author Michael
+ */
+final class LexerStateStack {
+	private final String state;
+	private final LexerStateStack rest;
+	private final int size;
+
+	private LexerStateStack(String state, LexerStateStack rest) {
+		this.state = state;
+		this.rest = rest;
+		this.size = rest == null ? 1 : rest.size + 1;
+	}
+
+	/**
+	 * The stack which holds just the default lexer state
+	 */
+	public static LexerStateStack initial() {
+		return new LexerStateStack(Lexer.DEFAULT_STATE, null);
+	}
+
+	/**
+	 * The state on top of the stack
+	 */
+	public String state() {
+		return this.state;
+	}
+
+	public LexerStateStack push(String state) {
+		return new LexerStateStack(state, this);
+	}
+
+	/**
+	 * The stack with its top state replaced. This also works for the last
+	 * state on the stack
+	 */
+	public LexerStateStack swap(String state) {
+		return state.equals(this.state) ? this : new LexerStateStack(state,
+				this.rest);
+	}
+
+	public LexerStateStack pop() {
+		Utils.check(this.rest != null, "Cannot leave the last lexer state!");
+		return this.rest;
+	}
+
+	/**
+	 * The states from the bottom of the stack to the top
+	 */
+	public List<String> toList() {
+		List<String> states = new ArrayList<String>(this.size);
+		for (LexerStateStack stack = this; stack != null; stack = stack.rest) {
+			states.add(stack.state);
+		}
+		Collections.reverse(states);
+		return states;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object thatObj) {
+		LexerStateStack that = Utils.cast(thatObj, LexerStateStack.class);
+		if (that == null || that.size != this.size) {
+			return false;
+		}
+		// stacks often share their bottoms, so stop as soon as they meet
+		for (LexerStateStack a = this, b = that; a != b; a = a.rest, b = b.rest) {
+			if (!a.state.equals(b.state)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		int hashCode = 0;
+		for (LexerStateStack stack = this; stack != null; stack = stack.rest) {
+			hashCode = 31 * hashCode + stack.state.hashCode();
+		}
+		return hashCode;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.toList().toString();
+	}
+}
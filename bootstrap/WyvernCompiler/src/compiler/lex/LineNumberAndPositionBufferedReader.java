@@ -12,17 +12,70 @@ import compiler.Utils;
  * Tracks the 1-based position and line number while supporting the mark()
  * operation with arbitrary lookahead.
  * 
+ * Characters are read from the underlying reader in chunks into a ring
+ * buffer, which keeps every character from the mark onwards. mark() and
+ * reset() just move offsets into the buffer, and the buffer only grows when
+ * the lookahead past the mark exceeds its size.
+ * 
  * @author Michael
  */
-public class LineNumberAndPositionBufferedReader extends Reader {
+public class LineNumberAndPositionBufferedReader extends Reader implements
+		LexerInput {
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
 	private final Reader reader;
-	private final StringBuilder buffer = new StringBuilder();
-	private int lineNumber = 0, position = 0, markLineNumber, markPosition,
-			nextReadBufferIndex = 0;
+	/**
+	 * The character at offset i in the stream is stored at buffer[i & mask]
+	 */
+	private char[] buffer;
+	private int mask;
+	/**
+	 * The offsets of the mark, of the next character to read and of the end of
+	 * the buffered characters
+	 */
+	private long markOffset = 0, readOffset = 0, endOffset = 0;
+	private int lineNumber = 0, position = 0, markLineNumber, markPosition;
 	private boolean sawLineFeed = true, markSet = false, markSawLineFeed;
 
 	public LineNumberAndPositionBufferedReader(Reader reader) {
 		this.reader = reader;
+		this.buffer = new char[INITIAL_BUFFER_SIZE];
+		this.mask = INITIAL_BUFFER_SIZE - 1;
+	}
+
+	/**
+	 * Creates a reader over the first length characters of chars, which are
+	 * read in place rather than being copied into a buffer. The characters
+	 * must not be modified while the reader is in use.
+	 */
+	public LineNumberAndPositionBufferedReader(char[] chars, int length) {
+		this(chars, 0, length, 1, 1);
+	}
+
+	/**
+	 * As LineNumberAndPositionBufferedReader(char[], int), but reads
+	 * chars[start, end), the first of which is at the given line and
+	 * position. Offsets are indices into chars.
+	 */
+	public LineNumberAndPositionBufferedReader(char[] chars, int start,
+			int end, int line, int position) {
+		Utils.check(0 <= start && start <= end && end <= chars.length,
+				"Invalid range!");
+		this.reader = null;
+		this.buffer = chars;
+		// with every bit set, offsets index the array directly
+		this.mask = -1;
+		this.readOffset = start;
+		this.endOffset = end;
+
+		// act as if the character before start was just read
+		if (position == 1) {
+			this.lineNumber = line - 1;
+		} else {
+			this.lineNumber = line;
+			this.position = position - 1;
+			this.sawLineFeed = false;
+		}
 	}
 
 	/*
@@ -32,7 +85,9 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 	 */
 	@Override
 	public void close() throws IOException {
-		this.reader.close();
+		if (this.reader != null) {
+			this.reader.close();
+		}
 	}
 
 	/*
@@ -42,16 +97,29 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 	 */
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException {
-		int maxLen = Math.min(len, cbuf.length - off);
-		for (int i = 0; i < maxLen; i++) {
-			int ch = this.read();
-			if (ch == -1) {
-				return -1;
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		// copy as many characters as are available, until EOF
+		int count = 0;
+		while (count < len) {
+			if (this.readOffset == this.endOffset && !this.fill()) {
+				break;
+			}
+
+			int start = (int) (this.readOffset & this.mask), length = (int) Math
+					.min(Math.min(len - count, this.endOffset - this.readOffset),
+							this.buffer.length - start);
+			System.arraycopy(this.buffer, start, cbuf, off + count, length);
+			for (int i = 0; i < length; i++) {
+				this.advance(cbuf[off + count + i]);
 			}
-			cbuf[off + i] = (char) ch;
+			this.readOffset += length;
+			count += length;
 		}
 
-		return maxLen;
+		return count == 0 && len > 0 ? -1 : count;
 	}
 
 	/*
@@ -61,30 +129,20 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 	 */
 	@Override
 	public int read() throws IOException {
-		int ch;
-
-		// if there's nothing left to read from the buffer...
-		if (this.nextReadBufferIndex >= this.buffer.length()) {
-			ch = this.reader.read();
-
-			// EOF case: don't update line and position info
-			if (ch == -1) {
-				return ch;
-			}
-
-			// if we read from the stream and we have a mark set,
-			// save the (non-EOF) character
-			if (this.markSet) {
-				this.buffer.append((char) ch);
-			}
-		}
-		// still need to read chars from the buffer
-		else {
-			ch = this.buffer.charAt(this.nextReadBufferIndex);
+		// EOF case: don't update line and position info
+		if (this.readOffset == this.endOffset && !this.fill()) {
+			return -1;
 		}
 
-		this.nextReadBufferIndex++;
+		char ch = this.buffer[(int) (this.readOffset++ & this.mask)];
+		this.advance(ch);
+		return ch;
+	}
 
+	/**
+	 * Updates the line and position for a character being read
+	 */
+	private void advance(char ch) {
 		// if the last character was \n, this is the first character
 		// of a new line, so update line and position
 		if (this.sawLineFeed) {
@@ -95,8 +153,58 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 		}
 
 		this.sawLineFeed = (ch == '\n');
+	}
 
-		return ch;
+	/**
+	 * Reads the next chunk from the underlying reader into the buffer.
+	 * Returns false at EOF
+	 */
+	private boolean fill() throws IOException {
+		// when reading from an array, everything is already buffered
+		if (this.reader == null) {
+			return false;
+		}
+
+		// characters before the mark (or before the next character if there
+		// is no mark) will never be read again, so their space can be reused
+		long keepOffset = this.markSet ? this.markOffset : this.readOffset;
+		if (this.endOffset - keepOffset == this.buffer.length) {
+			this.grow(keepOffset);
+		}
+
+		int start = (int) (this.endOffset & this.mask), length = Math.min(
+				this.buffer.length - start, this.buffer.length
+						- (int) (this.endOffset - keepOffset));
+		int read;
+		do {
+			read = this.reader.read(this.buffer, start, length);
+		} while (read == 0);
+
+		if (read < 0) {
+			return false;
+		}
+		this.endOffset += read;
+		return true;
+	}
+
+	/**
+	 * Doubles the size of the buffer, keeping the characters from keepOffset
+	 * onwards
+	 */
+	private void grow(long keepOffset) {
+		char[] newBuffer = new char[2 * this.buffer.length];
+		int newMask = newBuffer.length - 1;
+		for (long offset = keepOffset; offset < this.endOffset;) {
+			int start = (int) (offset & this.mask), length = (int) Math.min(
+					this.endOffset - offset, this.buffer.length - start);
+			// the new buffer is twice as big, so a run which doesn't wrap in
+			// the old buffer doesn't wrap in the new one
+			System.arraycopy(this.buffer, start, newBuffer,
+					(int) (offset & newMask), length);
+			offset += length;
+		}
+		this.buffer = newBuffer;
+		this.mask = newMask;
 	}
 
 	/**
@@ -126,13 +234,22 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 		this.markPosition = this.position;
 		this.markSawLineFeed = this.sawLineFeed;
 
-		// delete any buffered characters we've already read since
-		// now they're behind the mark
-		this.buffer.delete(0, this.nextReadBufferIndex);
-		this.nextReadBufferIndex = 0;
+		// any buffered characters we've already read are now behind the mark,
+		// so their space can be reused
+		this.markOffset = this.readOffset;
 		this.markSet = true;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.Reader#markSupported()
+	 */
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -147,7 +264,7 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 		this.position = this.markPosition;
 		this.sawLineFeed = this.markSawLineFeed;
 
-		this.nextReadBufferIndex = 0;
+		this.readOffset = this.markOffset;
 	}
 
 	/**
@@ -156,7 +273,38 @@ public class LineNumberAndPositionBufferedReader extends Reader {
 	public int offsetFromMark() {
 		Utils.check(this.markSet, "Cannot check mark offset without first setting a mark!");
 
-		return this.nextReadBufferIndex;
+		return (int) (this.readOffset - this.markOffset);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#charFromMark(int)
+	 */
+	@Override
+	public char charFromMark(int offset) {
+		return this.buffer[(int) ((this.markOffset + offset) & this.mask)];
+	}
+
+	/**
+	 * The characters read since the last call to mark() or reset()
+	 */
+	public String textFromMark() {
+		Utils.check(this.markSet, "Cannot get text from the mark without first setting a mark!");
+
+		int start = (int) (this.markOffset & this.mask), length = this
+				.offsetFromMark();
+		if (start + length <= this.buffer.length) {
+			return new String(this.buffer, start, length);
+		}
+
+		// the text wraps around the end of the buffer
+		char[] text = new char[length];
+		int firstLength = this.buffer.length - start;
+		System.arraycopy(this.buffer, start, text, 0, firstLength);
+		System.arraycopy(this.buffer, 0, text, firstLength, length
+				- firstLength);
+		return new String(text);
 	}
 
 	/**
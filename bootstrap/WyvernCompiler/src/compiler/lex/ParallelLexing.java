@@ -0,0 +1,192 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import compiler.Symbol;
+import compiler.Utils;
+
+/**
+ * Lexes one large text on several threads (see RegexLexer.lexParallel()).
+ * 
+ * The text is split into chunks just after newlines. Every chunk but the
+ * first is lexed speculatively, as if it started in the default lexer state,
+ * until the first token which starts in the next chunk. The chunks are then
+ * stitched together in order: the token which starts the next chunk (the
+ * exit of a chunk) is where sequential lexing would continue, and in which
+ * lexer states. Lexing from a token's start in its lexer states always
+ * reproduces the rest of the tokens (see LexedDocument), so if the next chunk
+ * has a speculative token at the same place in the same lexer states, the
+ * chunk is right from that token on. Otherwise (e.g. the chunk started inside
+ * a comment), the chunk is re-lexed from the exit in the right lexer states,
+ * until a re-lexed token agrees with a speculative one. The tokens are
+ * therefore the same as those of sequential lexing.
+ * 
+ * @author Michael
+ */
+final class ParallelLexing {
+	private ParallelLexing() {
+	}
+
+	/**
+	 * Lexes the text in chunks of at least chunkLength characters on the
+	 * pool
+	 */
+	public static List<Symbol> lex(final RegexLexer lexer, final String text,
+			ForkJoinPool pool, int chunkLength) {
+		Utils.check(chunkLength > 0, "The chunk length must be positive!");
+		final char[] chars = text.toCharArray();
+
+		// split the text just after newlines, counting lines as we go
+		List<Integer> starts = new ArrayList<Integer>(), lines = new ArrayList<Integer>();
+		starts.add(0);
+		lines.add(1);
+		int line = 1, target = chunkLength;
+		for (int i = 0; i < chars.length - 1; i++) {
+			if (chars[i] == '\n') {
+				line++;
+				if (i + 1 >= target) {
+					starts.add(i + 1);
+					lines.add(line);
+					target = i + 1 + chunkLength;
+				}
+			}
+		}
+
+		// lex every chunk but the first speculatively. The first is lexed on
+		// this thread during stitching
+		List<ForkJoinTask<Chunk>> speculativeChunks = new ArrayList<ForkJoinTask<Chunk>>(
+				starts.size());
+		speculativeChunks.add(null);
+		for (int i = 1; i < starts.size(); i++) {
+			final int start = starts.get(i), startLine = lines.get(i), end = end(
+					starts, i);
+			speculativeChunks.add(pool.submit(new Callable<Chunk>() {
+				@Override
+				public Chunk call() {
+					return lex(lexer, text, chars, start, startLine, 1,
+							LexerStateStack.initial(), end, null);
+				}
+			}));
+		}
+
+		// stitch
+		List<Symbol> tokens = new ArrayList<Symbol>();
+		Chunk chunk = lex(lexer, text, chars, 0, 1, 1,
+				LexerStateStack.initial(), end(starts, 0), null);
+		tokens.addAll(chunk.tokens);
+		for (int i = 1; i < starts.size() && chunk.exit != null; i++) {
+			// the exit is past this chunk when a token spans it
+			if (chunk.exitStart >= end(starts, i)) {
+				continue;
+			}
+
+			Chunk speculativeChunk = speculativeChunks.get(i).join();
+			Symbol exit = chunk.exit;
+			chunk = lex(lexer, text, chars, chunk.exitStart, exit.line(),
+					exit.position(), chunk.exitLexerStates, end(starts, i),
+					speculativeChunk);
+			tokens.addAll(chunk.tokens);
+		}
+		Utils.check(chunk.exit == null, "The last chunk should end with EOF!");
+
+		return tokens;
+	}
+
+	/**
+	 * The offset before which the tokens of the given chunk start
+	 */
+	private static int end(List<Integer> starts, int index) {
+		return index + 1 < starts.size() ? starts.get(index + 1)
+				: Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Lexes from start, which is at the given line and position, in the given
+	 * lexer states, up to the first token which starts at or after end (or up
+	 * to EOF, which ends the chunk wherever it is). If a speculative chunk is
+	 * given, then as soon as a token agrees with one of its tokens, the chunk
+	 * is completed from the speculative one
+	 */
+	private static Chunk lex(RegexLexer lexer, String text, char[] chars,
+			int start, int line, int position, LexerStateStack lexerStates,
+			int end, Chunk speculativeChunk) {
+		RegexLexer.TokenIterator iterator = lexer.new TokenIterator(
+				new LineNumberAndPositionBufferedReader(chars, start,
+						chars.length, line, position), lexer.automata(), text,
+				lexerStates, start);
+		Chunk chunk = new Chunk();
+		int speculativeIndex = 0;
+		while (true) {
+			Symbol token = iterator.next();
+			boolean isEof = !iterator.hasNext();
+			int tokenStart = start(token, text);
+			LexerStateStack tokenLexerStates = iterator.lastTokenLexerStates();
+
+			if (speculativeChunk != null) {
+				List<Symbol> speculativeTokens = speculativeChunk.tokens;
+				while (speculativeIndex < speculativeTokens.size()
+						&& start(speculativeTokens.get(speculativeIndex), text) < tokenStart) {
+					speculativeIndex++;
+				}
+				if (speculativeIndex < speculativeTokens.size()
+						&& start(speculativeTokens.get(speculativeIndex), text) == tokenStart
+						&& speculativeChunk.lexerStates.get(speculativeIndex)
+								.equals(tokenLexerStates)) {
+					chunk.addAll(speculativeChunk, speculativeIndex);
+					return chunk;
+				}
+			}
+
+			if (tokenStart >= end && !isEof) {
+				chunk.exit = token;
+				chunk.exitStart = tokenStart;
+				chunk.exitLexerStates = tokenLexerStates;
+				return chunk;
+			}
+			chunk.tokens.add(token);
+			chunk.lexerStates.add(tokenLexerStates);
+			if (isEof) {
+				return chunk;
+			}
+		}
+	}
+
+	/**
+	 * The offset at which the token starts. EOF starts at the end of the text
+	 */
+	private static int start(Symbol token, String text) {
+		return token instanceof SourceToken ? ((SourceToken) token).start()
+				: text.length();
+	}
+
+	/**
+	 * The tokens which start in a chunk, with the lexer states of each, and the first token which starts after it (null if the
+	 * chunk ends with EOF)
+	 */
+	private static class Chunk {
+		public final List<Symbol> tokens = new ArrayList<Symbol>();
+		public final List<LexerStateStack> lexerStates = new ArrayList<LexerStateStack>();
+		public Symbol exit;
+		public int exitStart;
+		public LexerStateStack exitLexerStates;
+
+		/**
+		 * Adds the tokens of that from index from onwards, and takes its exit
+		 */
+		public void addAll(Chunk that, int from) {
+			this.tokens.addAll(that.tokens.subList(from, that.tokens.size()));
+			this.lexerStates.addAll(that.lexerStates.subList(from,
+					that.lexerStates.size()));
+			this.exit = that.exit;
+			this.exitStart = that.exitStart;
+			this.exitLexerStates = that.exitLexerStates;
+		}
+	}
+}
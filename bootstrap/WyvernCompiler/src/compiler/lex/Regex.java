@@ -5,9 +5,8 @@ package compiler.lex;
 
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -20,9 +19,8 @@ import compiler.Context;
 import compiler.Symbol;
 import compiler.SymbolType;
 import compiler.Utils;
-import compiler.automata.Characters;
+import compiler.automata.CharSet;
 import compiler.automata.FiniteAutomaton;
-import compiler.automata.SetOperations;
 import compiler.automata.State;
 import compiler.canonicalize.Canonicalize;
 import compiler.parse.Associativity;
@@ -131,6 +129,13 @@ public class Regex {
 		return parser().parse(lexer().lex(new StringReader(regex)));
 	}
 
+	/**
+	 * Compiles the regex for matching strings (see CompiledRegex)
+	 */
+	public static CompiledRegex compile(String regex) {
+		return new CompiledRegex(regex);
+	}
+
 	public static Symbol canonicalize(Symbol regexParseTree) {
 		Utils.check(regexParseTree.type().equals(REGEX_LIST));
 
@@ -157,6 +162,51 @@ public class Regex {
 		return startState;
 	}
 
+	/**
+	 * Builds an NFA for the given accept value and regex using the followpos
+	 * construction, and returns the start state. Unlike buildNfaFor(), the NFA
+	 * has no epsilon edges: besides the start state there is one state per
+	 * character position in the regex (see RegexPositions), and each edge
+	 * leads into a position on that position's characters. The states of the
+	 * positions which can end a match (and the start state, if the regex
+	 * matches the empty string) take the accept value.
+	 */
+	public static <T> State<T> buildGlushkovNfaFor(
+			FiniteAutomaton.Builder<T, Character> builder, T acceptValue,
+			Symbol regexSymbol) {
+		RegexPositions positions = new RegexPositions();
+		RegexPositions.Pattern pattern = positions.add(regexSymbol);
+
+		State<T> startState = builder.newState(pattern.nullable() ? acceptValue
+				: null);
+		List<State<T>> positionStates = new ArrayList<State<T>>(
+				positions.size());
+		for (int p = 0; p < positions.size(); p++) {
+			positionStates.add(builder.newState(pattern.last().get(p) ? acceptValue
+					: null));
+		}
+
+		buildGlushkovEdges(startState, pattern.first(), positions,
+				positionStates, builder);
+		for (int p = 0; p < positions.size(); p++) {
+			buildGlushkovEdges(positionStates.get(p), positions.follow(p),
+					positions, positionStates, builder);
+		}
+
+		return startState;
+	}
+
+	private static <T> void buildGlushkovEdges(State<T> fromState,
+			BitSet toPositions, RegexPositions positions,
+			List<State<T>> positionStates,
+			FiniteAutomaton.Builder<T, Character> builder) {
+		for (int p = toPositions.nextSetBit(0); p >= 0; p = toPositions
+				.nextSetBit(p + 1)) {
+			builder.createEdge(fromState, positions.charSet(p),
+					positionStates.get(p));
+		}
+	}
+
 	/**
 	 * Creates an NFA with a tail leading from the provided start state to a
 	 * head state, which is returned.
@@ -202,16 +252,15 @@ public class Regex {
 				if (type.equals(CHAR)) {
 					// start - ch -> head
 					State<T> headState = builder.newState();
-					builder.createEdge(startState, Collections
-							.singleton(getChar(regexSymbol.children().get(0))),
+					builder.createEdge(startState,
+							CharSet.of(getChar(regexSymbol.children().get(0))),
 							headState);
 					return headState;
 				}
 				if (type.equals(WILDCARD)) {
 					// start - any -> head
 					State<T> headState = builder.newState();
-					builder.createEdge(startState, Characters.allCharacters(),
-							headState);
+					builder.createEdge(startState, CharSet.all(), headState);
 					return headState;
 				}
 				throw Utils.err("Should never get here!");
@@ -271,42 +320,18 @@ public class Regex {
 							builder);
 				}
 				if (type.equals(SET_LIST)) {
-					/*
-					 * start - epsilon -> tail AND ( tail - S1 -> head OR tail -
-					 * S2 -> head ... )
-					 */
-					State<T> tailState = builder.newState();
-					State<T> headState = builder.newState();
-					for (Symbol setChild : regexSymbol.children().get(1)
-							.children()) {
-						Symbol setSymbol = setChild.children().get(0);
-						Collection<Character> charSet;
-						if (setSymbol.type().equals(CHAR)) {
-							// tail - ch -> head
-							charSet = Collections.singleton(getChar(setSymbol));
-						} else if (setSymbol.type().equals(ESCAPED)) {
-							// tail - \ch -> head
-							charSet = Collections.singleton(getChar(setSymbol));
-						} else if (setSymbol.type().equals(RANGE)) {
-							// start - [chars] -> end
-							char min = getChar(setSymbol.children().get(0)), max = getChar(setSymbol
-									.children().get(2));
-							charSet = Characters.range(min, max);
-						} else {
-							throw Utils.err("Should never get here!");
-						}
-						builder.createEdge(tailState, charSet, headState);
-					}
-					builder.createEdge(startState, tailState);
-					return headState;
+					// start - [chars] -> head
+					return buildSetNfa(charSetOf(regexSymbol.children().get(1)),
+							startState, builder);
 				}
 				throw Utils.err("Should never get here!");
 			case 4:
 				type = regexSymbol.children().get(2).type();
 				if (type.equals(SET_LIST)) {
 					Utils.check(regexSymbol.children().get(1).type().equals(SET_INVERSE_OPERATOR));
-					// an inverted set is just a set with the contents inverted
-					return buildNfa(REGEX.createSymbol(regexSymbol.children().get(0), invertSetList(regexSymbol.children().get(2)), regexSymbol.children().get(3)), startState, builder);
+					// start - [^chars] -> head
+					return buildSetNfa(charSetOf(regexSymbol.children().get(2))
+							.complement(), startState, builder);
 				}
 				throw Utils.err("Should never get here!");
 			default:
@@ -316,72 +341,41 @@ public class Regex {
 		throw Utils.err("Should never get here!");
 	}
 
-	private static Symbol invertSetList(Symbol symbol) {
-		Utils.check(symbol.type().equals(SET_LIST));
-		
-		// if the list is empty, this is equivalent to a single range from MIN_CHAR to MAX_CHAR
-		// because the inverse of the empty set is the universe
-		if (symbol.children().isEmpty()) {
-			return SET_LIST.createSymbol(makeRange(Character.MIN_VALUE, Character.MAX_VALUE));
+	/**
+	 * Creates a single edge from the start state to a new head state on the
+	 * given set. An empty set gets no edge, so the head is unreachable.
+	 */
+	private static <T> State<T> buildSetNfa(CharSet charSet,
+			State<T> startState, FiniteAutomaton.Builder<T, Character> builder) {
+		State<T> headState = builder.newState();
+		if (!charSet.isEmpty()) {
+			builder.createEdge(startState, charSet, headState);
 		}
-		
-		// (1) collect all characters and ranges
-		List<Collection<Character>> charSets = new ArrayList<Collection<Character>>();
-		for (Symbol setChild : symbol.children()) {
+		return headState;
+	}
+
+	/**
+	 * Returns the union of the characters and ranges in a set list
+	 */
+	static CharSet charSetOf(Symbol setList) {
+		Utils.check(setList.type().equals(SET_LIST));
+
+		CharSet charSet = CharSet.empty();
+		for (Symbol setChild : setList.children()) {
 			Symbol child = setChild.children().get(0); // go two levels deep because child is a SET
 			if (child.type().equals(RANGE)) {
-				charSets.add(Characters.range(getChar(child.children().get(0)), getChar(child.children().get(2))));
+				charSet = charSet.union(CharSet.range(getChar(child.children().get(0)),
+						getChar(child.children().get(2))));
 			} else {
-				charSets.add(Collections.singleton(getChar(child)));
+				// CHAR or ESCAPED
+				charSet = charSet.union(CharSet.of(getChar(child)));
 			}
 		}
-		
-		// (2) create non-overlapping ranges (we know they're ranges or singletons due to the nature of the possible sets
-		// we passed in)
-		final SetOperations<Character> setOps = Characters.setOperations();
-		Set<Collection<Character>> nonOverlappingRanges = setOps.partitionedUnion(charSets);
-		
-		// (3) sort the ranges
-		List<Collection<Character>> sortedRanges = new ArrayList<Collection<Character>>(nonOverlappingRanges);
-		Collections.sort(sortedRanges, new Comparator<Collection<Character>>() {
-			@Override
-			public int compare(Collection<Character> a,
-					Collection<Character> b) {
-				char minA = setOps.min(a),
-					minB = setOps.min(b);
-				return minA < minB ? -1 : (minA > minB ? 1 : 0);
-			}			
-		});
-		
-		// (4) the inverse set is composed of the gaps between the ranges and at the ends
-		List<Symbol> gaps = new ArrayList<Symbol>(sortedRanges.size() + 1);
-		char min = setOps.min(sortedRanges.get(0)), 
-			max = setOps.max(Utils.last(sortedRanges));
-		if (Character.MIN_VALUE < min) {
-			gaps.add(makeRange(Character.MIN_VALUE, (char)(min - 1)));
-		}
-		for (int i = 0; i < sortedRanges.size() - 1; i++) {
-			// note that we don't have to check max(i) < min(i + 1) here because we know the ranges don't overlap :)
-			gaps.add(makeRange((char)(setOps.max(sortedRanges.get(i)) + 1), (char)(setOps.min(sortedRanges.get(i + 1)) - 1)));
-		}
-		if (Character.MAX_VALUE > max) {
-			gaps.add(makeRange((char)(max + 1), Character.MAX_VALUE));
-		}
-		
-		return SET_LIST.createSymbol(gaps);
-	}
-	
-	private static Symbol makeRange(char min, char max) {
-		if (min == max) {
-			return SET.createSymbol(CHAR.createSymbol(String.valueOf(min), 1, 1));
-		}
-		
-		Symbol start = CHAR.createSymbol(String.valueOf(min), 1, 1),
-			end = CHAR.createSymbol(String.valueOf(max), 1, 1);
-		return SET.createSymbol(RANGE.createSymbol(start, RANGE_OPERATOR.createSymbol("FAKE", 1, 1), end));
+
+		return charSet;
 	}
 
-	private static char getChar(Symbol singleCharSymbol) {
+	static char getChar(Symbol singleCharSymbol) {
 		if (singleCharSymbol.type().equals(ESCAPED)) {
 			char escapedChar = getChar(singleCharSymbol.children().get(1)), equivalentValue;
 			switch (escapedChar) {
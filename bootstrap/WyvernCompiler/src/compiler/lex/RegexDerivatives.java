@@ -0,0 +1,409 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+import compiler.automata.CharSet;
+import compiler.automata.Characters;
+import compiler.automata.FiniteAutomaton;
+import compiler.automata.State;
+
+/**
+ * Builds DFAs directly from canonicalized regex parse trees using Brzozowski
+ * derivatives. The derivative of a regex R by a character c matches exactly
+ * the strings s for which cs matches R, so a DFA state can simply be the
+ * derivative of the regex by the input consumed so far, and a state accepts
+ * when its regex matches the empty string. A lexer state is a vector of
+ * regexes, one per action, and its DFA states are vectors of their
+ * derivatives.
+ * 
+ * To keep the number of distinct derivatives finite, regexes are kept in a
+ * normal form modulo similarity: alternations are flattened, sorted and
+ * deduplicated, the empty regex and the empty language are removed from
+ * concatenations and alternations where they are identities or zeros, and
+ * alternatives which are plain character sets are merged. The empty regex is
+ * also dropped from an alternation which matches it anyway, and e|RR* becomes
+ * R*. When a derivative is concatenated with the rest of a regex, the
+ * concatenation is distributed over the derivative's alternatives, so that
+ * derivatives reached along different paths share their alternatives. Terms
+ * are hash-consed, so similar regexes are the same object.
+ * 
+ * Nothing is built which the DFA doesn't need: there are no epsilon edges to
+ * close over, and derivatives of keyword regexes collapse immediately, so the
+ * resulting DFAs are typically close to minimal.
+ * 
+ * @author Michael
+ */
+class RegexDerivatives<TValue> {
+	private static final int EMPTY = 0, EPSILON = 1, CHARS = 2, CONCAT = 3,
+			STAR = 4, OR = 5;
+
+	private static final Term[] NO_CHILDREN = new Term[0];
+
+	private static final Comparator<Term> ID_ORDER = new Comparator<Term>() {
+		@Override
+		public int compare(Term a, Term b) {
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	private final Map<Term, Term> terms = new HashMap<Term, Term>();
+	private final Term empty = this.intern(new Term(EMPTY, null, NO_CHILDREN,
+			false)), epsilon = this.intern(new Term(EPSILON, null, NO_CHILDREN,
+			true));
+
+	/**
+	 * Builds a DFA for the given regexes. When a string matches several
+	 * regexes, the DFA state takes the value of the one which comes first in
+	 * the map.
+	 */
+	public static <TValue> FiniteAutomaton<TValue, Character> toDfa(
+			LinkedHashMap<TValue, Symbol> regexParseTrees) {
+		return new RegexDerivatives<TValue>().buildDfa(regexParseTrees);
+	}
+
+	private FiniteAutomaton<TValue, Character> buildDfa(
+			LinkedHashMap<TValue, Symbol> regexParseTrees) {
+		List<TValue> values = new ArrayList<TValue>(regexParseTrees.keySet());
+		Term[] start = new Term[values.size()];
+		int i = 0;
+		for (Symbol regexParseTree : regexParseTrees.values()) {
+			start[i++] = this.termFor(regexParseTree);
+		}
+
+		FiniteAutomaton.Builder<TValue, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		Map<List<Term>, State<TValue>> dfaStates = new HashMap<List<Term>, State<TValue>>();
+		List<Term[]> queue = new ArrayList<Term[]>();
+		dfaStates.put(Arrays.asList(start),
+				builder.newState(valueOf(start, values)));
+		queue.add(start);
+
+		for (int next = 0; next < queue.size(); next++) {
+			Term[] vector = queue.get(next);
+			State<TValue> from = dfaStates.get(Arrays.asList(vector));
+
+			// all characters in a class have the same derivative, so only the
+			// class representatives need to be derived by. Characters in no
+			// class lead to the error state
+			List<Collection<Character>> sets = new ArrayList<Collection<Character>>();
+			for (Term term : vector) {
+				collectHeadSets(term, sets);
+			}
+			Map<State<TValue>, CharSet> edgeSets = new LinkedHashMap<State<TValue>, CharSet>();
+			for (Collection<Character> charClass : Characters.setOperations()
+					.partitionedUnion(sets)) {
+				char representative = Characters.setOperations().min(
+						charClass);
+				Term[] derivative = new Term[vector.length];
+				boolean dead = true;
+				for (int t = 0; t < vector.length; t++) {
+					derivative[t] = this.derive(vector[t], representative);
+					dead &= derivative[t] == this.empty;
+				}
+				if (dead) {
+					continue;
+				}
+
+				List<Term> key = Arrays.asList(derivative);
+				State<TValue> to = dfaStates.get(key);
+				if (to == null) {
+					dfaStates.put(key,
+							to = builder.newState(valueOf(derivative, values)));
+					queue.add(derivative);
+				}
+				CharSet edgeSet = edgeSets.get(to);
+				CharSet classSet = CharSet.copyOf(charClass);
+				edgeSets.put(to, edgeSet == null ? classSet : edgeSet
+						.union(classSet));
+			}
+
+			for (Map.Entry<State<TValue>, CharSet> entry : edgeSets.entrySet()) {
+				builder.createEdge(from, entry.getValue(), entry.getKey());
+			}
+		}
+
+		return builder.toFiniteAutomaton();
+	}
+
+	private static <TValue> TValue valueOf(Term[] vector, List<TValue> values) {
+		for (int i = 0; i < vector.length; i++) {
+			if (vector[i].nullable) {
+				return values.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the sets of characters which the term can start with
+	 */
+	private static void collectHeadSets(Term term,
+			List<Collection<Character>> sets) {
+		switch (term.kind) {
+		case CHARS:
+			sets.add(term.chars);
+			break;
+		case CONCAT:
+			collectHeadSets(term.children[0], sets);
+			if (term.children[0].nullable) {
+				collectHeadSets(term.children[1], sets);
+			}
+			break;
+		case STAR:
+			collectHeadSets(term.children[0], sets);
+			break;
+		case OR:
+			for (Term child : term.children) {
+				collectHeadSets(child, sets);
+			}
+			break;
+		}
+	}
+
+	private Term derive(Term term, char ch) {
+		switch (term.kind) {
+		case EMPTY:
+		case EPSILON:
+			return this.empty;
+		case CHARS:
+			return term.chars.contains(ch) ? this.epsilon : this.empty;
+		case CONCAT:
+			Term derivative = this.distribute(
+					this.derive(term.children[0], ch), term.children[1]);
+			return term.children[0].nullable ? this.or(derivative,
+					this.derive(term.children[1], ch)) : derivative;
+		case STAR:
+			return this.distribute(this.derive(term.children[0], ch), term);
+		case OR:
+			Term[] derivatives = new Term[term.children.length];
+			for (int i = 0; i < derivatives.length; i++) {
+				derivatives[i] = this.derive(term.children[i], ch);
+			}
+			return this.or(derivatives);
+		default:
+			throw Utils.err("Should never get here!");
+		}
+	}
+
+	/**
+	 * Converts a canonicalized regex parse tree to a term
+	 */
+	private Term termFor(Symbol symbol) {
+		if (symbol.type().equals(Regex.REGEX_LIST)) {
+			Term term = this.epsilon;
+			List<Symbol> children = symbol.children();
+			for (int i = children.size() - 1; i >= 0; i--) {
+				term = this.concat(this.termFor(children.get(i)), term);
+			}
+			return term;
+		}
+
+		Utils.check(symbol.type().equals(Regex.REGEX));
+		List<Symbol> children = symbol.children();
+		SymbolType type;
+		Term inner;
+		switch (children.size()) {
+		case 1:
+			return this.chars(children.get(0).type().equals(Regex.WILDCARD) ? CharSet
+					.all() : CharSet.of(Regex.getChar(children.get(0))));
+		case 2:
+			inner = this.termFor(children.get(0));
+			type = children.get(1).type();
+			if (type.equals(Regex.ZERO_OR_ONE)) {
+				return this.or(this.epsilon, inner);
+			}
+			if (type.equals(Regex.KLEENE_CLOSURE)) {
+				return this.star(inner);
+			}
+			Utils.check(type.equals(Regex.ONE_PLUS));
+			return this.concat(inner, this.star(inner));
+		case 3:
+			type = children.get(1).type();
+			if (type.equals(Regex.OR)) {
+				return this.or(this.termFor(children.get(0)),
+						this.termFor(children.get(2)));
+			}
+			if (type.equals(Regex.REGEX_LIST)) {
+				return this.termFor(children.get(1));
+			}
+			return this.chars(Regex.charSetOf(children.get(1)));
+		case 4:
+			return this.chars(Regex.charSetOf(children.get(2)).complement());
+		default:
+			throw Utils.err("Should never get here!");
+		}
+	}
+
+	private Term chars(CharSet chars) {
+		return chars.isEmpty() ? this.empty : this.intern(new Term(CHARS,
+				chars, NO_CHILDREN, false));
+	}
+
+	private Term concat(Term first, Term second) {
+		if (first == this.empty || second == this.empty) {
+			return this.empty;
+		}
+		if (first == this.epsilon) {
+			return second;
+		}
+		if (second == this.epsilon) {
+			return first;
+		}
+		// keep concatenations right-associated
+		if (first.kind == CONCAT) {
+			return this.concat(first.children[0],
+					this.concat(first.children[1], second));
+		}
+		return this.intern(new Term(CONCAT, null,
+				new Term[] { first, second }, first.nullable
+						&& second.nullable));
+	}
+
+	/**
+	 * Concatenates each alternative of first with second, so that the
+	 * alternatives of a derivative are deduplicated along with those of its
+	 * siblings. Otherwise (e|b)R and R|bR would be different states
+	 */
+	private Term distribute(Term first, Term second) {
+		if (first.kind != OR) {
+			return this.concat(first, second);
+		}
+		Term[] alternatives = new Term[first.children.length];
+		for (int i = 0; i < alternatives.length; i++) {
+			alternatives[i] = this.concat(first.children[i], second);
+		}
+		return this.or(alternatives);
+	}
+
+	private Term star(Term inner) {
+		if (inner.kind == STAR) {
+			return inner;
+		}
+		if (inner == this.empty || inner == this.epsilon) {
+			return this.epsilon;
+		}
+		return this.intern(new Term(STAR, null, new Term[] { inner }, true));
+	}
+
+	private Term or(Term... alternatives) {
+		// flatten, drop the empty language and merge the character sets
+		TreeSet<Term> flattened = new TreeSet<Term>(ID_ORDER);
+		CharSet chars = CharSet.empty();
+		for (Term alternative : alternatives) {
+			for (Term term : alternative.kind == OR ? alternative.children
+					: new Term[] { alternative }) {
+				if (term.kind == CHARS) {
+					chars = chars.union(term.chars);
+				} else if (term != this.empty) {
+					flattened.add(term);
+				}
+			}
+		}
+		if (!chars.isEmpty()) {
+			flattened.add(this.chars(chars));
+		}
+		// e|RR* is R*, and e adds nothing to another nullable alternative
+		if (flattened.contains(this.epsilon)) {
+			for (Term term : flattened.toArray(new Term[flattened.size()])) {
+				if (term.kind == CONCAT && term.children[1].kind == STAR
+						&& term.children[1].children[0] == term.children[0]) {
+					flattened.remove(term);
+					flattened.add(term.children[1]);
+				}
+			}
+			for (Term term : flattened) {
+				if (term != this.epsilon && term.nullable) {
+					flattened.remove(this.epsilon);
+					break;
+				}
+			}
+		}
+
+		if (flattened.isEmpty()) {
+			return this.empty;
+		}
+		if (flattened.size() == 1) {
+			return flattened.first();
+		}
+		boolean nullable = false;
+		for (Term term : flattened) {
+			nullable |= term.nullable;
+		}
+		return this.intern(new Term(OR, null, flattened
+				.toArray(new Term[flattened.size()]), nullable));
+	}
+
+	private Term intern(Term term) {
+		Term existing = this.terms.get(term);
+		if (existing != null) {
+			return existing;
+		}
+		term.id = this.terms.size();
+		this.terms.put(term, term);
+		return term;
+	}
+
+	/**
+	 * A regex in normal form. Since children are interned, terms are equal
+	 * when they have the same kind, characters and child objects
+	 */
+	private static final class Term {
+		private final int kind;
+		private final CharSet chars;
+		private final Term[] children;
+		private final boolean nullable;
+		private int id;
+
+		public Term(int kind, CharSet chars, Term[] children, boolean nullable) {
+			this.kind = kind;
+			this.chars = chars;
+			this.children = children;
+			this.nullable = nullable;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof Term)) {
+				return false;
+			}
+			Term that = (Term) obj;
+			if (this.kind != that.kind || !Utils.equals(this.chars, that.chars)
+					|| this.children.length != that.children.length) {
+				return false;
+			}
+			for (int i = 0; i < this.children.length; i++) {
+				if (this.children[i] != that.children[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int hashCode = 31 * this.kind
+					+ (this.chars != null ? this.chars.hashCode() : 0);
+			for (Term child : this.children) {
+				hashCode = 31 * hashCode + child.id;
+			}
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,869 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+
+import compiler.Context;
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+import compiler.automata.CharAutomaton;
+import compiler.automata.CharDfa;
+import compiler.automata.CharSimulator;
+
+/**
+ * The lexer generated by RegexLexerGenerator. For each lexer state, it runs an
+ * automaton whose values are the actions for that state, using maximal munch
+ * and the action order to choose between matches.
+ * 
+ * A lexer whose automata are all compiled DFAs can be saved in a compact
+ * binary format and loaded again without regenerating it:
+ * 
+ * <pre>
+ * int magic, int version
+ * int action count, then each action's pattern
+ * int lexer state count, then for each lexer state its name and CharDfa tables
+ * </pre>
+ * 
+ * Strings are written as an int length followed by chars. Actions are
+ * referenced by their index, so loading requires the same actions that the
+ * lexer was generated from.
+ * 
+ * @author Michael
+ */
+public class RegexLexer implements Lexer {
+	private static final int MAGIC = 0x57594C58, VERSION = 1;
+	/**
+	 * The smallest chunk which lexParallel() lexes on its own
+	 */
+	private static final int PARALLEL_CHUNK_LENGTH = 1 << 16;
+	/**
+	 * Stands in for the tokens which the token iterator adds to a buffer
+	 */
+	private static final Symbol BUFFERED = new SourceToken(null, null, 0, 0,
+			0, 0, 0, 0);
+
+	private final Context context;
+	private final List<LexerAction> actions;
+	private final Map<String, CharAutomaton<LexerAction>> automata;
+	/**
+	 * The lexer states in the order of the automata, whose indices are the
+	 * ids which the token iterator uses for them
+	 */
+	private final String[] lexerStateNames;
+	private final Map<String, Integer> lexerStateIds = new HashMap<String, Integer>();
+	/**
+	 * The automata for lexing UTF-8 bytes, built on demand
+	 */
+	private Map<String, CharDfa<LexerAction>> utf8Automata;
+
+	RegexLexer(Context context, Collection<LexerAction> actions,
+			Map<String, CharAutomaton<LexerAction>> automata) {
+		this.context = context;
+		this.actions = Collections.unmodifiableList(new ArrayList<LexerAction>(
+				actions));
+		this.automata = automata;
+		this.lexerStateNames = automata.keySet().toArray(
+				new String[automata.size()]);
+		for (String lexerState : this.lexerStateNames) {
+			this.lexerStateIds.put(lexerState, this.lexerStateIds.size());
+		}
+	}
+
+	/**
+	 * Writes the lexer's tables to the stream. All of the lexer's automata
+	 * must be compiled DFAs.
+	 */
+	public void save(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		Map<LexerAction, Integer> actionIndices = new HashMap<LexerAction, Integer>();
+		out.writeInt(this.actions.size());
+		for (LexerAction action : this.actions) {
+			actionIndices.put(action, actionIndices.size());
+			writeString(out, action.pattern());
+		}
+
+		out.writeInt(this.automata.size());
+		for (Map.Entry<String, CharAutomaton<LexerAction>> entry : this.automata
+				.entrySet()) {
+			Utils.check(entry.getValue() instanceof CharDfa,
+					"Only lexers built from compiled DFAs can be saved!");
+			writeString(out, entry.getKey());
+			((CharDfa<LexerAction>) entry.getValue()).write(out, actionIndices);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Saves the lexer to the given file
+	 */
+	public void save(File file) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		try {
+			this.save(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Loads a lexer saved with save(). The context and actions must be the ones
+	 * the saved lexer was generated from.
+	 */
+	public static RegexLexer load(ByteBuffer buffer, Context context,
+			LinkedHashSet<LexerAction> actions) {
+		Utils.check(buffer.getInt() == MAGIC, "Not a saved lexer!");
+		int version = buffer.getInt();
+		Utils.check(version == VERSION, "Unsupported lexer version " + version);
+
+		List<LexerAction> actionList = new ArrayList<LexerAction>(actions);
+		Utils.check(buffer.getInt() == actionList.size(),
+				"The saved lexer has a different number of actions!");
+		for (LexerAction action : actionList) {
+			Utils.check(readString(buffer).equals(action.pattern()),
+					"The saved lexer's actions do not match!");
+		}
+
+		int lexerStateCount = buffer.getInt();
+		Map<String, CharAutomaton<LexerAction>> automata = new LinkedHashMap<String, CharAutomaton<LexerAction>>(
+				lexerStateCount);
+		for (int i = 0; i < lexerStateCount; i++) {
+			String lexerState = readString(buffer);
+			automata.put(lexerState, CharDfa.read(buffer, actionList));
+		}
+
+		return new RegexLexer(context, actionList, automata);
+	}
+
+	/**
+	 * Loads a lexer from the given stream (see load(ByteBuffer, ...))
+	 */
+	public static RegexLexer load(InputStream stream, Context context,
+			LinkedHashSet<LexerAction> actions) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int read; (read = stream.read(chunk)) != -1;) {
+			bytes.write(chunk, 0, read);
+		}
+		return load(ByteBuffer.wrap(bytes.toByteArray()), context, actions);
+	}
+
+	/**
+	 * Loads a lexer from the given file by memory-mapping it (see
+	 * load(ByteBuffer, ...))
+	 */
+	public static RegexLexer load(File file, Context context,
+			LinkedHashSet<LexerAction> actions) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			return load(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()), context, actions);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeInt(value.length());
+		out.writeChars(value);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getInt()];
+		buffer.asCharBuffer().get(chars);
+		buffer.position(buffer.position() + 2 * chars.length);
+		return new String(chars);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.Lexer#isCompiled()
+	 */
+	@Override
+	public boolean isCompiled() {
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.Lexer#lex(java.io.Reader)
+	 */
+	@Override
+	public Iterator<Symbol> lex(Reader reader) {
+		return this.lex(new LineNumberAndPositionBufferedReader(reader),
+				this.automata, null);
+	}
+
+	/**
+	 * Lexes the text into a stream of tokens. Rather than copying their text,
+	 * the tokens refer to ranges of a single immutable copy of the text (see
+	 * SourceToken), which is just the text itself if it is a String.
+	 */
+	public Iterator<Symbol> lex(CharSequence text) {
+		String source = text.toString();
+		return this.lex(new LineNumberAndPositionBufferedReader(
+				source.toCharArray(), source.length()), this.automata, source);
+	}
+
+	/**
+	 * Lexes the UTF-8 encoded file (see lex(Path, Charset))
+	 */
+	public Iterator<Symbol> lex(Path path) throws IOException {
+		return this.lex(path, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Lexes the file with the given encoding. The file is memory-mapped and
+	 * decoded straight into one array of characters, which the lexer reads in
+	 * place and which the tokens refer to (see SourceToken). Malformed input
+	 * is decoded as the charset's replacement character.
+	 */
+	public Iterator<Symbol> lex(Path path, Charset charset) throws IOException {
+		CharBuffer chars;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			Utils.check(channel.size() <= Integer.MAX_VALUE, "File too large: "
+					+ path);
+			chars = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE)
+					.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size()));
+		} finally {
+			channel.close();
+		}
+
+		// the decoder returns a buffer backed by an array which starts at 0
+		return this.lex(
+				new LineNumberAndPositionBufferedReader(chars.array(), chars
+						.limit()), this.automata, chars.asReadOnlyBuffer());
+	}
+
+	/**
+	 * Lexes the text into the buffer, replacing its contents. This gives the
+	 * same tokens as lex(CharSequence), but no symbols are created (see
+	 * TokenBuffer).
+	 */
+	public void lex(CharSequence text, TokenBuffer buffer) {
+		String source = text.toString();
+		buffer.clear(source);
+		new TokenIterator(new LineNumberAndPositionBufferedReader(
+				source.toCharArray(), source.length()), this.automata, source,
+				LexerStateStack.initial(), 0).lexInto(buffer);
+	}
+
+	/**
+	 * Lexes the text into a document which can be re-lexed incrementally as
+	 * it is edited (see LexedDocument)
+	 */
+	public LexedDocument lexDocument(CharSequence text) {
+		return LexedDocument.lex(this, text);
+	}
+
+	/**
+	 * Lexes the text on the threads of the pool, giving the same tokens as
+	 * lex(CharSequence). The text is split into chunks at newlines, which are
+	 * lexed speculatively in the default lexer state and re-lexed where that
+	 * turns out to be wrong (see ParallelLexing). This pays off for large
+	 * texts, such as generated code, where most chunk boundaries are not
+	 * inside comments, strings, etc.
+	 */
+	public List<Symbol> lexParallel(CharSequence text, ForkJoinPool pool) {
+		return this.lexParallel(text, pool, Math.max(PARALLEL_CHUNK_LENGTH,
+				text.length() / (4 * pool.getParallelism())));
+	}
+
+	/**
+	 * As lexParallel(CharSequence, ForkJoinPool), but with chunks of at least
+	 * chunkLength characters
+	 */
+	public List<Symbol> lexParallel(CharSequence text, ForkJoinPool pool,
+			int chunkLength) {
+		return ParallelLexing.lex(this, text.toString(), pool, chunkLength);
+	}
+
+	Map<String, CharAutomaton<LexerAction>> automata() {
+		return this.automata;
+	}
+
+	/**
+	 * Can this lexer lex UTF-8 bytes (see lex(ByteBuffer))? Only lexers whose
+	 * automata are all compiled DFAs can.
+	 */
+	public boolean canLexBytes() {
+		for (CharAutomaton<LexerAction> automaton : this.automata.values()) {
+			if (!(automaton instanceof CharDfa)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lexes the UTF-8 encoded bytes (see lex(ByteBuffer))
+	 */
+	public Iterator<Symbol> lex(byte[] bytes) {
+		return this.lex(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Lexes the UTF-8 encoded bytes from the buffer's position to its limit
+	 * without decoding them, by running byte DFAs compiled from the lexer's
+	 * DFAs (see CharDfa.toUtf8()). These are built when bytes are first
+	 * lexed. Tokens are the same as for the decoded text, except that a
+	 * supplementary character is never split between tokens, and that each
+	 * character the lexer doesn't recognize, or each maximal ill-formed byte
+	 * sequence, becomes one unrecognized token. The tokens refer to the
+	 * buffer, which must not be modified while they are in use (see
+	 * SourceToken).
+	 */
+	public Iterator<Symbol> lex(ByteBuffer bytes) {
+		return this.lex(new Utf8Input(bytes.duplicate()), this.utf8Automata(),
+				null);
+	}
+
+	private synchronized Map<String, CharDfa<LexerAction>> utf8Automata() {
+		if (this.utf8Automata == null) {
+			Utils.check(this.canLexBytes(),
+					"Only lexers built from compiled DFAs can lex bytes!");
+			Map<String, CharDfa<LexerAction>> utf8Automata = new HashMap<String, CharDfa<LexerAction>>();
+			for (Map.Entry<String, CharAutomaton<LexerAction>> entry : this.automata
+					.entrySet()) {
+				utf8Automata.put(entry.getKey(),
+						((CharDfa<LexerAction>) entry.getValue()).toUtf8());
+			}
+			this.utf8Automata = utf8Automata;
+		}
+		return this.utf8Automata;
+	}
+
+	/**
+	 * Lexes the input with the given automata for the lexer states. If source
+	 * is non-null, it holds all of the input's characters and the tokens refer
+	 * to it. Otherwise each token's text is copied from the input, unless the
+	 * input is UTF-8 bytes.
+	 */
+	private Iterator<Symbol> lex(LexerInput markableReader,
+			Map<String, ? extends CharAutomaton<LexerAction>> automata,
+			CharSequence source) {
+		return new TokenIterator(markableReader, automata, source,
+				LexerStateStack.initial(), 0);
+	}
+
+	/**
+	 * Lexes the input with maximal munch. Besides the tokens, it tracks what
+	 * incremental re-lexing needs to know about the match which produced the
+	 * last token (see LexedDocument): the lexer states it started in, and how
+	 * far into the input the lexer had read before it started.
+	 * 
+	 * Each lexer state gets one simulator, created when the state is first
+	 * entered and reset for each match, and the lexer states are kept as a
+	 * stack of ids, so entering and leaving a state doesn't allocate. The
+	 * immutable LexerStateStack for a token is only built when asked for.
+	 */
+	class TokenIterator implements Iterator<Symbol> {
+		private final LexerInput markableReader;
+		private final Map<String, ? extends CharAutomaton<LexerAction>> automata;
+		private final CharSequence source;
+		/**
+		 * The simulator and failure memo of each lexer state, by id
+		 */
+		private final CharSimulator<LexerAction>[] simulators;
+		private final FailureMemo[] memos;
+		/**
+		 * The ids of the lexer states from the bottom of the stack up
+		 */
+		private int[] lexerStates = new int[8];
+		private int lexerStateCount = 0;
+		/**
+		 * The immutable stack of the bottom i + 1 lexer states at i, or null
+		 * if it hasn't been built since that lexer state was entered
+		 */
+		private LexerStateStack[] lexerStateStacks = new LexerStateStack[8];
+		/**
+		 * The simulator and failure memo of the current lexer state
+		 */
+		private CharSimulator<LexerAction> simulator;
+		private FailureMemo memo;
+		private LexerAction lastMatchEndAction = null;
+		private int lastMatchOffset;
+		private boolean sentEOF = false;
+		/**
+		 * The offset in the input of the mark
+		 */
+		private long markOffset;
+		/**
+		 * The states passed through since the last accept (or since the
+		 * mark), one per character, the last of which was reached at
+		 * trailEndOffset
+		 */
+		private long[] trail = new long[16];
+		private int trailLength = 0;
+		private long trailEndOffset;
+		/**
+		 * The end of the input read so far (reading EOF counts as reading one
+		 * past the end), overall and when the mark was set
+		 */
+		private long reach, markReach;
+		/**
+		 * The number of lexer states when the match which produced the last
+		 * token started, and the id of the top one
+		 */
+		private int lastTokenLexerStateCount, lastTokenLexerState;
+		private long lastTokenReach;
+		/**
+		 * If non-null, tokens are added to this rather than being created
+		 */
+		private TokenBuffer buffer;
+		/**
+		 * A view of the input read since the mark, for looking up keywords
+		 * without copying the text
+		 */
+		private final CharSequence textFromMark = new CharSequence() {
+			@Override
+			public int length() {
+				return TokenIterator.this.markableReader.offsetFromMark();
+			}
+
+			@Override
+			public char charAt(int index) {
+				return TokenIterator.this.markableReader.charFromMark(index);
+			}
+
+			@Override
+			public CharSequence subSequence(int start, int end) {
+				return this.toString().substring(start, end);
+			}
+
+			@Override
+			public String toString() {
+				StringBuilder sb = new StringBuilder(this.length());
+				for (int i = 0; i < this.length(); i++) {
+					sb.append(this.charAt(i));
+				}
+				return sb.toString();
+			}
+		};
+
+		/**
+		 * Creates an iterator which starts lexing at the given offset of the
+		 * input, in the given lexer states. If source is non-null, it holds
+		 * all of the input's characters and the tokens refer to it. Otherwise
+		 * each token's text is copied from the input, unless the input is
+		 * UTF-8 bytes.
+		 */
+		TokenIterator(LexerInput markableReader,
+				Map<String, ? extends CharAutomaton<LexerAction>> automata,
+				CharSequence source, LexerStateStack lexerStates,
+				long startOffset) {
+			this(markableReader, automata, source, lexerStates, startOffset,
+					startOffset);
+		}
+
+		/**
+		 * As above, but continues lexing which had already read up to
+		 * startReach (see lastTokenReach()), so that the reaches of the
+		 * tokens are the same as if the lexing had not stopped
+		 */
+		// generic arrays can't be created, so the simulator array is raw
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		TokenIterator(LexerInput markableReader,
+				Map<String, ? extends CharAutomaton<LexerAction>> automata,
+				CharSequence source, LexerStateStack lexerStates,
+				long startOffset, long startReach) {
+			Utils.check(startReach >= startOffset, "Invalid reach!");
+			this.markableReader = markableReader;
+			this.automata = automata;
+			this.source = source;
+			this.simulators = new CharSimulator[RegexLexer.this.lexerStateNames.length];
+			this.memos = new FailureMemo[RegexLexer.this.lexerStateNames.length];
+			this.markOffset = startOffset;
+			this.reach = this.markReach = startReach;
+
+			// the mark always marks the "beginning" of the stream. That is,
+			// the place where we last matched
+			markableReader.mark();
+
+			for (String lexerState : lexerStates.toList()) {
+				this.enter(lexerState);
+			}
+			this.lexerStateStacks[this.lexerStateCount - 1] = lexerStates;
+		}
+
+		/**
+		 * The lexer states in which the match which produced the last token
+		 * started
+		 */
+		LexerStateStack lastTokenLexerStates() {
+			int count = this.lastTokenLexerStateCount;
+			// states below the top are still on the stack, but the top was
+			// replaced if the match swapped it
+			if (this.lexerStates[count - 1] != this.lastTokenLexerState) {
+				return this.lexerStateStack(count).swap(
+						RegexLexer.this.lexerStateNames[this.lastTokenLexerState]);
+			}
+			return this.lexerStateStack(count);
+		}
+
+		/**
+		 * The immutable stack of the bottom count lexer states
+		 */
+		private LexerStateStack lexerStateStack(int count) {
+			LexerStateStack stack = this.lexerStateStacks[count - 1];
+			if (stack == null) {
+				String state = RegexLexer.this.lexerStateNames[this.lexerStates[count - 1]];
+				stack = count == 1 ? LexerStateStack.initial().swap(state)
+						: this.lexerStateStack(count - 1).push(state);
+				this.lexerStateStacks[count - 1] = stack;
+			}
+			return stack;
+		}
+
+		/**
+		 * The end of the input which had been read when the match which
+		 * produced the last token started. A change to the input past this
+		 * point can't affect the tokens before it.
+		 */
+		long lastTokenReach() {
+			return this.lastTokenReach;
+		}
+
+		/**
+		 * Lexes the rest of the input into the buffer, without creating a
+		 * symbol for each token. The iterator must have a source.
+		 */
+		void lexInto(TokenBuffer buffer) {
+			Utils.check(this.source != null,
+					"Only input with a source can be lexed into a buffer!");
+			this.buffer = buffer;
+			while (this.hasNext()) {
+				this.next();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !this.sentEOF;
+		}
+
+		@Override
+		public Symbol next() {
+			Symbol token = null;
+
+			// loop until we find a token to return or send eof
+			do {
+				// read the next character
+				int c = this.markableReader.uncheckedRead();
+				this.reach = Math.max(this.reach, this.markOffset
+						+ this.markableReader.offsetFromMark()
+						+ (c == -1 ? 1 : 0));
+
+				// if there are no more chars to send, send eof
+				if (c == -1) {
+					if (!this.hasNext()) {
+						throw new NoSuchElementException();
+					}
+
+					// if we have a last match, roll back and match that. If we have
+					// no match but we've read characters since the last mark, then
+					// we must have started accepting a symbol and then encountered EOF
+					// e. g. we saw f, o, EOF and started matching "for". In that case, the trailing characters
+					// need to be sent as unrecognized symbols. Note that we know it's always safe to check
+					// the mark offset here because we always call mark() at the beginning or after any match
+					if (this.lastMatchEndAction != null
+							|| this.markableReader.offsetFromMark() > 0) {
+						token = this.performMatch();
+
+						// if the match was skipped, the reader was rolled back to
+						// its end, so any characters after it must still be lexed
+						// before we can send EOF
+						if (token == null) {
+							continue;
+						}
+					}
+					// otherwise, send EOF since we're really done
+					else {
+						int line = this.markableReader.lineNumber(), position = this.markableReader
+								.position();
+						if (this.buffer != null) {
+							this.buffer.add(RegexLexer.this.context.eofType(),
+									(int) this.markOffset, 0, line, position,
+									line, position);
+							token = BUFFERED;
+						} else {
+							token = RegexLexer.this.context.eofType()
+									.createSymbol("", line, position);
+						}
+						this.lastTokenLexerStateCount = this.lexerStateCount;
+						this.lastTokenLexerState = this.lexerStates[this.lexerStateCount - 1];
+						this.lastTokenReach = this.markReach;
+						this.sentEOF = true; // causes hasNext() to return false
+						try {
+							this.markableReader.close();
+						} catch (IOException ex) {
+							Utils.err(ex);
+						}
+					}
+
+					return token;
+				}
+
+				// simulate the input
+				switch (this.simulator.consume((char) c)) {
+				case Reject:
+					// if this state is already known to fail here, there's
+					// no need to read any further
+					long stateId = this.simulator.stateId();
+					if (this.trailLength == this.trail.length) {
+						this.trail = Arrays.copyOf(this.trail,
+								2 * this.trailLength);
+					}
+					this.trail[this.trailLength++] = stateId;
+					this.trailEndOffset = this.markOffset
+							+ this.markableReader.offsetFromMark();
+					if (this.memo.contains(stateId,
+							this.trailEndOffset)) {
+						token = this.performMatch();
+					}
+					break;
+				case Accept:
+					this.lastMatchEndAction = this.simulator
+							.currentValue();
+					this.lastMatchOffset = this.markableReader
+							.offsetFromMark();
+					this.trailLength = 0;
+					break;
+				case Error:
+					// attempt to match
+					token = this.performMatch();
+					break;
+				}
+
+			} while (token == null);
+
+			return token;
+		}
+
+		private Symbol performMatch() {
+			Symbol match;
+			int matchLexerStateCount = this.lexerStateCount, matchLexerState = this.lexerStates[matchLexerStateCount - 1];
+
+			// no accepting state was reached after the states on the
+			// trail, so they all fail. Note that the character which caused
+			// an error was read after the last of them
+			this.memo.addAll(this.trail, this.trailLength,
+					this.trailEndOffset - this.trailLength + 1);
+			this.trailLength = 0;
+
+			// roll back to the end of the last match
+			this.markableReader.reset();
+
+			// read the first character after the mark
+			int firstMatchChar = this.markableReader.uncheckedRead(), line = this.markableReader
+					.lineNumber(), position = this.markableReader.position();
+			Utils.check(firstMatchChar != -1); // sanity check
+
+			// if we have a last match accept it
+			if (this.lastMatchEndAction != null) {
+				// re-read the rest of the matched string to update the
+				// line and position
+				for (int i = 1; i < this.lastMatchOffset; i++) {
+					this.markableReader.uncheckedRead();
+				}
+
+				// possibly create a symbol, whose type may be that of a
+				// keyword. UTF-8 input is looked up as bytes
+				SymbolType type = this.lastMatchEndAction.symbolType();
+				KeywordSet keywords = this.lastMatchEndAction.keywords();
+				if (keywords != null) {
+					SymbolType keywordType = (this.markableReader instanceof Utf8Input ? keywords
+							.utf8() : keywords).get(this.textFromMark, 0,
+							this.lastMatchOffset);
+					if (keywordType != null) {
+						type = keywordType;
+					}
+				}
+				match = type != null ? this.createToken(type, line, position)
+						: null;
+
+				// update the lexer states
+				switch (this.lastMatchEndAction.actionType()) {
+				case Swap:
+					this.swap(this.lastMatchEndAction.endState());
+					break;
+				case Enter:
+					this.enter(this.lastMatchEndAction.endState());
+					break;
+				case Leave:
+					this.leave();
+					break;
+				default:
+					break;
+				}
+				// the simulator may be shared with the match's lexer state
+				// or one further down the stack, so be sure to reset it!
+				this.simulator.reset();
+
+				this.markOffset += this.lastMatchOffset;
+				this.lastMatchEndAction = null;
+			}
+			// otherwise, match unrecognized
+			else {
+				// in UTF-8, this is a whole character (or ill-formed
+				// sequence) rather than a single byte
+				int length = this.markableReader instanceof Utf8Input ? ((Utf8Input) this.markableReader)
+						.characterLengthAtMark() : 1;
+				for (int i = 1; i < length; i++) {
+					this.markableReader.uncheckedRead();
+				}
+				match = this.createToken(
+						RegexLexer.this.context.unrecognizedType(), line,
+						position);
+				this.simulator.reset();
+				this.markOffset += length;
+			}
+
+			if (match != null) {
+				this.lastTokenLexerStateCount = matchLexerStateCount;
+				this.lastTokenLexerState = matchLexerState;
+				this.lastTokenReach = this.markReach;
+			}
+
+			// mark after the last match
+			this.markableReader.mark();
+			this.markReach = this.reach;
+
+			return match;
+		}
+
+		/**
+		 * Pushes the lexer state
+		 */
+		private void enter(String lexerState) {
+			int id = this.lexerStateId(lexerState);
+			if (this.lexerStateCount == this.lexerStates.length) {
+				this.lexerStates = Arrays.copyOf(this.lexerStates,
+						2 * this.lexerStateCount);
+				this.lexerStateStacks = Arrays.copyOf(this.lexerStateStacks,
+						2 * this.lexerStateCount);
+			}
+			this.lexerStates[this.lexerStateCount] = id;
+			this.lexerStateStacks[this.lexerStateCount] = null;
+			this.lexerStateCount++;
+			this.setCurrentLexerState();
+		}
+
+		/**
+		 * Replaces the current lexer state. Unlike leaving, this is allowed
+		 * for the last lexer state on the stack
+		 */
+		private void swap(String lexerState) {
+			int id = this.lexerStateId(lexerState);
+			this.lexerStates[this.lexerStateCount - 1] = id;
+			this.lexerStateStacks[this.lexerStateCount - 1] = null;
+			this.setCurrentLexerState();
+		}
+
+		/**
+		 * The id of the lexer state, creating its simulator and failure memo
+		 * the first time it is used
+		 */
+		private int lexerStateId(String lexerState) {
+			int id = RegexLexer.this.lexerStateIds.get(lexerState);
+			if (this.simulators[id] == null) {
+				this.simulators[id] = this.automata.get(lexerState)
+						.newSimulator();
+				this.memos[id] = new FailureMemo();
+			}
+			return id;
+		}
+
+		/**
+		 * Pops the current lexer state
+		 */
+		private void leave() {
+			Utils.check(this.lexerStateCount > 1,
+					"Cannot leave the last lexer state!");
+			this.lexerStateCount--;
+			this.setCurrentLexerState();
+		}
+
+		private void setCurrentLexerState() {
+			int id = this.lexerStates[this.lexerStateCount - 1];
+			this.simulator = this.simulators[id];
+			this.memo = this.memos[id];
+		}
+
+		/**
+		 * Creates a token for the characters read since the mark, which start
+		 * at the given line and position
+		 */
+		private Symbol createToken(SymbolType type, int line, int position) {
+			if (this.buffer != null) {
+				this.buffer.add(type, (int) this.markOffset,
+						this.markableReader.offsetFromMark(), line, position,
+						this.markableReader.lineNumber(),
+						this.markableReader.position());
+				return BUFFERED;
+			}
+			if (this.markableReader instanceof Utf8Input) {
+				return ((Utf8Input) this.markableReader).createToken(type,
+						line, position);
+			}
+
+			// without a source, the token gets its own copy of its text
+			CharSequence text = this.source != null ? this.source
+					: ((LineNumberAndPositionBufferedReader) this.markableReader)
+							.textFromMark();
+			return new SourceToken(type, text,
+					this.source != null ? (int) this.markOffset : 0,
+					this.markableReader.offsetFromMark(), line, position,
+					this.markableReader.lineNumber(),
+					this.markableReader.position());
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("remove");
+		}
+	}
+}
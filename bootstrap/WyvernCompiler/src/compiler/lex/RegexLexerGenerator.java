@@ -3,28 +3,28 @@
  */
 package compiler.lex;
 
-import java.io.IOException;
-import java.io.Reader;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import compiler.Context;
 import compiler.Symbol;
 import compiler.Utils;
+import compiler.automata.CharAutomaton;
+import compiler.automata.CharDfa;
 import compiler.automata.Characters;
-import compiler.automata.DfaSimulator;
 import compiler.automata.FiniteAutomaton;
-import compiler.automata.Simulator;
 import compiler.automata.State;
 import compiler.lex.LexerGenerator.AbstractLexerGenerator;
 
@@ -33,6 +33,67 @@ import compiler.lex.LexerGenerator.AbstractLexerGenerator;
  * 
  */
 public class RegexLexerGenerator extends AbstractLexerGenerator {
+	/**
+	 * The ways of building the DFA for a lexer state
+	 */
+	public enum Construction {
+		/**
+		 * Build epsilon-free NFAs for the regexes (see
+		 * Regex.buildGlushkovNfaFor()) and run the subset construction
+		 */
+		Subset,
+		/**
+		 * Build the DFA directly from the regexes with Brzozowski derivatives
+		 * (see RegexDerivatives). This skips the NFAs entirely
+		 */
+		Derivatives,
+	}
+
+	/**
+	 * The pools which generators with each parallelism share. Their threads
+	 * are daemons which exit when idle, so the pools are never shut down
+	 */
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	private final Construction construction;
+	private final boolean minimize;
+	private final int parallelism;
+
+	public RegexLexerGenerator() {
+		this(true);
+	}
+
+	/**
+	 * Creates a generator which optionally minimizes the DFA built for each
+	 * lexer state. Minimization is on by default since it typically removes
+	 * many equivalent states from lexers with lots of keyword patterns.
+	 */
+	public RegexLexerGenerator(boolean minimize) {
+		this(minimize, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a generator which builds the pattern NFAs and the automata for
+	 * the lexer states on up to parallelism threads. With a parallelism of 1,
+	 * everything is built on the calling thread. The generated lexer is the
+	 * same either way.
+	 */
+	public RegexLexerGenerator(boolean minimize, int parallelism) {
+		this(Construction.Subset, minimize, parallelism);
+	}
+
+	/**
+	 * Creates a generator which builds each lexer state's DFA with the given
+	 * construction
+	 */
+	public RegexLexerGenerator(Construction construction, boolean minimize,
+			int parallelism) {
+		Utils.check(parallelism > 0, "Parallelism must be positive!");
+		this.construction = construction;
+		this.minimize = minimize;
+		this.parallelism = parallelism;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -42,217 +103,92 @@ public class RegexLexerGenerator extends AbstractLexerGenerator {
 	 */
 	@Override
 	protected Result generateImpl(final Context context,
-			LinkedHashSet<LexerAction> allActions,
-			Map<String, LinkedHashMap<String, LexerAction>> groupedActions) {
-		final Map<String, FiniteAutomaton<LexerAction, Character>> automata = new HashMap<String, FiniteAutomaton<LexerAction, Character>>(
+			final LinkedHashSet<LexerAction> allActions,
+			final Map<String, LinkedHashMap<String, LexerAction>> groupedActions) {
+		ExecutorService executor = this.parallelism > 1 ? pool(this.parallelism)
+				: null;
+		final Map<LexerAction, Symbol> parseTrees = new HashMap<LexerAction, Symbol>(
+				allActions.size());
+		final Map<LexerAction, FiniteAutomaton<LexerAction, Character>> patternNfas = new HashMap<LexerAction, FiniteAutomaton<LexerAction, Character>>(
+				allActions.size());
+		final Map<String, CharAutomaton<LexerAction>> automata = new HashMap<String, CharAutomaton<LexerAction>>(
 				groupedActions.size());
 
-		// for each state, build an automaton
-		for (String lexerState : groupedActions.keySet()) {
-			Collection<LexerAction> lexerStateActions = groupedActions.get(
-					lexerState).values();
-			FiniteAutomaton.Builder<LexerAction, Character> builder = FiniteAutomaton
-					.builder(Characters.setOperations());
-			State<LexerAction> startState = builder.newState();
-			List<State<LexerAction>> regexStartStates = new ArrayList<State<LexerAction>>(
-					lexerStateActions.size());
-
-			// construct an NFA for each regex
-			for (LexerAction lexerAction : lexerStateActions) {
-				Symbol regexParseTree = Regex.canonicalize(Regex.parse(
-						lexerAction.pattern()).parseTree());
-				regexStartStates.add(Regex.buildNfaFor(builder, lexerAction,
-						regexParseTree));
-			}
-
-			// combine the regex NFA's into a single NFA
-			for (State<LexerAction> regexStartState : regexStartStates) {
-				builder.createEdge(startState, regexStartState);
-			}
-
-			// create a DFA from the resulting NFA
-			FiniteAutomaton<LexerAction, Character> dfa = builder
-					.toFiniteAutomaton().toDfa(allActions);
-			automata.put(lexerState, dfa);
+		// parse each regex
+		List<Callable<Symbol>> parseTasks = new ArrayList<Callable<Symbol>>(
+				allActions.size());
+		for (final LexerAction lexerAction : allActions) {
+			parseTasks.add(new Callable<Symbol>() {
+				@Override
+				public Symbol call() {
+					return Regex.canonicalize(Regex.parse(
+							lexerAction.pattern()).parseTree());
+				}
+			});
+		}
+		Iterator<Symbol> regexParseTrees = invokeAll(executor, parseTasks)
+				.iterator();
+		for (LexerAction lexerAction : allActions) {
+			parseTrees.put(lexerAction, regexParseTrees.next());
 		}
 
-		final Lexer lexer = new Lexer() {
-
-			@Override
-			public boolean isCompiled() {
-				return false;
-			}
-
-			@Override
-			public Iterator<Symbol> lex(Reader reader) {
-				final LineNumberAndPositionBufferedReader markableReader = new LineNumberAndPositionBufferedReader(
-						reader);
-				// the mark always marks the "beginning" of the stream. That is,
-				// the place
-				// where we last matched
-				markableReader.mark();
-
-				// simulators in use prior to the current simulator
-				final Deque<Simulator<LexerAction, Character>> simulatorStack = new ArrayDeque<Simulator<LexerAction, Character>>();
-				simulatorStack.push(new DfaSimulator<LexerAction, Character>(
-						automata.get(DEFAULT_STATE)));
-				
-				return new Iterator<Symbol>() {
-					private LexerAction lastMatchEndAction = null;
-					private int lastMatchOffset;
-					private boolean sentEOF = false;
-
-					@Override
-					public boolean hasNext() {
-						return !this.sentEOF;
-					}
-
+		// construct an NFA for each regex, unless the DFAs are built
+		// directly from the parse trees
+		if (this.construction == Construction.Subset) {
+			// each gets its own builder so that they can be built
+			// independently
+			List<Callable<FiniteAutomaton<LexerAction, Character>>> nfaTasks = new ArrayList<Callable<FiniteAutomaton<LexerAction, Character>>>(
+					allActions.size());
+			for (final LexerAction lexerAction : allActions) {
+				nfaTasks.add(new Callable<FiniteAutomaton<LexerAction, Character>>() {
 					@Override
-					public Symbol next() {
-						Symbol token = null;
-
-						// loop until we find a token to return or send eof
-						do {
-							// read the next character
-							int c = markableReader.uncheckedRead();
-							
-							// if there are no more chars to send, send eof
-							if (c == -1) {
-								if (!this.hasNext()) {
-									throw new NoSuchElementException();
-								}
-
-								// if we have a last match, roll back and match
-								// that
-								if (this.lastMatchEndAction != null) {
-									token = this.performMatch();
-								}
-								// if we have no match but we've read characters since the last
-								// mark, then we must have started accepting a symbol and then encountered EOF
-								// e. g. we saw f, o, EOF and started matching "for". In that case, the trailing characters
-								// need to be sent as unrecognized symbols. Note that we know it's always safe to check
-								// the mark offset here because we always call mark() at the beginning or after any match
-								else if (markableReader.offsetFromMark() > 0) {
-									token = this.performMatch();
-								}
-								
-								// if we couldn't get a token through the above cases, send EOF.
-								// note that this can't just be "else if" since if one of the performMatch()
-								// calls above matches a skip action the returned token will still be null
-								if (token == null) {
-									// send EOF since we're really done
-									token = context.eofType().createSymbol("",
-											markableReader.lineNumber(),
-											markableReader.position());
-									this.sentEOF = true; // causes hasNext() to return false
-									try {
-										markableReader.close();
-									} catch (IOException ex) {
-										Utils.err(ex);
-									}
-								}
-
-								return token;
-							}
-
-							// simulate the input
-							switch (this.currentSimulator().consume((char) c)) {
-							case Reject:
-								// do nothing
-								break;
-							case Accept:
-								this.lastMatchEndAction = this
-										.currentSimulator().currentValue();
-								this.lastMatchOffset = markableReader
-										.offsetFromMark();
-								break;
-							case Error:
-								// attempt to match
-								token = this.performMatch();
-								break;
-							}
-
-						} while (token == null);
-
-						return token;
+					public FiniteAutomaton<LexerAction, Character> call() {
+						FiniteAutomaton.Builder<LexerAction, Character> builder = FiniteAutomaton
+								.builder(Characters.setOperations());
+						Regex.buildGlushkovNfaFor(builder, lexerAction,
+								parseTrees.get(lexerAction));
+						return builder.toFiniteAutomaton();
 					}
+				});
+			}
+			Iterator<FiniteAutomaton<LexerAction, Character>> nfas = invokeAll(
+					executor, nfaTasks).iterator();
+			for (LexerAction lexerAction : allActions) {
+				patternNfas.put(lexerAction, nfas.next());
+			}
+		}
 
-					private Symbol performMatch() {
-						Symbol match;
-
-						// roll back to the end of the last match
-						markableReader.reset();
-
-						// read the first character after the mark
-						int firstMatchChar = markableReader.uncheckedRead(), line = markableReader
-								.lineNumber(), position = markableReader
-								.position();
-						Utils.check(firstMatchChar != -1); // sanity check
-
-						// if we have a last match accept it
-						if (this.lastMatchEndAction != null) {
-							// re-read the matched string
-							char[] matchedChars = new char[this.lastMatchOffset];
-							matchedChars[0] = (char) firstMatchChar;
-							for (int i = 1; i < matchedChars.length; i++) {
-								matchedChars[i] = (char) markableReader
-										.uncheckedRead();
-							}
-
-							// possibly create a symbol
-							match = this.lastMatchEndAction.symbolType() != null ? this.lastMatchEndAction
-									.symbolType().createSymbol(
-											String.valueOf(matchedChars), line,
-											position) : null;
-
-							// update the current simulator
-							switch (this.lastMatchEndAction.actionType()) {
-							case Swap:
-								simulatorStack.pop();
-								// fall through
-							case Enter:
-								simulatorStack
-										.push(new DfaSimulator<LexerAction, Character>(
-												automata.get(this.lastMatchEndAction
-														.endState())));
-								break;
-							case Leave:
-								simulatorStack.pop();
-								// fall through
-							default:
-								// whenever reusing an old simulator, be sure to
-								// reset it!
-								this.currentSimulator().reset();
-								break;
-							}
-
-							this.lastMatchEndAction = null;
-						}
-						// otherwise, match unrecognized
-						else {
-							match = context.unrecognizedType().createSymbol(
-									String.valueOf((char) firstMatchChar),
-									line, position);
-							this.currentSimulator().reset();
-						}
-
-						// mark after the last match
-						markableReader.mark();
-
-						return match;
+		// for each state, build an automaton
+		List<String> lexerStates = new ArrayList<String>(
+				groupedActions.keySet());
+		List<Callable<CharAutomaton<LexerAction>>> automatonTasks = new ArrayList<Callable<CharAutomaton<LexerAction>>>(
+				lexerStates.size());
+		for (final String lexerState : lexerStates) {
+			automatonTasks.add(new Callable<CharAutomaton<LexerAction>>() {
+				@Override
+				public CharAutomaton<LexerAction> call() {
+					Collection<LexerAction> lexerStateActions = groupedActions
+							.get(lexerState).values();
+					LinkedHashMap<LexerAction, Symbol> lexerStateParseTrees = new LinkedHashMap<LexerAction, Symbol>();
+					for (LexerAction lexerAction : lexerStateActions) {
+						lexerStateParseTrees.put(lexerAction,
+								parseTrees.get(lexerAction));
 					}
 
-					private Simulator<LexerAction, Character> currentSimulator() {
-						return simulatorStack.peekFirst();
-					}
+					return RegexLexerGenerator.this.buildAutomaton(
+							RegexLexerGenerator.this.construction == Construction.Subset ? combine(
+									patternNfas, lexerStateActions) : null,
+							lexerStateParseTrees, allActions);
+				}
+			});
+		}
+		List<CharAutomaton<LexerAction>> lexerStateAutomata = invokeAll(
+				executor, automatonTasks);
+		for (int i = 0; i < lexerStates.size(); i++) {
+			automata.put(lexerStates.get(i), lexerStateAutomata.get(i));
+		}
 
-					@Override
-					public void remove() {
-						throw new UnsupportedOperationException("remove");
-					}
-				};
-			}
-		};
+		final Lexer lexer = new RegexLexer(context, allActions, automata);
 
 		return new LexerGenerator.Result() {
 
@@ -272,4 +208,88 @@ public class RegexLexerGenerator extends AbstractLexerGenerator {
 			}
 		};
 	}
+
+	/**
+	 * Combines the NFAs for the given actions into a single NFA
+	 */
+	private static FiniteAutomaton<LexerAction, Character> combine(
+			Map<LexerAction, FiniteAutomaton<LexerAction, Character>> patternNfas,
+			Collection<LexerAction> lexerActions) {
+		FiniteAutomaton.Builder<LexerAction, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		State<LexerAction> startState = builder.newState();
+
+		// splicing the NFAs in order numbers the states just as building them
+		// in this builder would
+		List<State<LexerAction>> regexStartStates = new ArrayList<State<LexerAction>>(
+				lexerActions.size());
+		for (LexerAction lexerAction : lexerActions) {
+			regexStartStates.add(builder.addAll(patternNfas.get(lexerAction)));
+		}
+		for (State<LexerAction> regexStartState : regexStartStates) {
+			builder.createEdge(startState, regexStartState);
+		}
+
+		return builder.toFiniteAutomaton();
+	}
+
+	/**
+	 * Builds the automaton used to lex in one lexer state from the combined
+	 * NFA for that state's actions. The canonicalized parse trees of those
+	 * actions' regexes are also given, in order of precedence. With the
+	 * Derivatives construction no NFAs are built, and nfa is null. By
+	 * default, this builds the DFA with the generator's construction and
+	 * compiles it.
+	 */
+	protected CharAutomaton<LexerAction> buildAutomaton(
+			FiniteAutomaton<LexerAction, Character> nfa,
+			LinkedHashMap<LexerAction, Symbol> regexParseTrees,
+			LinkedHashSet<LexerAction> allActions) {
+		FiniteAutomaton<LexerAction, Character> dfa = this.construction == Construction.Derivatives ? RegexDerivatives
+				.toDfa(regexParseTrees) : nfa.toDfa(allActions);
+		if (this.minimize) {
+			dfa = dfa.minimize();
+		}
+		return CharDfa.compile(dfa);
+	}
+
+	private static synchronized ForkJoinPool pool(int parallelism) {
+		ForkJoinPool pool = pools.get(parallelism);
+		if (pool == null) {
+			pools.put(parallelism, pool = new ForkJoinPool(parallelism));
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the tasks on the executor (or on the calling thread if it is null)
+	 * and returns their results in order
+	 */
+	private static <T> List<T> invokeAll(ExecutorService executor,
+			List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (executor == null) {
+				for (Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			} else {
+				for (Future<T> future : executor.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		} catch (ExecutionException ex) {
+			// rethrow errors from the tasks as if they had run on this thread
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw Utils.err(ex.getCause());
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw Utils.err(ex);
+		}
+
+		return results;
+	}
 }
@@ -0,0 +1,178 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+import compiler.automata.CharSet;
+
+/**
+ * The Glushkov position analysis of canonicalized regex parse trees (the
+ * nullable, firstpos, lastpos and followpos functions from the dragon book).
+ * Each character, wildcard or set in a regex is a position. Matching a string
+ * means reading its characters at a sequence of positions, where the first is
+ * in firstpos, each next one is in the followpos of the previous one and the
+ * last is in lastpos. Several regexes can be added; their positions share one
+ * numbering, in the order in which they were added.
+ * 
+ * @author Michael
+ */
+class RegexPositions {
+	private final List<CharSet> charSets = new ArrayList<CharSet>();
+	private final List<BitSet> follows = new ArrayList<BitSet>();
+
+	/**
+	 * The analysis of a regex or subexpression
+	 */
+	public static class Pattern {
+		private final boolean nullable;
+		private final BitSet first, last;
+
+		private Pattern(boolean nullable, BitSet first, BitSet last) {
+			this.nullable = nullable;
+			this.first = first;
+			this.last = last;
+		}
+
+		/**
+		 * Does the pattern match the empty string?
+		 */
+		public boolean nullable() {
+			return this.nullable;
+		}
+
+		/**
+		 * The positions which can match the first character
+		 */
+		public BitSet first() {
+			return this.first;
+		}
+
+		/**
+		 * The positions which can match the last character
+		 */
+		public BitSet last() {
+			return this.last;
+		}
+	}
+
+	/**
+	 * Adds the positions of the given canonicalized regex
+	 */
+	public Pattern add(Symbol regexParseTree) {
+		Utils.check(regexParseTree.type().equals(Regex.REGEX_LIST));
+		return this.analyze(regexParseTree);
+	}
+
+	public int size() {
+		return this.charSets.size();
+	}
+
+	/**
+	 * The characters matched at the given position
+	 */
+	public CharSet charSet(int position) {
+		return this.charSets.get(position);
+	}
+
+	/**
+	 * The positions which can follow the given position. The set must not be
+	 * modified.
+	 */
+	public BitSet follow(int position) {
+		return this.follows.get(position);
+	}
+
+	private Pattern analyze(Symbol symbol) {
+		if (symbol.type().equals(Regex.REGEX_LIST)) {
+			Pattern pattern = new Pattern(true, new BitSet(), new BitSet());
+			for (Symbol child : symbol.children()) {
+				pattern = this.concatenate(pattern, this.analyze(child));
+			}
+			return pattern;
+		}
+
+		Utils.check(symbol.type().equals(Regex.REGEX));
+		List<Symbol> children = symbol.children();
+		SymbolType type;
+		Pattern inner;
+		switch (children.size()) {
+		case 1:
+			type = children.get(0).type();
+			if (type.equals(Regex.WILDCARD)) {
+				return this.newPosition(CharSet.all());
+			}
+			// CHAR or ESCAPED
+			return this.newPosition(CharSet.of(Regex.getChar(children.get(0))));
+		case 2:
+			inner = this.analyze(children.get(0));
+			type = children.get(1).type();
+			if (type.equals(Regex.ZERO_OR_ONE)) {
+				return new Pattern(true, inner.first, inner.last);
+			}
+			// for R* and R+, R can follow itself
+			for (int p = inner.last.nextSetBit(0); p >= 0; p = inner.last
+					.nextSetBit(p + 1)) {
+				this.follows.get(p).or(inner.first);
+			}
+			if (type.equals(Regex.KLEENE_CLOSURE)) {
+				return new Pattern(true, inner.first, inner.last);
+			}
+			Utils.check(type.equals(Regex.ONE_PLUS));
+			return inner;
+		case 3:
+			type = children.get(1).type();
+			if (type.equals(Regex.OR)) {
+				Pattern left = this.analyze(children.get(0)), right = this
+						.analyze(children.get(2));
+				return new Pattern(left.nullable || right.nullable, union(
+						left.first, right.first), union(left.last, right.last));
+			}
+			if (type.equals(Regex.REGEX_LIST)) {
+				return this.analyze(children.get(1));
+			}
+			return this.newPosition(Regex.charSetOf(children.get(1)));
+		case 4:
+			return this.newPosition(Regex.charSetOf(children.get(2))
+					.complement());
+		default:
+			throw Utils.err("Should never get here!");
+		}
+	}
+
+	/**
+	 * Creates a pattern matching a single character from the set. An empty
+	 * set creates no position, and the pattern matches nothing.
+	 */
+	private Pattern newPosition(CharSet charSet) {
+		BitSet position = new BitSet();
+		if (!charSet.isEmpty()) {
+			position.set(this.charSets.size());
+			this.charSets.add(charSet);
+			this.follows.add(new BitSet());
+		}
+		return new Pattern(false, position, position);
+	}
+
+	private Pattern concatenate(Pattern left, Pattern right) {
+		for (int p = left.last.nextSetBit(0); p >= 0; p = left.last
+				.nextSetBit(p + 1)) {
+			this.follows.get(p).or(right.first);
+		}
+		return new Pattern(left.nullable && right.nullable,
+				left.nullable ? union(left.first, right.first) : left.first,
+				right.nullable ? union(left.last, right.last) : right.last);
+	}
+
+	private static BitSet union(BitSet a, BitSet b) {
+		BitSet union = (BitSet) a.clone();
+		union.or(b);
+		return union;
+	}
+}
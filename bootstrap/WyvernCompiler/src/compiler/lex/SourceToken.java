@@ -0,0 +1,165 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.List;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+
+/**
+ * A terminal symbol created by a lexer which refers to its text as a range of
+ * a shared, immutable source rather than holding a copy of it. The text is
+ * only materialized as a string when text() is first called, and the end line
+ * and position are computed by the lexer as it reads the token rather than by
+ * scanning the text.
+ * 
+ * @author Michael
+ */
+public class SourceToken implements Symbol {
+	private final SymbolType type;
+	private final CharSequence source;
+	private final int start, length, line, position, endLine, endPosition;
+	private String text;
+
+	SourceToken(SymbolType type, CharSequence source, int start, int length,
+			int line, int position, int endLine, int endPosition) {
+		this.type = type;
+		this.source = source;
+		this.start = start;
+		this.length = length;
+		this.line = line;
+		this.position = position;
+		this.endLine = endLine;
+		this.endPosition = endPosition;
+	}
+
+	/**
+	 * The source which the token's text is a range of. This is null for
+	 * tokens lexed from UTF-8 bytes (see RegexLexer.lex(ByteBuffer)), whose
+	 * start and length are offsets into the bytes.
+	 */
+	public CharSequence source() {
+		return this.source;
+	}
+
+	/**
+	 * The offset in source() at which the token's text starts
+	 */
+	public int start() {
+		return this.start;
+	}
+
+	/**
+	 * The length of the token's text
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#type()
+	 */
+	@Override
+	public SymbolType type() {
+		return this.type;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#line()
+	 */
+	@Override
+	public int line() {
+		return this.line;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#endLine()
+	 */
+	@Override
+	public int endLine() {
+		return this.endLine;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#position()
+	 */
+	@Override
+	public int position() {
+		return this.position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#endPosition()
+	 */
+	@Override
+	public int endPosition() {
+		return this.endPosition;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#text()
+	 */
+	@Override
+	public String text() {
+		// tokens can be shared between threads, but computing the text twice
+		// is harmless
+		String text = this.text;
+		if (text == null) {
+			this.text = text = this.materializeText();
+		}
+		return text;
+	}
+
+	/**
+	 * Copies the token's text out of the source
+	 */
+	String materializeText() {
+		return this.source.subSequence(this.start, this.start + this.length)
+				.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.Symbol#children()
+	 */
+	@Override
+	public List<Symbol> children() {
+		throw Utils.err("Terminal symbols have no children!");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		String nameAndText;
+		if (this.type().name().compareToIgnoreCase(this.text()) == 0)
+			nameAndText = '"' + this.text() + '"';
+		else if (this.length == 0)
+			nameAndText = this.type().name();
+		else
+			nameAndText = String.format("%s(\"%s\")", this.type().name(),
+					this.text());
+
+		return String.format("%s @%s:%s", nameAndText, this.line(),
+				this.position());
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+
+/**
+ * A growable buffer of tokens, filled by RegexLexer.lex(CharSequence,
+ * TokenBuffer). Rather than one Symbol object per token, the buffer keeps
+ * each token property in a column of primitives, with symbol types stored as
+ * small integer ids. Symbols are only created, as views of the buffer, when
+ * get() is called. A buffer can be reused for many texts, in which case its
+ * arrays are only allocated once.
+ * 
+ * @author Michael
+ */
+public class TokenBuffer {
+	private static final int INITIAL_CAPACITY = 256;
+
+	private CharSequence source;
+	private int count = 0;
+	private int[] typeIds, starts, lengths, lines, positions, endLines,
+			endPositions;
+	/**
+	 * The symbol type of each type id, in the order they were first seen
+	 */
+	private final List<SymbolType> types = new ArrayList<SymbolType>();
+	private final Map<SymbolType, Integer> typeIdsByType = new HashMap<SymbolType, Integer>();
+
+	public TokenBuffer() {
+		this.typeIds = new int[INITIAL_CAPACITY];
+		this.starts = new int[INITIAL_CAPACITY];
+		this.lengths = new int[INITIAL_CAPACITY];
+		this.lines = new int[INITIAL_CAPACITY];
+		this.positions = new int[INITIAL_CAPACITY];
+		this.endLines = new int[INITIAL_CAPACITY];
+		this.endPositions = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Removes all tokens, so that the buffer can be filled with tokens of the
+	 * given source. Type ids are kept.
+	 */
+	void clear(CharSequence source) {
+		this.source = source;
+		this.count = 0;
+	}
+
+	/**
+	 * Appends a token whose text is source[start, start + length)
+	 */
+	void add(SymbolType type, int start, int length, int line, int position,
+			int endLine, int endPosition) {
+		if (this.count == this.typeIds.length) {
+			this.grow();
+		}
+
+		int index = this.count++;
+		this.typeIds[index] = this.typeIdOf(type);
+		this.starts[index] = start;
+		this.lengths[index] = length;
+		this.lines[index] = line;
+		this.positions[index] = position;
+		this.endLines[index] = endLine;
+		this.endPositions[index] = endPosition;
+	}
+
+	private void grow() {
+		int capacity = 2 * this.typeIds.length;
+		this.typeIds = Arrays.copyOf(this.typeIds, capacity);
+		this.starts = Arrays.copyOf(this.starts, capacity);
+		this.lengths = Arrays.copyOf(this.lengths, capacity);
+		this.lines = Arrays.copyOf(this.lines, capacity);
+		this.positions = Arrays.copyOf(this.positions, capacity);
+		this.endLines = Arrays.copyOf(this.endLines, capacity);
+		this.endPositions = Arrays.copyOf(this.endPositions, capacity);
+	}
+
+	/**
+	 * The id of the given symbol type in this buffer, which is assigned when
+	 * the type is first seen
+	 */
+	public int typeIdOf(SymbolType type) {
+		Integer typeId = this.typeIdsByType.get(type);
+		if (typeId == null) {
+			typeId = this.types.size();
+			this.types.add(type);
+			this.typeIdsByType.put(type, typeId);
+		}
+		return typeId;
+	}
+
+	/**
+	 * The number of type ids which have been assigned
+	 */
+	public int typeCount() {
+		return this.types.size();
+	}
+
+	/**
+	 * The symbol type with the given id
+	 */
+	public SymbolType typeWithId(int typeId) {
+		return this.types.get(typeId);
+	}
+
+	/**
+	 * The source which the tokens' text is a range of
+	 */
+	public CharSequence source() {
+		return this.source;
+	}
+
+	/**
+	 * The number of tokens, including EOF
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	public int typeId(int index) {
+		return this.typeIds[this.checkIndex(index)];
+	}
+
+	public SymbolType type(int index) {
+		return this.types.get(this.typeIds[this.checkIndex(index)]);
+	}
+
+	/**
+	 * The offset in source() of the token's text
+	 */
+	public int start(int index) {
+		return this.starts[this.checkIndex(index)];
+	}
+
+	public int length(int index) {
+		return this.lengths[this.checkIndex(index)];
+	}
+
+	public int line(int index) {
+		return this.lines[this.checkIndex(index)];
+	}
+
+	public int position(int index) {
+		return this.positions[this.checkIndex(index)];
+	}
+
+	public int endLine(int index) {
+		return this.endLines[this.checkIndex(index)];
+	}
+
+	public int endPosition(int index) {
+		return this.endPositions[this.checkIndex(index)];
+	}
+
+	public String text(int index) {
+		int start = this.start(index);
+		return this.source.subSequence(start, start + this.lengths[index])
+				.toString();
+	}
+
+	/**
+	 * Creates a symbol for the token at the given index
+	 */
+	public Symbol get(int index) {
+		this.checkIndex(index);
+		return new SourceToken(this.types.get(this.typeIds[index]),
+				this.source, this.starts[index], this.lengths[index],
+				this.lines[index], this.positions[index],
+				this.endLines[index], this.endPositions[index]);
+	}
+
+	/**
+	 * A view of the tokens as a list of symbols, which creates a symbol each
+	 * time an element is accessed
+	 */
+	public List<Symbol> asList() {
+		return new AbstractList<Symbol>() {
+			@Override
+			public Symbol get(int index) {
+				return TokenBuffer.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return TokenBuffer.this.count;
+			}
+		};
+	}
+
+	/**
+	 * A view of the tokens' types
+	 */
+	public List<SymbolType> types() {
+		return new AbstractList<SymbolType>() {
+			@Override
+			public SymbolType get(int index) {
+				return TokenBuffer.this.type(index);
+			}
+
+			@Override
+			public int size() {
+				return TokenBuffer.this.count;
+			}
+		};
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= this.count) {
+			throw new IndexOutOfBoundsException("Invalid index " + index);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.nio.ByteBuffer;
+
+import compiler.Symbol;
+import compiler.SymbolType;
+import compiler.Utils;
+import compiler.automata.Utf8;
+
+/**
+ * Reads the bytes of a UTF-8 buffer in place for a lexer running byte DFAs
+ * (see CharDfa.toUtf8()). Each byte is read as a char from 0 to 255, and
+ * offsets count bytes, but line numbers and positions count characters just
+ * as they would in the decoded text: a well-formed sequence counts as one
+ * character (two for a supplementary character, which is a surrogate pair
+ * when decoded), and each maximal ill-formed subpart counts as one, since it
+ * decodes to a single U+FFFD.
+ * 
+ * @author Michael
+ */
+class Utf8Input implements LexerInput {
+	private final ByteBuffer bytes;
+	private final int end;
+	private int readIndex, markIndex;
+	/**
+	 * The lead byte of the sequence being read, and how many of its bytes have
+	 * been read
+	 */
+	private int lead = 0, sequenceIndex = 1;
+	private int lineNumber = 0, position = 0;
+	private boolean sawLineFeed = true;
+	private int markLead, markSequenceIndex, markLineNumber, markPosition;
+	private boolean markSawLineFeed, markSet = false;
+
+	/**
+	 * Creates an input which reads the buffer's bytes from its position to
+	 * its limit. Offsets are indices into the buffer.
+	 */
+	public Utf8Input(ByteBuffer bytes) {
+		this.bytes = bytes;
+		this.readIndex = bytes.position();
+		this.end = bytes.limit();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#uncheckedRead()
+	 */
+	@Override
+	public int uncheckedRead() {
+		// EOF case: don't update line and position info
+		if (this.readIndex == this.end) {
+			return -1;
+		}
+
+		int b = this.bytes.get(this.readIndex++) & 0xFF;
+		if (this.sequenceIndex < Utf8.sequenceLength(this.lead)
+				&& Utf8.isContinuation(this.lead, this.sequenceIndex, b)) {
+			// the last byte of a supplementary character reads as the second
+			// char of a surrogate pair
+			if (++this.sequenceIndex == 4) {
+				this.position++;
+			}
+			return b;
+		}
+
+		// otherwise, b starts a new character. If the last character was \n,
+		// this is the first character of a new line
+		if (this.sawLineFeed) {
+			this.lineNumber++;
+			this.position = 1;
+		} else {
+			this.position++;
+		}
+		this.sawLineFeed = (b == '\n');
+		this.lead = b;
+		this.sequenceIndex = 1;
+
+		return b;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#mark()
+	 */
+	@Override
+	public void mark() {
+		this.markIndex = this.readIndex;
+		this.markLead = this.lead;
+		this.markSequenceIndex = this.sequenceIndex;
+		this.markLineNumber = this.lineNumber;
+		this.markPosition = this.position;
+		this.markSawLineFeed = this.sawLineFeed;
+		this.markSet = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#reset()
+	 */
+	@Override
+	public void reset() {
+		Utils.check(this.markSet, "Cannot reset without first setting a mark!");
+
+		this.readIndex = this.markIndex;
+		this.lead = this.markLead;
+		this.sequenceIndex = this.markSequenceIndex;
+		this.lineNumber = this.markLineNumber;
+		this.position = this.markPosition;
+		this.sawLineFeed = this.markSawLineFeed;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#offsetFromMark()
+	 */
+	@Override
+	public int offsetFromMark() {
+		Utils.check(this.markSet, "Cannot check mark offset without first setting a mark!");
+
+		return this.readIndex - this.markIndex;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#charFromMark(int)
+	 */
+	@Override
+	public char charFromMark(int offset) {
+		return (char) (this.bytes.get(this.markIndex + offset) & 0xFF);
+	}
+
+	/**
+	 * The number of bytes in the character which starts at the mark: the
+	 * length of the well-formed sequence there, or of the maximal ill-formed
+	 * subpart
+	 */
+	public int characterLengthAtMark() {
+		int lead = this.bytes.get(this.markIndex) & 0xFF, length = 1;
+		while (length < Utf8.sequenceLength(lead)
+				&& this.markIndex + length < this.end
+				&& Utf8.isContinuation(lead, length,
+						this.bytes.get(this.markIndex + length) & 0xFF)) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Creates a token for the bytes read since the mark, which start at the
+	 * given line and position
+	 */
+	public Symbol createToken(SymbolType type, int line, int position) {
+		return new Utf8SourceToken(type, this.bytes, this.markIndex,
+				this.offsetFromMark(), line, position, this.lineNumber,
+				this.position);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#lineNumber()
+	 */
+	@Override
+	public int lineNumber() {
+		return this.lineNumber;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#position()
+	 */
+	@Override
+	public int position() {
+		return this.position;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.LexerInput#close()
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package compiler.lex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import compiler.SymbolType;
+
+/**
+ * A token whose text is a range of a buffer of UTF-8 bytes. The text is
+ * decoded when it is first needed, with malformed bytes decoded as U+FFFD.
+ * 
+ * @author Michael
+ */
+class Utf8SourceToken extends SourceToken {
+	private final ByteBuffer bytes;
+
+	Utf8SourceToken(SymbolType type, ByteBuffer bytes, int start, int length,
+			int line, int position, int endLine, int endPosition) {
+		super(type, null, start, length, line, position, endLine, endPosition);
+		this.bytes = bytes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see compiler.lex.SourceToken#materializeText()
+	 */
+	@Override
+	String materializeText() {
+		ByteBuffer range = this.bytes.duplicate();
+		range.limit(this.start() + this.length()).position(this.start());
+		return StandardCharsets.UTF_8.decode(range).toString();
+	}
+}
@@ -6,6 +6,7 @@ package compiler.parse;
 import java.util.*;
 
 import compiler.*;
+import compiler.lex.TokenBuffer;
 
 /**
  * @author Michael
@@ -110,6 +111,10 @@ public abstract class LRGenerator implements ParserGenerator {
 					break;
 				}
 
+		// the same table numbered for parsing token buffers
+		final ActionTable actionTable = new ActionTable(table, startState,
+				accept);
+
 		// System.out.println(Utils.NL + grammar.name() + " "
 		// + this.getClass().getName());
 		// for (State s : table.keySet())
@@ -172,22 +177,83 @@ public abstract class LRGenerator implements ParserGenerator {
 						this.stateStack.push(((Edge) action).to());
 						token = tokens.next();
 					} else { // reduce
-						Reduction reduction = (Reduction) action;
-						Symbol[] children = new Symbol[reduction.production()
-								.childTypes().size()];
-						for (int i = children.length - 1; i >= 0; i--) {
-							this.stateStack.pop();
-							children[i] = this.symbolStack.pop();
-						}
+						this.reduce((Reduction) action);
+					}
+				}
+
+				return this.result();
+			}
 
-						this.symbolStack.push(reduction.production()
-								.symbolType().createSymbol(children));
-						this.stateStack.push(((Edge) table.get(
-								this.stateStack.getFirst()).get(
-								this.symbolStack.peekFirst().type())).to());
+			Parser.Result parse(TokenBuffer tokens) {
+				// the table's id of each of the buffer's type ids
+				int[] typeIds = new int[tokens.typeCount()];
+				for (int i = 0; i < typeIds.length; i++) {
+					Integer typeId = actionTable.typeIds.get(tokens
+							.typeWithId(i));
+					typeIds[i] = typeId != null ? typeId : -1;
+				}
+
+				int[] states = new int[16];
+				int depth = 0, tokenIndex = 0;
+				states[depth++] = ActionTable.START_STATE;
+
+				while (true) {
+					int typeId = typeIds[tokens.typeId(tokenIndex)];
+					int action = typeId < 0 ? ActionTable.ERROR
+							: actionTable.actions[states[depth - 1]][typeId];
+
+					if (action == ActionTable.ACCEPT)
+						break;
+
+					if (action >= 0) { // shift
+						// the token only needs a symbol once it is part of
+						// the parse tree
+						this.symbolStack.push(tokens.get(tokenIndex));
+						if (depth == states.length)
+							states = Arrays.copyOf(states, 2 * depth);
+						states[depth++] = action;
+						tokenIndex++;
+					} else if (action == ActionTable.ERROR) {
+						throw Utils.err("No action for "
+								+ tokens.type(tokenIndex) + " at token "
+								+ tokenIndex);
+					} else { // reduce
+						int reduction = ActionTable.REDUCE - action;
+						Production production = actionTable.productions[reduction];
+						Symbol[] children = new Symbol[production.childTypes()
+								.size()];
+						for (int i = children.length - 1; i >= 0; i--)
+							children[i] = this.symbolStack.pop();
+						depth -= children.length;
+
+						this.symbolStack.push(production.symbolType()
+								.createSymbol(children));
+						if (depth == states.length)
+							states = Arrays.copyOf(states, 2 * depth);
+						states[depth] = actionTable.actions[states[depth - 1]][actionTable.productionTypeIds[reduction]];
+						depth++;
 					}
 				}
 
+				return this.result();
+			}
+
+			private void reduce(Reduction reduction) {
+				Symbol[] children = new Symbol[reduction.production()
+						.childTypes().size()];
+				for (int i = children.length - 1; i >= 0; i--) {
+					this.stateStack.pop();
+					children[i] = this.symbolStack.pop();
+				}
+
+				this.symbolStack.push(reduction.production().symbolType()
+						.createSymbol(children));
+				this.stateStack.push(((Edge) table.get(
+						this.stateStack.getFirst()).get(
+						this.symbolStack.peekFirst().type())).to());
+			}
+
+			private Parser.Result result() {
 				return new Parser.Result() {
 
 					@Override
@@ -220,6 +286,11 @@ public abstract class LRGenerator implements ParserGenerator {
 			public Parser.Result parse(Iterator<Symbol> tokens) {
 				return new LRInstance().parse(tokens);
 			}
+
+			@Override
+			public Parser.Result parse(TokenBuffer tokens) {
+				return new LRInstance().parse(tokens);
+			}
 		};
 
 		return new Result() {
@@ -266,6 +337,85 @@ public abstract class LRGenerator implements ParserGenerator {
 		};
 	}
 
+	/**
+	 * The parse table with its states and symbol types numbered, so that
+	 * parsing a TokenBuffer looks up each action in an array rather than a
+	 * hash map. Each action is the target state of a shift or goto, ERROR,
+	 * ACCEPT, or REDUCE - i to reduce by the i-th production.
+	 */
+	private static final class ActionTable {
+		public static final int START_STATE = 0, ERROR = -1, ACCEPT = -2,
+				REDUCE = -3;
+
+		public final int[][] actions;
+		public final Map<SymbolType, Integer> typeIds = new HashMap<SymbolType, Integer>();
+		public final Production[] productions;
+		/**
+		 * The id of the type which each production reduces to
+		 */
+		public final int[] productionTypeIds;
+
+		public ActionTable(Map<State, Map<SymbolType, Object>> table,
+				State startState, Object accept) {
+			Map<State, Integer> stateIds = new HashMap<State, Integer>();
+			Map<Production, Integer> productionIds = new LinkedHashMap<Production, Integer>();
+			id(stateIds, startState);
+			for (Map.Entry<State, Map<SymbolType, Object>> entry : table
+					.entrySet()) {
+				id(stateIds, entry.getKey());
+				for (Map.Entry<SymbolType, Object> action : entry.getValue()
+						.entrySet()) {
+					id(this.typeIds, action.getKey());
+					if (action.getValue() instanceof Edge)
+						id(stateIds, ((Edge) action.getValue()).to());
+					else if (action.getValue() instanceof Reduction) {
+						Production production = ((Reduction) action.getValue())
+								.production();
+						id(productionIds, production);
+						id(this.typeIds, production.symbolType());
+					}
+				}
+			}
+
+			this.actions = new int[stateIds.size()][this.typeIds.size()];
+			for (int[] stateActions : this.actions)
+				Arrays.fill(stateActions, ERROR);
+			for (Map.Entry<State, Map<SymbolType, Object>> entry : table
+					.entrySet()) {
+				int[] stateActions = this.actions[stateIds.get(entry.getKey())];
+				for (Map.Entry<SymbolType, Object> action : entry.getValue()
+						.entrySet()) {
+					int typeId = this.typeIds.get(action.getKey());
+					if (action.getValue() == accept)
+						stateActions[typeId] = ACCEPT;
+					else if (action.getValue() instanceof Edge)
+						stateActions[typeId] = stateIds.get(((Edge) action
+								.getValue()).to());
+					else if (action.getValue() instanceof Reduction)
+						stateActions[typeId] = REDUCE
+								- productionIds.get(((Reduction) action
+										.getValue()).production());
+				}
+			}
+
+			this.productions = productionIds.keySet().toArray(
+					new Production[productionIds.size()]);
+			this.productionTypeIds = new int[this.productions.length];
+			for (int i = 0; i < this.productions.length; i++)
+				this.productionTypeIds[i] = this.typeIds
+						.get(this.productions[i].symbolType());
+		}
+
+		private static <K> int id(Map<K, Integer> ids, K key) {
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = ids.size();
+				ids.put(key, id);
+			}
+			return id;
+		}
+	}
+
 	private static Object maxByPrecedence(PrecedenceFunction precedence,
 			Object a, Object b) {
 		if (a instanceof Edge && b instanceof Reduction) {
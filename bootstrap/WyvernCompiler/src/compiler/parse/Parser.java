@@ -6,6 +6,7 @@ package compiler.parse;
 import java.util.*;
 
 import compiler.*;
+import compiler.lex.TokenBuffer;
 
 /**
  * @author Michael
@@ -33,4 +34,10 @@ public interface Parser {
 	 * Attempts to parse the token stream
 	 */
 	public Parser.Result parse(Iterator<Symbol> tokens);
+
+	/**
+	 * Attempts to parse the buffered tokens. Symbols are only created for the
+	 * tokens which end up in the parse tree.
+	 */
+	public Parser.Result parse(TokenBuffer tokens);
 }
@@ -3,6 +3,7 @@
  */
 package compiler.parse;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,6 +15,7 @@ import java.util.Map;
 import compiler.Symbol;
 import compiler.SymbolType;
 import compiler.Utils;
+import compiler.lex.TokenBuffer;
 import compiler.parse.RecursiveDescentAnalyzer.Rule;
 import compiler.parse.RecursiveDescentParsingCache.CacheEntry;
 
@@ -186,9 +188,31 @@ public class RecursiveDescentGenerator implements ParserGenerator {
 
 			@Override
 			public Result parse(Iterator<Symbol> tokenStream) {
-				List<Symbol> tokens = Utils.toList(tokenStream);
+				final List<Symbol> tokens = Utils.toList(tokenStream);
+				List<SymbolType> tokenTypes = new AbstractList<SymbolType>() {
+					@Override
+					public SymbolType get(int index) {
+						return tokens.get(index).type();
+					}
+
+					@Override
+					public int size() {
+						return tokens.size();
+					}
+				};
+
+				return this.parse(tokens, tokenTypes);
+			}
+
+			@Override
+			public Result parse(TokenBuffer tokens) {
+				// backtracking only looks at the token types, so symbols are
+				// only created for tokens which are matched
+				return this.parse(tokens.asList(), tokens.types());
+			}
 
-				ParserInstance instance = new ParserInstance(parseTable, analyzer, tokens);
+			private Result parse(List<Symbol> tokens, List<SymbolType> tokenTypes) {
+				ParserInstance instance = new ParserInstance(parseTable, analyzer, tokens, tokenTypes);
 				final Symbol parseTree = instance.tryParse(grammar.context().startType());
 
 				return new Result() {
@@ -256,15 +280,17 @@ public class RecursiveDescentGenerator implements ParserGenerator {
 		private final Map<SymbolType, Map<SymbolType, List<Production>>> parseTable;
 		private final RecursiveDescentAnalyzer analyzer;
 		private final List<Symbol> tokens;
+		private final List<SymbolType> tokenTypes;
 		private final RecursiveDescentPrecedenceHelper precedenceHelper;
 
 		private int tokenIndex;
 
 		public ParserInstance(Map<SymbolType, Map<SymbolType, List<Production>>> parseTable,
-				RecursiveDescentAnalyzer analyzer, List<Symbol> tokens) {
+				RecursiveDescentAnalyzer analyzer, List<Symbol> tokens, List<SymbolType> tokenTypes) {
 			this.parseTable = parseTable;
 			this.analyzer = analyzer;
 			this.tokens = tokens;
+			this.tokenTypes = tokenTypes;
 			this.precedenceHelper = new RecursiveDescentPrecedenceHelper(this.analyzer);
 		}
 
@@ -282,7 +308,7 @@ public class RecursiveDescentGenerator implements ParserGenerator {
 
 			// use the parse table to determine the productions to be considered
 			// for parsing the given type
-			SymbolType nextTokenType = this.tokens.get(startTokenIndex).type();
+			SymbolType nextTokenType = this.tokenTypes.get(startTokenIndex);
 			Map<SymbolType, List<Production>> tableEntry = this.parseTable.get(nextTokenType);
 			if (tableEntry == null) {
 				return null;
@@ -325,18 +351,17 @@ public class RecursiveDescentGenerator implements ParserGenerator {
 				SymbolType childType = production.childTypes().get(i);
 				// if matching a token, try to eat the token
 				if (childType.isTerminal()) {
-					if (this.tokenIndex >= this.tokens.size()) {
+					if (this.tokenIndex >= this.tokenTypes.size()) {
 						return null;
 					}
-					Symbol currentToken = this.tokens.get(this.tokenIndex);
-					if (!currentToken.type().equals(childType)) {
+					if (!this.tokenTypes.get(this.tokenIndex).equals(childType)) {
 						return null;
 					}
 
 					if (parsedChildren == null) {
 						parsedChildren = new ArrayList<Symbol>();
 					}
-					parsedChildren.add(currentToken);
+					parsedChildren.add(this.tokens.get(this.tokenIndex));
 					++this.tokenIndex;
 				} else {
 					// parse a non-terminal recursively
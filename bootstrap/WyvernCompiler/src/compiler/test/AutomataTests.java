@@ -7,15 +7,25 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import compiler.Utils;
+import compiler.automata.CharClassMap;
+import compiler.automata.CharDfa;
+import compiler.automata.CharDfaSimulator;
+import compiler.automata.CharSet;
+import compiler.automata.CharSimulator;
 import compiler.automata.Characters;
 import compiler.automata.DfaSimulator;
+import compiler.automata.Edge;
 import compiler.automata.FiniteAutomaton;
+import compiler.automata.LazyCharDfa;
 import compiler.automata.SetOperations;
 import compiler.automata.SimpleSetOperations;
 import compiler.automata.Simulator;
@@ -162,6 +172,69 @@ public class AutomataTests {
 		}
 	}
 
+	public static void charSetTest() {
+		CharSet set = CharSet.of('c', 'a', 'b', 'x', 'a');
+		Utils.check(set.rangeCount() == 2 && set.size() == 4);
+		Utils.check(set.equals(CharSet.range('a', 'c').union(CharSet.of('x'))));
+		Utils.check(set.contains('a') && set.contains('c') && set.contains('x'));
+		Utils.check(!set.contains('d') && !set.contains('`') && !set.contains('y'));
+		Utils.check(set.contains((Object) 'b') && !set.contains((Object) "b"));
+		Utils.check(new ArrayList<Character>(set).equals(Arrays.asList('a', 'b',
+				'c', 'x')));
+		Utils.check(set.equals(CharSet.copyOf(Utils.set('x', 'b', 'c', 'a'))));
+		Utils.check(set.min() == 'a' && set.max() == 'x');
+
+		// union merges overlapping and adjacent ranges
+		CharSet union = set.union(CharSet.range('d', 'w'));
+		Utils.check(union.equals(CharSet.range('a', 'x')), "Bad union!");
+		Utils.check(union.containsAll(set) && !set.containsAll(union));
+		Utils.check(union.containsAll(Characters.range('b', 'x')));
+		Utils.check(!union.containsAll(Characters.range('b', 'y')));
+
+		Utils.check(set.intersect(CharSet.range('b', 'z')).equals(
+				CharSet.of('b', 'c', 'x')), "Bad intersection!");
+		Utils.check(set.intersect(CharSet.of('d')).isEmpty());
+
+		CharSet complement = set.complement();
+		Utils.check(complement.rangeCount() == 3);
+		Utils.check(complement.size() == Character.MAX_VALUE + 1 - set.size());
+		Utils.check(complement.contains(Character.MIN_VALUE)
+				&& complement.contains(Character.MAX_VALUE)
+				&& !complement.contains('b'));
+		Utils.check(complement.complement().equals(set));
+		Utils.check(CharSet.all().complement().isEmpty());
+		Utils.check(CharSet.empty().complement().equals(CharSet.all()));
+		// a CharSet is a Set
+		Utils.check(set.equals(Utils.set('a', 'b', 'c', 'x'))
+				&& Utils.set('a', 'b', 'c', 'x').equals(set));
+		Utils.check(set.hashCode() == Utils.set('a', 'b', 'c', 'x').hashCode());
+		Utils.check(CharSet.range('\uFF00', '\uFFFE').hashCode() == new HashSet<Character>(
+				Characters.range('\uFF00', '\uFFFE')).hashCode());
+	}
+
+	public static void characterPartitionTest() {
+		Collection<Collection<Character>> sets = new ArrayList<Collection<Character>>();
+		sets.add(Utils.set('c', 'a', 'b'));
+		sets.add(Characters.range('b', 'd'));
+		sets.add(Utils.set('q', 's', 'x', 'z'));
+		sets.add(Characters.range('x', 'x'));
+		Set<Collection<Character>> result = Characters.setOperations()
+				.partitionedUnion(sets);
+
+		// the characters covered by the same sets are grouped
+		Set<Collection<Character>> expected = new HashSet<Collection<Character>>();
+		expected.add(CharSet.of('a'));
+		expected.add(Characters.range('b', 'c'));
+		expected.add(CharSet.of('d'));
+		expected.add(CharSet.of('q', 's', 'z'));
+		expected.add(CharSet.of('x'));
+		Utils.check(result.equals(expected), "Bad partition!");
+
+		Utils.check(Characters.setOperations()
+				.partitionedUnion(new ArrayList<Collection<Character>>())
+				.isEmpty());
+	}
+
 	public static void dfaConversionTest() {
 		LinkedHashSet<String> values = Utils.set("aa", "bb", "cc", "dd");
 
@@ -218,6 +291,175 @@ public class AutomataTests {
 		Utils.check(aaCount == 2);
 	}
 
+	/**
+	 * Checks toDfa() against the subset construction over hash sets of states
+	 * which it replaced, on random nfas: each dfa state must have the value
+	 * and the edges of the set of nfa states which it stands for.
+	 */
+	public static void numberedSubsetConstructionTest() {
+		Random random = new Random(5);
+		List<Collection<Character>> transitionSets = new ArrayList<Collection<Character>>();
+		transitionSets.add(Characters.range('a', 'c'));
+		transitionSets.add(Collections.singleton('b'));
+		transitionSets.add(Characters.range('b', 'd'));
+		transitionSets.add(Utils.set('a', 'd'));
+		transitionSets.add(null);
+		String[] values = { null, null, "x", "y", "z" };
+		LinkedHashSet<String> precedence = Utils.set("y", "x", "z");
+
+		for (int i = 0; i < 200; i++) {
+			FiniteAutomaton.Builder<String, Character> builder = FiniteAutomaton
+					.builder(Characters.setOperations());
+			List<State<String>> states = new ArrayList<State<String>>();
+			// some have enough states for the bit sets to take more than one
+			// word. Random edges between that many states make huge DFAs, so
+			// those are a chain with a few edges which skip a little way ahead
+			boolean large = i % 10 == 0;
+			int stateCount = large ? 65 + random.nextInt(16) : 1 + random.nextInt(12);
+			for (int j = 0; j < stateCount; j++) {
+				states.add(builder.newState(values[random.nextInt(values.length)]));
+			}
+			for (int j = random.nextInt(large ? 3 : 3 * stateCount); j >= 0; j--) {
+				int from = random.nextInt(stateCount), to = large ? Math.min(from + random.nextInt(4), stateCount - 1)
+						: random.nextInt(stateCount);
+				builder.createEdge(states.get(from), transitionSets.get(random.nextInt(transitionSets.size())),
+						states.get(to));
+			}
+			for (int j = 0; large && j < stateCount - 1; j++) {
+				builder.createEdge(states.get(j), transitionSets.get(random.nextInt(transitionSets.size())),
+						states.get(j + 1));
+			}
+			FiniteAutomaton<String, Character> nfa = builder.toFiniteAutomaton();
+			checkSubsetConstruction(nfa, nfa.toDfa(precedence), precedence);
+		}
+	}
+
+	private static void checkSubsetConstruction(
+			FiniteAutomaton<String, Character> nfa,
+			FiniteAutomaton<String, Character> dfa,
+			LinkedHashSet<String> precedence) {
+		Map<Set<State<String>>, State<String>> dfaStates = new HashMap<Set<State<String>>, State<String>>();
+		List<Set<State<String>>> nfaStateSets = new ArrayList<Set<State<String>>>();
+		nfaStateSets.add(nfa.closure(Collections.singleton(nfa.startState())));
+		dfaStates.put(nfaStateSets.get(0), dfa.startState());
+
+		for (int i = 0; i < nfaStateSets.size(); i++) {
+			Set<State<String>> nfaStateSet = nfaStateSets.get(i);
+			State<String> dfaState = dfaStates.get(nfaStateSet);
+
+			String value = null;
+			for (String precedenceValue : precedence) {
+				for (State<String> state : nfaStateSet) {
+					if (value == null && precedenceValue.equals(state.value())) {
+						value = precedenceValue;
+					}
+				}
+			}
+			Utils.check(Utils.equals(dfaState.value(), value), "Bad value!");
+
+			Set<Collection<Character>> stateTransitionSets = new HashSet<Collection<Character>>();
+			for (State<String> state : nfaStateSet) {
+				for (Edge<String, Character> edge : nfa.edgesFrom(state)) {
+					if (edge.transitionOnSet() != null) {
+						stateTransitionSets.add(edge.transitionOnSet());
+					}
+				}
+			}
+			Set<Collection<Character>> alphabet = Characters.setOperations()
+					.partitionedUnion(stateTransitionSets);
+			Utils.check(dfa.edgesFrom(dfaState).size() == alphabet.size(),
+					"Bad edge count!");
+			for (Edge<String, Character> edge : dfa.edgesFrom(dfaState)) {
+				Utils.check(alphabet.contains(edge.transitionOnSet()),
+						"Bad transition set!");
+				Set<State<String>> reachable = nfa.reachableStates(nfaStateSet,
+						edge.transitionOnSet());
+				State<String> target = dfaStates.get(reachable);
+				if (target == null) {
+					Utils.check(!dfaStates.containsValue(edge.to()),
+							"Merged dfa states!");
+					dfaStates.put(reachable, edge.to());
+					nfaStateSets.add(reachable);
+				} else {
+					Utils.check(target.equals(edge.to()), "Bad edge target!");
+				}
+			}
+		}
+		Utils.check(dfa.states().size() == nfaStateSets.size(),
+				"Bad state count!");
+	}
+
+	public static void minimizationTest() {
+		LinkedHashSet<String> values = Utils.set("aa", "bb");
+
+		// the dragon book's subset construction output for (a|b)*abb, where
+		// s1 and s3 are equivalent
+		FiniteAutomaton.Builder<String, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		Set<Character> a = Collections.singleton('a'), b = Collections
+				.singleton('b');
+		State<String> s1 = builder.newState(), s2 = builder.newState(), s3 = builder
+				.newState(), s4 = builder.newState(), s5 = builder
+				.newState("aa");
+		builder.createEdge(s1, a, s2);
+		builder.createEdge(s1, b, s3);
+		builder.createEdge(s2, a, s2);
+		builder.createEdge(s2, b, s4);
+		builder.createEdge(s3, a, s2);
+		builder.createEdge(s3, b, s3);
+		builder.createEdge(s4, a, s2);
+		builder.createEdge(s4, b, s5);
+		builder.createEdge(s5, a, s2);
+		builder.createEdge(s5, b, s3);
+		FiniteAutomaton<String, Character> auto = builder.toFiniteAutomaton()
+				.minimize();
+		Utils.check(auto.states().size() == 4, "Bad minimal state count!");
+		Utils.check(auto.edges().size() == 8, "Bad minimal edge count!");
+		Simulator<String, Character> sim = new DfaSimulator<String, Character>(
+				auto);
+		for (String input : new String[] { "abb", "aabb", "babb", "abbabb" }) {
+			checkSimulatorAccepts(sim, input, "aa");
+		}
+		for (String input : new String[] { "", "ab", "abba", "bbb" }) {
+			checkSimulatorAccepts(sim, input, null);
+		}
+
+		// states with different values are never merged, and states which
+		// can't reach an accepting state are removed
+		builder = FiniteAutomaton.builder(Characters.setOperations());
+		s1 = builder.newState();
+		s2 = builder.newState("aa");
+		s3 = builder.newState("bb");
+		s4 = builder.newState();
+		builder.createEdge(s1, Characters.range('a', 'a'), s2);
+		builder.createEdge(s1, Characters.range('b', 'b'), s3);
+		builder.createEdge(s1, Characters.range('c', 'c'), s4);
+		builder.createEdge(s4, Characters.range('c', 'c'), s4);
+		auto = builder.toFiniteAutomaton().minimize();
+		Utils.check(auto.states().size() == 3, "Bad minimal state count!");
+		Utils.check(auto.edges().size() == 2, "Bad minimal edge count!");
+
+		// a minimal dfa is unaffected by minimization, and the result of
+		// minimizing the output of toDfa() is consistent with it
+		builder = FiniteAutomaton.builder(Characters.setOperations());
+		s1 = builder.newState();
+		s2 = builder.newState("aa");
+		builder.createEdge(s1, Characters.range('a', 'c'), s2);
+		builder.createEdge(s2, Collections.singleton('A'), s1);
+		auto = builder.toFiniteAutomaton().toDfa(values);
+		Utils.check(auto.minimize().equals(auto));
+	}
+
+	private static void checkSimulatorAccepts(Simulator<String, Character> sim,
+			String input, String expectedValue) {
+		sim.reset();
+		for (int i = 0; i < input.length(); i++) {
+			sim.consume(input.charAt(i));
+		}
+		Utils.check(sim.simulatorState() != SimulatorState.Error
+				&& Utils.equals(sim.currentValue(), expectedValue), input);
+	}
+
 	public static void simulatorTest() {
 		FiniteAutomaton.Builder<Integer, Character> builder = FiniteAutomaton
 				.builder(Characters.setOperations());
@@ -248,6 +490,168 @@ public class AutomataTests {
 						SimulatorState.Reject, SimulatorState.Accept,
 						SimulatorState.Accept, SimulatorState.Error });
 
+		// the compiled form of the dfa should behave identically
+		sim = new CharDfaSimulator<Integer>(CharDfa.compile(auto));
+		checkSimulator(sim, "", new Integer[] { null },
+				new SimulatorState[] { SimulatorState.Reject });
+		checkSimulator(sim, "2.3", new Integer[] { null, null, 3, 3 },
+				new SimulatorState[] { SimulatorState.Reject,
+						SimulatorState.Reject, SimulatorState.Accept,
+						SimulatorState.Accept });
+		checkSimulator(sim, ".35a", new Integer[] { null, null, 5, 5, -1 },
+				new SimulatorState[] { SimulatorState.Reject,
+						SimulatorState.Reject, SimulatorState.Accept,
+						SimulatorState.Accept, SimulatorState.Error });
+	}
+
+	public static void charDfaTest() {
+		FiniteAutomaton.Builder<String, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		State<String> s1 = builder.newState(), s2 = builder.newState("id"), s3 = builder
+				.newState("kw");
+		builder.createEdge(s1, Characters.range('a', 'z'), s2);
+		builder.createEdge(s1, Utils.set('_', '$'), s3);
+		builder.createEdge(s2, Characters.range('a', 'z'), s2);
+		builder.createEdge(s2, Characters.range('0', '9'), s2);
+
+		CharDfa<String> dfa = CharDfa.compile(builder.toFiniteAutomaton());
+		Utils.check(dfa.stateCount() == 3);
+		// a-z, 0-9, {_, $} and the class of everything else
+		Utils.check(dfa.classCount() == 4, "Bad class count!");
+		Utils.check(dfa.classOf('a') == dfa.classOf('z'));
+		Utils.check(dfa.classOf('_') == dfa.classOf('$'));
+		Utils.check(dfa.classOf('A') == 0);
+		Utils.check(dfa.classOf(Character.MAX_VALUE) == 0);
+		Utils.check(dfa.value(dfa.startState()) == null);
+		int state = dfa.transition(dfa.startState(), 'q');
+		Utils.check("id".equals(dfa.value(state)));
+		Utils.check(dfa.transition(state, '7') == state);
+		Utils.check(dfa.transition(state, '_') == CharDfa.ERROR_STATE);
+		Utils.check("kw".equals(dfa.value(dfa.transition(dfa.startState(),
+				'$'))));
+		Utils.check(dfa.transition(dfa.startState(), '0') == CharDfa.ERROR_STATE);
+
+		// classes which always transition together are merged
+		builder = FiniteAutomaton.builder(Characters.setOperations());
+		s1 = builder.newState();
+		s2 = builder.newState("ab");
+		builder.createEdge(s1, Characters.range('a', 'a'), s2);
+		builder.createEdge(s1, Collections.singleton('b'), s2);
+		builder.createEdge(s1, Characters.range('\u0100', '\u4000'), s2);
+		dfa = CharDfa.compile(builder.toFiniteAutomaton());
+		Utils.check(dfa.classCount() == 2, "Bad class count!");
+		Utils.check(dfa.classOf('a') == dfa.classOf('b'));
+		Utils.check(dfa.classOf('a') == dfa.classOf('\u1234'));
+		Utils.check(dfa.classOf('c') == 0);
+	}
+
+	public static void lazyCharDfaTest() {
+		// an NFA for (a|b)*abb or a+, preferring the former
+		FiniteAutomaton.Builder<String, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		State<String> start = builder.newState(), loop = builder.newState(), a = builder
+				.newState(), ab = builder.newState(), abb = builder
+				.newState("abb"), as = builder.newState("a+");
+		builder.createEdge(start, loop);
+		builder.createEdge(loop, Utils.set('a', 'b'), loop);
+		builder.createEdge(loop, Collections.singleton('a'), a);
+		builder.createEdge(a, Collections.singleton('b'), ab);
+		builder.createEdge(ab, Collections.singleton('b'), abb);
+		builder.createEdge(start, Collections.singleton('a'), as);
+		builder.createEdge(as, Collections.singleton('a'), as);
+		FiniteAutomaton<String, Character> nfa = builder.toFiniteAutomaton();
+		LinkedHashSet<String> precedence = Utils.set("abb", "a+");
+
+		CharDfa<String> dfa = CharDfa.compile(nfa.toDfa(precedence));
+		String[] inputs = { "", "a", "aaa", "abb", "babb", "aabbabb", "abc",
+				"bbbbbbbabbababb", "c" };
+		// a cache of one state forces a flush on almost every transition
+		for (int maxStates : new int[] { 1, 2, LazyCharDfa.DEFAULT_MAX_STATES }) {
+			LazyCharDfa<String> lazy = new LazyCharDfa<String>(nfa, precedence,
+					maxStates);
+			for (String input : inputs) {
+				CharSimulator<String> expected = dfa.newSimulator(), actual = lazy
+						.newSimulator();
+				for (char ch : input.toCharArray()) {
+					Utils.check(expected.consume(ch) == actual.consume(ch),
+							"Bad simulator state!");
+					Utils.check(expected.simulatorState() == SimulatorState.Error
+							|| Utils.equals(expected.currentValue(),
+									actual.currentValue()), "Bad value!");
+				}
+				Utils.check(actual.reset() == expected.reset());
+			}
+			Utils.check(lazy.cachedStateCount() <= maxStates);
+			Utils.check(maxStates == LazyCharDfa.DEFAULT_MAX_STATES ? lazy
+					.flushCount() == 0 : lazy.flushCount() > 0);
+		}
+
+		// a simulator handed to another thread moves to that thread's cache,
+		// which is bounded and flushed on its own
+		final LazyCharDfa<String> lazy = new LazyCharDfa<String>(nfa,
+				precedence, 1);
+		final CharSimulator<String> handedOff = lazy.newSimulator();
+		final String input = "aabbabbaabbbab";
+		final int half = input.length() / 2;
+		for (int i = 0; i < half; i++) {
+			handedOff.consume(input.charAt(i));
+		}
+		int cachedStates = lazy.cachedStateCount(), flushes = lazy
+				.flushCount();
+		final long firstId = handedOff.stateId();
+		final int[] otherThread = new int[2];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Utils.check(handedOff.stateId() == firstId);
+				for (int i = half; i < input.length(); i++) {
+					handedOff.consume(input.charAt(i));
+				}
+				otherThread[0] = lazy.cachedStateCount();
+				otherThread[1] = lazy.flushCount();
+			}
+		});
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			throw new RuntimeException(ex);
+		}
+		Utils.check(lazy.cachedStateCount() == cachedStates
+				&& lazy.flushCount() == flushes,
+				"Another thread changed this thread's cache!");
+		Utils.check(otherThread[0] <= 1 && otherThread[1] > 0,
+				"Bad cache on the other thread!");
+		Utils.check(handedOff.stateId() != firstId);
+
+		CharSimulator<String> expected = dfa.newSimulator();
+		for (char ch : input.toCharArray()) {
+			expected.consume(ch);
+		}
+		Utils.check(handedOff.simulatorState() == expected.simulatorState()
+				&& Utils.equals(handedOff.currentValue(),
+						expected.currentValue()), "Bad handed off simulator!");
+	}
+
+	public static void charClassMapTest() {
+		List<Collection<Character>> classes = new ArrayList<Collection<Character>>();
+		classes.add(Characters.range('a', 'z'));
+		classes.add(Utils.set('0', '\u2000'));
+		classes.add(Characters.range('\u2001', Character.MAX_VALUE));
+		CharClassMap map = CharClassMap.fromPartition(classes);
+		Utils.check(map.classCount() == 4);
+		Utils.check(map.classOf('a') == 1 && map.classOf('z') == 1);
+		Utils.check(map.classOf('0') == 2 && map.classOf('\u2000') == 2);
+		Utils.check(map.classOf('\u2001') == 3
+				&& map.classOf(Character.MAX_VALUE) == 3);
+		Utils.check(map.classOf('A') == 0 && map.classOf('\u02FF') == 0);
+		// block 0, the class 0 blocks, block 0x20 and the class 3 blocks
+		Utils.check(map.blockCount() == 4, "Bad block count!");
+
+		CharClassMap remapped = map.remap(new int[] { 0, 1, 0, 1 }, 2);
+		Utils.check(remapped.classCount() == 2);
+		Utils.check(remapped.classOf('a') == 1 && remapped.classOf('0') == 0
+				&& remapped.classOf('\u4000') == 1);
 	}
 
 	private static void checkSimulator(Simulator<Integer, Character> sim,
@@ -274,10 +678,23 @@ public class AutomataTests {
 		setOperationsTest(new SimpleSetOperations<Character>(), false);
 		setOperationsTest(Characters.setOperations(), true);
 
+		charSetTest();
+
+		characterPartitionTest();
+
 		dfaConversionTest();
 
+		numberedSubsetConstructionTest();
+		minimizationTest();
+
 		simulatorTest();
 
+		charDfaTest();
+
+		charClassMapTest();
+
+		lazyCharDfaTest();
+
 		System.out.println("All automata tests passed!");
 	}
 
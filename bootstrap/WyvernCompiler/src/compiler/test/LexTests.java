@@ -3,31 +3,57 @@
  */
 package compiler.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import compiler.Context;
 import compiler.Symbol;
 import compiler.SymbolType;
 import compiler.Utils;
+import compiler.automata.CharAutomaton;
+import compiler.automata.CharDfa;
+import compiler.automata.CharSimulator;
 import compiler.automata.Characters;
 import compiler.automata.Edge;
 import compiler.automata.FiniteAutomaton;
+import compiler.automata.SimulatorState;
 import compiler.automata.State;
+import compiler.lex.BitParallelAutomaton;
 import compiler.lex.CharLexerGenerator;
+import compiler.lex.CompiledLexer;
+import compiler.lex.CompiledRegex;
+import compiler.lex.JavaLexerGenerator;
+import compiler.lex.KeywordSet;
 import compiler.lex.Lexer;
+import compiler.lex.LazyDfaLexerGenerator;
+import compiler.lex.LexedDocument;
 import compiler.lex.LexerAction;
+import compiler.lex.LexerGenerator;
 import compiler.lex.LineNumberAndPositionBufferedReader;
 import compiler.lex.Regex;
+import compiler.lex.RegexLexer;
 import compiler.lex.RegexLexerGenerator;
+import compiler.lex.SourceToken;
+import compiler.lex.TokenBuffer;
 
 /**
  * @author Michael
@@ -74,6 +100,24 @@ public class LexTests {
 		for (i = 0; i < types.length; i++)
 			Utils.check(tokens.get(i).type().equals(types[i]), i + ": " + tokens.get(i).type() + " != " + types[i]);
 		lexerLineNumberAndPositionTest(lexer, text, c.eofType());
+
+		// swapping states, characters past those with actions, and a state
+		// without a wildcard
+		actions.add(LexerAction.swap(Utils.set("inside"), "[", null, "bracket"));
+		actions.add(LexerAction.leave(Utils.set("bracket"), "]", null));
+		actions.add(LexerAction.lexToken("bracket", "\u00e9", a));
+		lexer = new CharLexerGenerator().generate(c, actions).lexer();
+		tokens = Utils.toList(lexer.lex(new StringReader("\u4e2d(a[\u00e9\u4e2db]\u00e9")));
+		types = new SymbolType[] { any, any, a, c.unrecognizedType(), c.unrecognizedType(), any, c.eofType() };
+		Utils.check(tokens.size() == types.length);
+		for (i = 0; i < types.length; i++)
+			Utils.check(tokens.get(i).type().equals(types[i]), i + ": " + tokens.get(i).type() + " != " + types[i]);
+		Utils.check(tokens.get(0).text().equals("\u4e2d") && tokens.get(2).text().equals("\u00e9"));
+
+		// the text of a Latin-1 character matched by the wildcard is cached
+		tokens = Utils.toList(lexer.lex(new StringReader("X\u00ffX\u00ff")));
+		Utils.check(tokens.get(0).text() == tokens.get(2).text() && tokens.get(1).text() == tokens.get(3).text()
+				&& tokens.get(1).text().equals("\u00ff"), "Wildcard texts should be cached!");
 	}
 
 	private static void lexerLineNumberAndPositionTest(Lexer lexer, String text, SymbolType eofType) {
@@ -147,26 +191,84 @@ public class LexTests {
 		auto = createSimpleNfa("a?");
 		checkNfa(auto, 6, 6, 5);
 
+		// a set is a single edge on the union of its characters
 		auto = createSimpleNfa("[abc]");
-		checkNfa(auto, 4, 5, 2);
+		checkNfa(auto, 3, 2, 1);
 
 		auto = createSimpleNfa("[a-z]");
-		checkNfa(auto, 4, 3, 2);
+		checkNfa(auto, 3, 2, 1);
 
 		auto = createSimpleNfa("[^a]");
-		checkNfa(auto, 4, 4, 2);
+		checkNfa(auto, 3, 2, 1);
 
 		auto = createSimpleNfa("[^a\\?]");
-		checkNfa(auto, 4, 5, 2);
+		checkNfa(auto, 3, 2, 1);
 
 		// should create an nfa with an unreachable state
 		auto = createSimpleNfa("[]");
-		checkNfa(auto, 4, 2, 2);
+		checkNfa(auto, 3, 1, 1);
 
 		auto = createSimpleNfa("\\n");
 		checkNfa(auto, 3, 2, 1);
 	}
 
+	public static void compiledRegexTest() {
+		CompiledRegex number = Regex.compile("[0-9]+");
+		Utils.check(number.matches("123") && !number.matches("12a") && !number.matches(""));
+		Utils.check(number.lookingAt("12a") && !number.lookingAt("a12"));
+		Utils.check(number.find("ab 12 c345").toString().equals("[3, 5)"));
+		Utils.check(number.find("ab 12 c345", 5).toString().equals("[7, 10)"));
+		Utils.check(number.find("abc") == null);
+		Utils.check(number.findAll("ab 12 c345").toString().equals("[[3, 5), [7, 10)]"));
+		char[] chars = "1a23b4".toCharArray();
+		Utils.check(number.findAll(chars, 1, 4).toString().equals("[[2, 4)]"));
+		Utils.check(number.matches(chars, 2, 4) && number.lookingAt(chars, 2, 5) && !number.lookingAt(chars, 1, 4));
+
+		// matches are leftmost-longest
+		Utils.check(Regex.compile("a|ab").find("xabab").toString().equals("[1, 3)"));
+		Utils.check(Regex.compile("(a|b)*abb").findAll("babbabb").toString().equals("[[0, 7)]"));
+
+		// empty matches
+		Utils.check(Regex.compile("a*").findAll("baa").toString().equals("[[0, 0), [1, 3), [3, 3)]"));
+		Utils.check(Regex.compile("").findAll("ab").size() == 3);
+
+		// no backtracking
+		StringBuilder as = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			as.append('a');
+		}
+		CompiledRegex pathological = Regex.compile("(a|a)*b");
+		Utils.check(!pathological.matches(as) && pathological.find(as) == null);
+		Utils.check(pathological.find(as.append('b')).toString().equals("[0, 1001)"));
+
+		// every 'a' is a match, but each scan also reads to the end of the
+		// input looking for a 'b'. The failure memo stops each scan after a
+		// character, where re-reading every time would take quadratic time
+		int count = 100000;
+		as.setLength(0);
+		for (int i = 0; i < count; i++) {
+			as.append('a');
+		}
+		long startTime = System.nanoTime();
+		List<CompiledRegex.Match> matches = Regex.compile("(a)|(a*b)").findAll(as);
+		Utils.check(matches.size() == count && matches.get(count - 1).toString().equals("[" + (count - 1) + ", " + count
+				+ ")"), "Bad matches!");
+		Utils.check(Regex.compile("a|((a|b)*c)").find(as.append("b"), 1).toString().equals("[1, 2)"));
+
+		// finding successive matches only reads up to the end of each one
+		StringBuilder numbers = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			numbers.append(i % 10).append(' ');
+		}
+		int found = 0;
+		for (CompiledRegex.Match match = number.find(numbers); match != null; match = number.find(numbers,
+				match.end())) {
+			found++;
+		}
+		Utils.check(found == count, "Bad match count!");
+		Utils.check(System.nanoTime() - startTime < 5000000000L, "Finding matches took quadratic time!");
+	}
+
 	public static void regexEscapeTest() {
 		String[] inputs = new String[] { "abc", "a*b", "*?[]ab()\\n\n", "^^" }, outputs = new String[] { "abc",
 				"a\\*b", "\\*\\?\\[\\]ab\\(\\)\\\\n\n", "\\^\\^" };
@@ -189,6 +291,11 @@ public class LexTests {
 
 	private static void checkNfa(FiniteAutomaton<SymbolType, Character> automaton, int expectedStateCount,
 			int expectedEdgeCount, int expectedEpsilonEdgeCount) {
+		checkNfa(automaton, expectedStateCount, expectedEdgeCount, expectedEpsilonEdgeCount, 1);
+	}
+
+	private static void checkNfa(FiniteAutomaton<SymbolType, Character> automaton, int expectedStateCount,
+			int expectedEdgeCount, int expectedEpsilonEdgeCount, int expectedAcceptCount) {
 		Set<State<SymbolType>> stateCollection = automaton.states();
 		Set<Edge<SymbolType, Character>> edgeCollection = automaton.edges();
 
@@ -211,10 +318,153 @@ public class LexTests {
 				acceptCount++;
 			}
 		}
-		Utils.check(acceptCount == 1, "Bad accept count!");
+		Utils.check(acceptCount == expectedAcceptCount, "Bad accept count!");
+	}
+
+	private static FiniteAutomaton<SymbolType, Character> createGlushkovNfa(String regex) {
+		Symbol parseTree = Regex.canonicalize(Regex.parse(regex).parseTree());
+		FiniteAutomaton.Builder<SymbolType, Character> builder = FiniteAutomaton
+				.<SymbolType, Character> builder(Characters.setOperations());
+
+		Regex.buildGlushkovNfaFor(builder, CREATE_SIMPLE_NFA_SYMBOL_TYPE, parseTree);
+		return builder.toFiniteAutomaton();
+	}
+
+	public static void glushkovNfaTest() {
+		// one state per position plus the start state, and no epsilon edges
+		checkNfa(createGlushkovNfa("a"), 2, 1, 0, 1);
+		checkNfa(createGlushkovNfa(""), 1, 0, 0, 1);
+		checkNfa(createGlushkovNfa("a|b"), 3, 2, 0, 2);
+		checkNfa(createGlushkovNfa("ab"), 3, 2, 0, 1);
+		checkNfa(createGlushkovNfa("a*"), 2, 2, 0, 2);
+		checkNfa(createGlushkovNfa("a+"), 2, 2, 0, 1);
+		checkNfa(createGlushkovNfa("a?"), 2, 1, 0, 2);
+		checkNfa(createGlushkovNfa("[^a\\?]"), 2, 1, 0, 1);
+		checkNfa(createGlushkovNfa("[]"), 1, 0, 0, 0);
+		checkNfa(createGlushkovNfa("(a|b)*abb"), 6, 11, 0, 1);
+
+		// the DFAs match those built from the Thompson NFAs
+		for (String regex : new String[] { "a", "", "a?b*", "(a|b)*abb", "[a-c]+\\.[^x]?", "(ab|a)(bc|c)*" }) {
+			LinkedHashSet<SymbolType> values = Utils.set(CREATE_SIMPLE_NFA_SYMBOL_TYPE);
+			FiniteAutomaton<SymbolType, Character> expected = createSimpleNfa(regex).toDfa(values).minimize(), actual = createGlushkovNfa(
+					regex).toDfa(values).minimize();
+			Utils.check(expected.states().size() == actual.states().size(), "Bad DFA for " + regex);
+			Utils.check(expected.edges().size() == actual.edges().size(), "Bad DFA for " + regex);
+		}
+	}
+
+	/**
+	 * A generator which records the number of states in each DFA it builds
+	 */
+	private static class StateCountingGenerator extends RegexLexerGenerator {
+		private final List<Integer> stateCounts = new ArrayList<Integer>();
+
+		public StateCountingGenerator(RegexLexerGenerator.Construction construction, boolean minimize) {
+			super(construction, minimize, 1);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see compiler.lex.RegexLexerGenerator#buildAutomaton(compiler.automata.FiniteAutomaton,
+		 * java.util.LinkedHashMap, java.util.LinkedHashSet)
+		 */
+		@Override
+		protected CharAutomaton<LexerAction> buildAutomaton(FiniteAutomaton<LexerAction, Character> nfa,
+				LinkedHashMap<LexerAction, Symbol> regexParseTrees, LinkedHashSet<LexerAction> allActions) {
+			CharAutomaton<LexerAction> automaton = super.buildAutomaton(nfa, regexParseTrees, allActions);
+			this.stateCounts.add(((CharDfa<LexerAction>) automaton).stateCount());
+			return automaton;
+		}
+	}
+
+	private static String randomRegex(Random random, int depth) {
+		String[] atoms = { "a", "b", "c", "[ab]", "[^a]", "." };
+		if (depth == 0 || random.nextInt(3) == 0) {
+			return atoms[random.nextInt(atoms.length)];
+		}
+		switch (random.nextInt(5)) {
+		case 0:
+			return randomRegex(random, depth - 1) + randomRegex(random, depth - 1);
+		case 1:
+			return "(" + randomRegex(random, depth - 1) + "|" + randomRegex(random, depth - 1) + ")";
+		case 2:
+			return "(" + randomRegex(random, depth - 1) + ")*";
+		case 3:
+			return "(" + randomRegex(random, depth - 1) + ")+";
+		default:
+			return "(" + randomRegex(random, depth - 1) + ")?";
+		}
+	}
+
+	public static void derivativesConstructionTest() {
+		// on random patterns, the derivative DFAs lex like the subset DFAs and
+		// minimize to the same DFAs. Before minimization neither construction
+		// always builds fewer states, but the derivative DFAs are smaller
+		// overall
+		Context c = new Context();
+		Random random = new Random(6);
+		StateCountingGenerator subset = new StateCountingGenerator(RegexLexerGenerator.Construction.Subset, false), derivatives = new StateCountingGenerator(
+				RegexLexerGenerator.Construction.Derivatives, false), minimalSubset = new StateCountingGenerator(
+				RegexLexerGenerator.Construction.Subset, true), minimalDerivatives = new StateCountingGenerator(
+				RegexLexerGenerator.Construction.Derivatives, true);
+		for (int i = 0; i < 200; i++) {
+			// the trailing atom keeps the patterns from matching ""
+			Set<String> patterns = new LinkedHashSet<String>();
+			for (int j = random.nextInt(4); j >= 0; j--) {
+				patterns.add(randomRegex(random, 4) + randomRegex(random, 0));
+			}
+			LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+			for (String pattern : patterns) {
+				actions.add(LexerAction.lexToken(pattern, c.getTerminalSymbolType("T" + actions.size())));
+			}
+			Lexer expected = subset.generate(c, actions).lexer(), actual = derivatives.generate(c, actions).lexer();
+			minimalSubset.generate(c, actions);
+			minimalDerivatives.generate(c, actions);
+			Utils.check(minimalSubset.stateCounts.get(i).equals(minimalDerivatives.stateCounts.get(i)),
+					"Different minimal DFAs for " + actions);
+
+			for (int j = 0; j < 10; j++) {
+				StringBuilder text = new StringBuilder();
+				for (int k = random.nextInt(40); k > 0; k--) {
+					text.append("abcd".charAt(random.nextInt(4)));
+				}
+				checkSameTokens(Utils.toList(expected.lex(new StringReader(text.toString()))),
+						Utils.toList(actual.lex(new StringReader(text.toString()))));
+			}
+		}
+		int subsetStates = 0, derivativeStates = 0;
+		for (int i = 0; i < subset.stateCounts.size(); i++) {
+			subsetStates += subset.stateCounts.get(i);
+			derivativeStates += derivatives.stateCounts.get(i);
+		}
+		Utils.check(derivativeStates < subsetStates, "Too many derivative states!");
+
+		// (e|b)R and R|bR are the same derivative
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("((.)?b)*[ab]", c.getTerminalSymbolType("T0")));
+		actions.add(LexerAction.lexToken("(b(a)?c|b)[ab]", c.getTerminalSymbolType("T1")));
+		subset.generate(c, actions);
+		derivatives.generate(c, actions);
+		Utils.check(derivatives.stateCounts.get(derivatives.stateCounts.size() - 1) <= subset.stateCounts
+				.get(subset.stateCounts.size() - 1), "Too many derivative states!");
 	}
 
 	public static void regexLexerGeneratorTest() {
+		regexLexerGeneratorTest(new RegexLexerGenerator());
+		regexLexerGeneratorTest(new RegexLexerGenerator(false));
+		regexLexerGeneratorTest(new RegexLexerGenerator(true, 1));
+		regexLexerGeneratorTest(new RegexLexerGenerator(
+				RegexLexerGenerator.Construction.Derivatives, false, 1));
+		regexLexerGeneratorTest(new RegexLexerGenerator(
+				RegexLexerGenerator.Construction.Derivatives, true, 2));
+		regexLexerGeneratorTest(new LazyDfaLexerGenerator());
+		// a tiny cache makes the lexer flush and fall back to NFA simulation
+		regexLexerGeneratorTest(new LazyDfaLexerGenerator(2));
+		regexLexerGeneratorTest(new JavaLexerGenerator());
+	}
+
+	private static void regexLexerGeneratorTest(LexerGenerator generator) {
 		Context c = new Context();
 		SymbolType iff = c.getTerminalSymbolType("IF"), id = c.getTerminalSymbolType("ID"), num = c
 				.getTerminalSymbolType("INT"), real = c.getTerminalSymbolType("REAL"), mangled = c
@@ -242,7 +492,7 @@ public class LexTests {
 		// past "*/"
 		actions.add(LexerAction.lexToken(Collections.singleton(commentState), "([a-zA-Z0-9\n ]+)|.", commentText));
 
-		Lexer lexer = new RegexLexerGenerator().generate(c, actions).lexer();
+		Lexer lexer = generator.generate(c, actions).lexer();
 
 		checkLexer(lexer, "", new SymbolType[] { eof });
 		checkLexer(lexer, "iif123 iff 123", new SymbolType[] { id, id, num, eof });
@@ -266,6 +516,554 @@ public class LexTests {
 		checkLexer(lexer, "\r2\n", num, eof);
 		checkLexer(lexer, "/**/", eof);
 		checkLexer(lexer, "/**/if/**/", iff, eof);
+		checkLexer(lexer, "if/*a\nb \n*/a\n\nb/*\n*/", iff, commentText, id, id, commentText, eof);
+	}
+
+	public static void bitParallelAutomatonTest() {
+		String[] regexes = { "if", "[a-z][a-z0-9]*", "(a|b)*abb", "x?y*",
+				"[^a-c]+\\.", ".(ab)+", "[]" };
+		LinkedHashMap<String, Symbol> parseTrees = new LinkedHashMap<String, Symbol>();
+		FiniteAutomaton.Builder<String, Character> builder = FiniteAutomaton
+				.builder(Characters.setOperations());
+		State<String> start = builder.newState();
+		for (String regex : regexes) {
+			Symbol parseTree = Regex.canonicalize(Regex.parse(regex)
+					.parseTree());
+			parseTrees.put(regex, parseTree);
+			builder.createEdge(start,
+					Regex.buildNfaFor(builder, regex, parseTree));
+		}
+		CharDfa<String> dfa = CharDfa.compile(builder.toFiniteAutomaton()
+				.toDfa(new LinkedHashSet<String>(parseTrees.keySet())));
+		BitParallelAutomaton<String> bitParallel = BitParallelAutomaton
+				.create(parseTrees);
+		Utils.check(bitParallel.stateCount() == 17, "Bad state count!");
+
+		String[] inputs = { "", "if", "iff", "abb", "babbabb", "xyyy", "y",
+				"zz.", "a.", "zabab", "q.", "Z", "\u00ff\u00ff." };
+		for (String input : inputs) {
+			CharSimulator<String> expected = dfa.newSimulator(), actual = bitParallel
+					.newSimulator();
+			Utils.check(expected.simulatorState() == actual.simulatorState());
+			for (char ch : input.toCharArray()) {
+				Utils.check(expected.consume(ch) == actual.consume(ch),
+						"Bad simulator state on " + input);
+				Utils.check(expected.simulatorState() == SimulatorState.Error
+						|| Utils.equals(expected.currentValue(),
+								actual.currentValue()), "Bad value on "
+						+ input);
+			}
+			Utils.check(actual.reset() == expected.reset());
+		}
+
+		// too many positions
+		parseTrees.put("long", Regex.canonicalize(Regex.parse(
+				"abcdefghijklmnopqrstuvwxyzabcdefghijklmnopqrstuvwxyz").parseTree()));
+		Utils.check(BitParallelAutomaton.create(parseTrees) == null);
+	}
+
+	public static void maximalMunchTest() {
+		Context c = new Context();
+		SymbolType comment = c.getTerminalSymbolType("COMMENT"), slash = c.getTerminalSymbolType("/"), star = c
+				.getTerminalSymbolType("*"), eof = c.eofType();
+
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("/\\*([^\\*]|(\\*+[^\\*/]))*\\*+/", comment));
+		actions.add(LexerAction.lexToken("/", slash));
+		actions.add(LexerAction.lexToken("\\*", star));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, " "));
+
+		// a comment which is never terminated makes the lexer read to the end
+		// of the input from each "/". Since the scans all end up in the same state, the
+		// failure memo stops each scan after a few characters, where
+		// re-reading every time would take quadratic time
+		int count = 80000;
+		StringBuilder input = new StringBuilder();
+		SymbolType[] outputTypes = new SymbolType[2 * count + 1];
+		for (int i = 0; i < count; i++) {
+			input.append("/* ");
+			outputTypes[2 * i] = slash;
+			outputTypes[2 * i + 1] = star;
+		}
+		outputTypes[2 * count] = eof;
+
+		for (LexerGenerator generator : Arrays.<LexerGenerator> asList(new RegexLexerGenerator(),
+				new LazyDfaLexerGenerator(), new JavaLexerGenerator())) {
+			Lexer lexer = generator.generate(c, actions).lexer();
+			long startTime = System.nanoTime();
+			List<Symbol> output = Utils.toList(lexer instanceof CompiledLexer ? ((CompiledLexer) lexer).lex(input)
+					: lexer.lex(new StringReader(input.toString())));
+			Utils.check(System.nanoTime() - startTime < 5000000000L, "Lexing took quadratic time!");
+			Utils.check(output.size() == outputTypes.length, "Bad output length!");
+			for (int i = 0; i < output.size(); i++) {
+				Utils.check(output.get(i).type().equals(outputTypes[i]), "Bad output type at " + i);
+			}
+
+			// a scan which fails on the second "/" must not mark the state after
+			// the first one as failing where the comment starts
+			output = Utils.toList(generator.generate(c, actions).lexer().lex(new StringReader("//* x */")));
+			Utils.check(output.size() == 3 && output.get(0).type().equals(slash)
+					&& output.get(1).type().equals(comment), "Bad output after failed scan: " + output);
+		}
+	}
+
+	public static void lexerSerializationTest() throws IOException {
+		Context c = new Context();
+		SymbolType id = c.getTerminalSymbolType("ID"), num = c.getTerminalSymbolType("NUM"), text = c
+				.getTerminalSymbolType("TEXT"), ur = c.unrecognizedType(), eof = c.eofType();
+		String stringState = "STRING_STATE";
+
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("[a-z\u0100-\u0200]+", id));
+		actions.add(LexerAction.lexToken("[0-9]+", num));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, " "));
+		actions.add(LexerAction.enter(LexerAction.DEFAULT_SET, "\"", null, stringState));
+		actions.add(LexerAction.lexToken(Collections.singleton(stringState), "[^\"]+", text));
+		actions.add(LexerAction.leave(Collections.singleton(stringState), "\"", null));
+
+		RegexLexer lexer = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		lexer.save(bytes);
+		File file = File.createTempFile("lexer", ".bin");
+		try {
+			lexer.save(file);
+			for (Lexer loaded : Arrays.<Lexer> asList(RegexLexer.load(
+					new ByteArrayInputStream(bytes.toByteArray()), c, actions), RegexLexer.load(file, c, actions))) {
+				checkLexer(loaded, "ab 12\"x y\"\u0150?", id, num, text, id, ur, eof);
+				checkLexer(loaded, "", eof);
+			}
+		} finally {
+			file.delete();
+		}
+
+		// building on several threads numbers the states the same way as
+		// building on one, so the saved bytes are the same
+		for (RegexLexerGenerator.Construction construction : RegexLexerGenerator.Construction.values()) {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			((RegexLexer) new RegexLexerGenerator(construction, true, 1).generate(c, statefulActions(c)).lexer())
+					.save(expected);
+			// the second generator with the same parallelism reuses the pool
+			for (int i = 0; i < 2; i++) {
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				((RegexLexer) new RegexLexerGenerator(construction, true, 4).generate(c, statefulActions(c)).lexer())
+						.save(actual);
+				Utils.check(Arrays.equals(expected.toByteArray(), actual.toByteArray()),
+						"Parallel generation changed the lexer!");
+			}
+		}
+
+		// loading with different actions fails
+		LinkedHashSet<LexerAction> otherActions = new LinkedHashSet<LexerAction>(actions);
+		otherActions.add(LexerAction.lexToken("x", id));
+		try {
+			RegexLexer.load(new ByteArrayInputStream(bytes.toByteArray()), c, otherActions);
+			Utils.err("Should not have loaded!");
+		} catch (RuntimeException ex) {
+			Utils.check(ex.getMessage().contains("actions"));
+		}
+	}
+
+	/**
+	 * A lexer with nested comments and strings, whose tokens depend on the
+	 * lexer states
+	 */
+	private static RegexLexer statefulLexer(Context c) {
+		return (RegexLexer) new RegexLexerGenerator().generate(c, statefulActions(c)).lexer();
+	}
+
+	private static LinkedHashSet<LexerAction> statefulActions(Context c) {
+		SymbolType id = c.getTerminalSymbolType("ID"), num = c.getTerminalSymbolType("INT"), real = c
+				.getTerminalSymbolType("REAL"), commentText = c.getTerminalSymbolType("COMMENT"), string = c
+				.getTerminalSymbolType("STRING");
+		String commentState = "COMMENT_STATE", stringState = "STRING_STATE";
+
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("[a-z][a-z0-9]*", id));
+		actions.add(LexerAction.lexToken("[0-9]+", num));
+		// "1." needs lookahead to find that it isn't a REAL
+		actions.add(LexerAction.lexToken("[0-9]+\\.[0-9]+", real));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "[ \n]"));
+		actions.add(LexerAction.enter(Utils.set(Lexer.DEFAULT_STATE, commentState), "/\\*", null, commentState));
+		actions.add(LexerAction.leave(Collections.singleton(commentState), "\\*/", null));
+		actions.add(LexerAction.lexToken(Collections.singleton(commentState), "([a-z0-9\n ]+)|.", commentText));
+		actions.add(LexerAction.enter(LexerAction.DEFAULT_SET, "\"", null, stringState));
+		actions.add(LexerAction.lexToken(Collections.singleton(stringState), "[^\"]+", string));
+		actions.add(LexerAction.leave(Collections.singleton(stringState), "\"", null));
+		return actions;
+	}
+
+	public static void incrementalLexingTest() {
+		Context c = new Context();
+		String commentState = "COMMENT_STATE";
+		RegexLexer lexer = statefulLexer(c);
+
+		// random edits give the same tokens as lexing the edited text
+		String[] fragments = { "a", "b1", "1", ".", "2", " ", "\n", "/*", "*/", "\"", "x", "?" };
+		Random random = new Random(1);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append(fragments[random.nextInt(fragments.length)]);
+		}
+		LexedDocument document = lexer.lexDocument(text);
+		checkSameTokens(Utils.toList(lexer.lex(new StringReader(text.toString()))), document.tokens());
+		for (int i = 0; i < 300; i++) {
+			int offset = random.nextInt(document.text().length() + 1), deletedLength = Math.min(random.nextInt(5),
+					document.text().length() - offset);
+			StringBuilder inserted = new StringBuilder();
+			for (int j = random.nextInt(4); j > 0; j--) {
+				inserted.append(fragments[random.nextInt(fragments.length)]);
+			}
+			document = document.edit(offset, deletedLength, inserted);
+
+			LexedDocument expected = lexer.lexDocument(document.text());
+			checkSameTokens(expected.tokens(), document.tokens());
+			for (int j = 0; j < expected.tokens().size(); j++) {
+				Utils.check(expected.lexerStates(j).equals(document.lexerStates(j)), "Bad lexer states at " + j);
+			}
+		}
+
+		// editing all of a document works, too
+		document = document.edit(0, document.text().length(), "/* a");
+		checkSameTokens(lexer.lexDocument("/* a").tokens(), document.tokens());
+		Utils.check(document.lexerStates(1).equals(Arrays.asList(Lexer.DEFAULT_STATE, commentState)));
+		document = document.edit(0, 4, "");
+		Utils.check(document.tokens().size() == 1 && document.tokens().get(0).type() == c.eofType());
+
+		// chains of edits, including ones which change nothing and ones within
+		// tokens which needed lookahead, give the same tokens as lexing the
+		// edited text. Each edit relies on the reaches recorded by the last
+		SymbolType as = c.getTerminalSymbolType("A"), bs = c.getTerminalSymbolType("B");
+		LinkedHashSet<LexerAction> lookaheadActions = new LinkedHashSet<LexerAction>();
+		lookaheadActions.add(LexerAction.lexToken("a+", as));
+		lookaheadActions.add(LexerAction.lexToken("b+aa", bs));
+		RegexLexer lookaheadLexer = (RegexLexer) new RegexLexerGenerator().generate(c, lookaheadActions).lexer();
+		document = lookaheadLexer.lexDocument("abaa").edit(2, 0, "").edit(1, 1, "aa");
+		checkSameTokens(lookaheadLexer.lexDocument("aaaaa").tokens(), document.tokens());
+		String[] lookaheadFragments = { "a", "b", "aa", "bb", "\n", "" };
+		for (int i = 0; i < 500; i++) {
+			int offset = random.nextInt(document.text().length() + 1), deletedLength = Math.min(random.nextInt(3),
+					document.text().length() - offset);
+			String inserted = lookaheadFragments[random.nextInt(lookaheadFragments.length)];
+			document = document.edit(offset, deletedLength, inserted);
+			checkSameTokens(lookaheadLexer.lexDocument(document.text()).tokens(), document.tokens());
+		}
+
+		// EOF stays on the last character when an edit leaves nothing to read
+		SymbolType a = c.getTerminalSymbolType("a");
+		RegexLexer aLexer = (RegexLexer) new RegexLexerGenerator().generate(c, Utils.set(LexerAction.lexToken("a", a)))
+				.lexer();
+		document = aLexer.lexDocument("\n").edit(0, 0, "a").edit(2, 0, "");
+		checkSameTokens(aLexer.lexDocument("a\n").tokens(), document.tokens());
+		Symbol eof = document.tokens().get(document.tokens().size() - 1);
+		Utils.check(eof.line() == 1 && eof.position() == 2, "Bad EOF position " + eof.line() + ":" + eof.position());
+
+		// a small edit to a large document only re-lexes a few tokens
+		text.setLength(0);
+		for (int i = 0; i < 5000; i++) {
+			text.append("abc 123 /* x */ \"s t\"\n");
+		}
+		document = lexer.lexDocument(text);
+		int middle = text.length() / 2;
+		LexedDocument edited = document.edit(middle, 0, "9");
+		Utils.check(edited.relexedTokenCount() < 5, "Re-lexed " + edited.relexedTokenCount());
+		checkSameTokens(lexer.lexDocument(edited.text()).tokens(), edited.tokens());
+		// but opening a comment changes every token after it
+		edited = document.edit(middle, 0, "/*");
+		Utils.check(edited.relexedTokenCount() > document.tokens().size() / 3);
+
+		// a token which swaps lexer states started in the state it swapped
+		// out, and one which leaves started in the state it left
+		SymbolType lt = c.getTerminalSymbolType("<"), eq = c.getTerminalSymbolType("="), gt = c
+				.getTerminalSymbolType(">"), name = c.getTerminalSymbolType("NAME");
+		String tagState = "TAG", valueState = "VALUE";
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.enter(LexerAction.DEFAULT_SET, "<", lt, tagState));
+		actions.add(LexerAction.lexToken(tagState, "[a-z]+", name));
+		actions.add(LexerAction.swap(Collections.singleton(tagState), "=", eq, valueState));
+		actions.add(LexerAction.lexToken(valueState, "[0-9]+", name));
+		actions.add(LexerAction.leave(Collections.singleton(valueState), ">", gt));
+		lexer = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		document = lexer.lexDocument("<a=1><b=2>");
+		Utils.check(document.lexerStates(2).equals(Arrays.asList(Lexer.DEFAULT_STATE, tagState)));
+		Utils.check(document.lexerStates(3).equals(Arrays.asList(Lexer.DEFAULT_STATE, valueState)));
+		Utils.check(document.lexerStates(4).equals(Arrays.asList(Lexer.DEFAULT_STATE, valueState)));
+		Utils.check(document.lexerStates(5).equals(Arrays.asList(Lexer.DEFAULT_STATE)));
+		edited = document.edit(7, 1, "=3");
+		checkSameTokens(lexer.lexDocument(edited.text()).tokens(), edited.tokens());
+
+		// swapping replaces even the last lexer state on the stack
+		SymbolType x = c.getTerminalSymbolType("X"), y = c.getTerminalSymbolType("Y");
+		String otherState = "OTHER";
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.swap(LexerAction.DEFAULT_SET, "s", null, otherState));
+		actions.add(LexerAction.lexToken(otherState, "x", x));
+		actions.add(LexerAction.swap(Collections.singleton(otherState), "t", null, Lexer.DEFAULT_STATE));
+		actions.add(LexerAction.lexToken(Lexer.DEFAULT_STATE, "y", y));
+		for (LexerGenerator generator : Arrays.<LexerGenerator> asList(new RegexLexerGenerator(),
+				new LazyDfaLexerGenerator(), new CharLexerGenerator())) {
+			checkLexer(generator.generate(c, actions).lexer(), "ysxxtysx", y, x, x, y, x, c.eofType());
+		}
+		lexer = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		document = lexer.lexDocument("ysxxtysx");
+		Utils.check(document.lexerStates(0).equals(Arrays.asList(Lexer.DEFAULT_STATE)));
+		Utils.check(document.lexerStates(1).equals(Arrays.asList(otherState)));
+		Utils.check(document.lexerStates(3).equals(Arrays.asList(Lexer.DEFAULT_STATE)));
+		Utils.check(document.lexerStates(4).equals(Arrays.asList(otherState)));
+		edited = document.edit(2, 1, "txsx");
+		checkSameTokens(lexer.lexDocument(edited.text()).tokens(), edited.tokens());
+	}
+
+	public static void parallelLexingTest() {
+		RegexLexer lexer = statefulLexer(new Context());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			// chunks which start inside comments and strings are re-lexed
+			String[] fragments = { "a", "b1", "1", ".", "2", " ", "\n", "\n", "/*", "*/", "\"", "x", "?" };
+			Random random = new Random(2);
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < 20000; i++) {
+				text.append(fragments[random.nextInt(fragments.length)]);
+			}
+			List<Symbol> expected = Utils.toList(lexer.lex(text));
+			for (int chunkLength : new int[] { 1, 10, 1000, 100000 }) {
+				checkSameTokens(expected, lexer.lexParallel(text, pool, chunkLength));
+			}
+			checkSameTokens(expected, lexer.lexParallel(text, pool));
+
+			// a comment which is never closed makes every speculative chunk
+			// wrong
+			text.insert(0, "/*");
+			checkSameTokens(Utils.toList(lexer.lex(text)), lexer.lexParallel(text, pool, 100));
+
+			for (String small : new String[] { "", "\n", "\n\n", "a\n", "\na" }) {
+				checkSameTokens(Utils.toList(lexer.lex(small)), lexer.lexParallel(small, pool, 1));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static void javaLexerGeneratorTest() {
+		// the compiled lexer gives the same tokens as the interpreted one,
+		// across lexer states and unrecognized characters
+		Context c = new Context();
+		LinkedHashSet<LexerAction> actions = statefulActions(c);
+		RegexLexer expected = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		CompiledLexer lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		Utils.check(lexer.isCompiled(), "Should be compiled!");
+
+		String[] fragments = { "a", "b1", "1", ".", "2", " ", "\n", "/*", "*/", "\"", "x", "?", "\u00e9" };
+		Random random = new Random(3);
+		for (int i = 0; i < 50; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int j = random.nextInt(100); j > 0; j--) {
+				text.append(fragments[random.nextInt(fragments.length)]);
+			}
+			checkSameTokens(Utils.toList(expected.lex(text)), Utils.toList(lexer.lex(text)));
+		}
+		// an unclosed comment
+		checkSameTokens(Utils.toList(expected.lex("a /* b")), Utils.toList(lexer.lex("a /* b")));
+
+		// a swap out of the default lexer state
+		c = new Context();
+		SymbolType x = c.getTerminalSymbolType("X");
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.swap(LexerAction.DEFAULT_SET, "s", null, "OTHER"));
+		actions.add(LexerAction.lexToken("OTHER", "x", x));
+		actions.add(LexerAction.swap(Collections.singleton("OTHER"), "t", null, Lexer.DEFAULT_STATE));
+		expected = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		for (String text : new String[] { "sx", "sxxtsx", "xsx" }) {
+			checkSameTokens(Utils.toList(expected.lex(text)), Utils.toList(lexer.lex(text)));
+		}
+
+		// a skip matched at EOF which leaves characters to lex
+		c = new Context();
+		SymbolType b = c.getTerminalSymbolType("B");
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "a(bb)*"));
+		actions.add(LexerAction.lexToken("b", b));
+		expected = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		List<Symbol> tokens = Utils.toList(expected.lex("ab"));
+		Utils.check(tokens.size() == 2 && tokens.get(0).type().equals(b) && tokens.get(0).line() == 1
+				&& tokens.get(0).position() == 2 && tokens.get(1).type().equals(c.eofType())
+				&& tokens.get(1).line() == 1 && tokens.get(1).position() == 2, "Bad tokens " + tokens);
+		checkSameTokens(tokens, Utils.toList(lexer.lex("ab")));
+
+		c = new Context();
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "(aa)*a"));
+		expected = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		for (String text : new String[] { "baa", "aa", "aaaab", "a\naa" }) {
+			checkSameTokens(Utils.toList(expected.lex(text)), Utils.toList(lexer.lex(text)));
+		}
+
+		// patterns with characters which must be escaped in the source
+		c = new Context();
+		SymbolType id = c.getTerminalSymbolType("ID"), quoted = c.getTerminalSymbolType("QUOTED"), ur = c
+				.unrecognizedType(), eof = c.eofType();
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("[a-z\u00e0-\u00ff\u4e00-\u9fff]+", id));
+		actions.add(LexerAction.lexToken("\"[^\"\\\\\n]*\"", quoted));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "[ \t\r\n]"));
+		lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		checkLexer(lexer, "ab\u00e9 \u4e2d\"x\"\t\"\\\"\n\"\r\u00a7", id, id, quoted, ur, ur, ur, ur, ur, eof);
+
+		// lexing a reader streams it rather than reading it all first, so
+		// tokens can be taken from endless input
+		Iterator<Symbol> endless = lexer.lex(new Reader() {
+			@Override
+			public int read(char[] buffer, int offset, int length) {
+				for (int i = 0; i < length; i++) {
+					buffer[offset + i] = (offset + i) % 3 == 2 ? ' ' : 'a';
+				}
+				return length;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		Utils.check(endless.next().type().equals(id) && endless.next().type().equals(id), "Bad streamed tokens!");
+
+		// a DFA too large for the 64KB limit on a method is split across
+		// several, and moving between them keeps the match and the memo
+		c = new Context();
+		SymbolType keyword = c.getTerminalSymbolType("KEYWORD");
+		id = c.getTerminalSymbolType("ID");
+		List<String> keywords = new ArrayList<String>();
+		StringBuilder pattern = new StringBuilder();
+		random = new Random(5);
+		while (keywords.size() < 150) {
+			StringBuilder word = new StringBuilder();
+			for (int i = 2 + random.nextInt(8); i > 0; i--) {
+				word.append((char) ('a' + random.nextInt(26)));
+			}
+			if (!keywords.contains(word.toString())) {
+				keywords.add(word.toString());
+				pattern.append(pattern.length() == 0 ? "" : "|").append(word);
+			}
+		}
+		actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken(pattern.toString(), keyword));
+		actions.add(LexerAction.lexToken("[a-z]+", id));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, " "));
+		Utils.check(JavaLexerGenerator.generateSource(c, actions, null, "KeywordLexer").contains(" scan0_1("),
+				"The scan should be split!");
+		expected = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+		lexer = (CompiledLexer) new JavaLexerGenerator().generate(c, actions).lexer();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			String word = keywords.get(random.nextInt(keywords.size()));
+			switch (random.nextInt(4)) {
+			case 0:
+				text.append(word.substring(0, 1 + random.nextInt(word.length()))).append(' ');
+				break;
+			case 1:
+				text.append(word).append('?');
+				break;
+			default:
+				text.append(word).append(random.nextBoolean() ? " " : "");
+				break;
+			}
+		}
+		checkSameTokens(Utils.toList(expected.lex(text)), Utils.toList(lexer.lex(text)));
+
+		// the source can be generated into a package
+		String source = JavaLexerGenerator.generateSource(c, actions, "compiler.generated", "TestLexer");
+		Utils.check(source.startsWith("package compiler.generated;"), "Bad package!");
+		Utils.check(JavaLexerGenerator.compile("compiler.generated.TestLexer", source).getName()
+				.equals("compiler.generated.TestLexer"), "Bad class!");
+	}
+
+	public static void keywordSetTest() {
+		Context c = new Context();
+		SymbolType id = c.getTerminalSymbolType("ID"), iff = c.getTerminalSymbolType("IF"), in = c
+				.getTerminalSymbolType("IN"), cafe = c.getTerminalSymbolType("CAFE"), eof = c.eofType();
+
+		// every keyword is found, and nothing else is
+		Random random = new Random(4);
+		for (int size : new int[] { 0, 1, 2, 3, 10, 100, 1000 }) {
+			Map<String, SymbolType> keywords = new LinkedHashMap<String, SymbolType>();
+			while (keywords.size() < size) {
+				StringBuilder keyword = new StringBuilder();
+				for (int i = random.nextInt(8); i >= 0; i--) {
+					keyword.append((char) ('a' + random.nextInt(26)));
+				}
+				keywords.put(keyword.toString(), random.nextBoolean() ? iff : in);
+			}
+			KeywordSet set = KeywordSet.create(keywords);
+			for (Map.Entry<String, SymbolType> entry : keywords.entrySet()) {
+				Utils.check(set.get(entry.getKey()) == entry.getValue(), "Missing " + entry.getKey());
+				Utils.check(set.get("x" + entry.getKey() + "x", 1, entry.getKey().length() + 1) == entry.getValue());
+				Utils.check(keywords.containsKey(entry.getKey() + "z") || set.get(entry.getKey() + "z") == null);
+				Utils.check(keywords.containsKey("") || set.get("") == null);
+			}
+		}
+
+		// identifiers which are keywords are reclassified by every lexer
+		Map<String, SymbolType> keywords = new LinkedHashMap<String, SymbolType>();
+		keywords.put("if", iff);
+		keywords.put("in", in);
+		keywords.put("caf\u00e9", cafe);
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("[a-z\u00e0-\u00ff]+", id, keywords));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "[ \n]"));
+		String text = "if iff in\nca caf\u00e9 i caf\u00e9s in";
+		SymbolType[] types = { iff, id, in, id, cafe, id, id, in, eof };
+		for (LexerGenerator generator : new LexerGenerator[] { new RegexLexerGenerator(), new LazyDfaLexerGenerator(),
+				new JavaLexerGenerator() }) {
+			checkLexer(generator.generate(c, actions).lexer(), text, types);
+		}
+	}
+
+	public static void utf8LexerTest() {
+		Context c = new Context();
+		SymbolType id = c.getTerminalSymbolType("ID"), emoji = c.getTerminalSymbolType("EMOJI"), ur = c
+				.unrecognizedType(), eof = c.eofType();
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		actions.add(LexerAction.lexToken("[a-z\u00e0-\u00ff\u4e00-\u9fff]+", id));
+		actions.add(LexerAction.lexToken("\ud83d[\ude00-\ude4f]", emoji));
+		actions.add(LexerAction.skip(LexerAction.DEFAULT_SET, "[ \n]"));
+		RegexLexer lexer = (RegexLexer) new RegexLexerGenerator().generate(c, actions).lexer();
+
+		// well-formed input lexes just as the decoded text does
+		String text = "ab\u00e9 \u4e2d\u6587x\n\ud83d\ude00z\u00a7 \ud83d\ude01\n\u00e0";
+		checkLexer(lexer, text, id, id, emoji, id, ur, emoji, id, eof);
+		List<Symbol> tokens = Utils.toList(lexer.lex(text.getBytes(StandardCharsets.UTF_8)));
+		Utils.check(tokens.get(2).line() == 2 && tokens.get(2).position() == 1 && tokens.get(2).endPosition() == 2);
+		Utils.check(tokens.get(3).position() == 3 && tokens.get(4).text().equals("\u00a7"));
+
+		// but a supplementary character the lexer doesn't recognize is one
+		// token rather than two
+		tokens = Utils.toList(lexer.lex("a\ud83d\udea0b".getBytes(StandardCharsets.UTF_8)));
+		Utils.check(tokens.size() == 4 && tokens.get(1).type() == ur && tokens.get(1).text().equals("\ud83d\udea0"));
+		Utils.check(tokens.get(1).endPosition() == 3 && tokens.get(2).position() == 4);
+
+		// each maximal ill-formed subpart is one unrecognized token and
+		// counts as one character
+		byte[] bytes = { 'a', (byte) 0xC3, 'b', (byte) 0x80, (byte) 0xE4, (byte) 0xB8, 'c', (byte) 0xE0,
+				(byte) 0x80, (byte) 0xF0, (byte) 0x9F, (byte) 0x98, '\n', (byte) 0xFF, 'd' };
+		tokens = Utils.toList(lexer.lex(bytes));
+		SymbolType[] types = { id, ur, id, ur, ur, id, ur, ur, ur, ur, id, eof };
+		Utils.check(tokens.size() == types.length);
+		String decoded = new String(bytes, StandardCharsets.UTF_8);
+		List<Symbol> decodedTokens = Utils.toList(lexer.lex(decoded));
+		for (int i = 0; i < types.length; i++) {
+			Symbol token = tokens.get(i), decodedToken = decodedTokens.get(i);
+			Utils.check(token.type() == types[i], "Bad type at " + i);
+			// the decoded text has a U+FFFD for each unrecognized token
+			Utils.check(token.text().equals(decodedToken.text()) && token.line() == decodedToken.line()
+					&& token.position() == decodedToken.position(), "Bad token at " + i);
+		}
+
+		// lexing a slice of a buffer
+		ByteBuffer buffer = ByteBuffer.wrap("xx ab\u00e9 yy".getBytes(StandardCharsets.UTF_8));
+		buffer.position(3).limit(7);
+		tokens = Utils.toList(lexer.lex(buffer));
+		Utils.check(tokens.size() == 2 && tokens.get(0).text().equals("ab\u00e9") && buffer.position() == 3);
 	}
 
 	private static void checkLexer(Lexer lexer, String input, SymbolType... outputTypes) {
@@ -284,6 +1082,66 @@ public class LexTests {
 		for (Symbol s : output) {
 			Utils.check(input.contains(s.text()));
 		}
+
+		// the end line and position computed while lexing should agree with
+		// those computed from the text
+		for (Symbol s : output) {
+			Symbol copy = s.type().createSymbol(s.text(), s.line(), s.position());
+			Utils.check(s.endLine() == copy.endLine() && s.endPosition() == copy.endPosition(), "Bad end of " + s);
+		}
+
+		// lexing the text directly, or from a file, gives the same tokens as
+		// lexing a reader
+		if (lexer instanceof RegexLexer) {
+			List<Symbol> sourceOutput = Utils.toList(((RegexLexer) lexer).lex(input));
+			checkSameTokens(output, sourceOutput);
+			for (Symbol s : sourceOutput) {
+				Utils.check(!(s instanceof SourceToken) || ((SourceToken) s).source() == input);
+			}
+
+			try {
+				Path file = Files.createTempFile("lex", ".txt");
+				try {
+					Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+					checkSameTokens(output, Utils.toList(((RegexLexer) lexer).lex(file)));
+				} finally {
+					Files.delete(file);
+				}
+			} catch (IOException ex) {
+				throw Utils.err(ex);
+			}
+
+			if (((RegexLexer) lexer).canLexBytes()) {
+				checkSameTokens(output, Utils.toList(((RegexLexer) lexer).lex(input.getBytes(StandardCharsets.UTF_8))));
+			}
+
+			// so does lexing into a buffer, even one which already holds
+			// tokens
+			TokenBuffer buffer = new TokenBuffer();
+			((RegexLexer) lexer).lex(input + input, buffer);
+			((RegexLexer) lexer).lex(input, buffer);
+			checkSameTokens(output, buffer.asList());
+			for (int i = 0; i < buffer.size(); i++) {
+				Utils.check(buffer.typeWithId(buffer.typeId(i)) == output.get(i).type(), "Bad type id at " + i);
+				Utils.check(buffer.text(i).equals(output.get(i).text()), "Bad text at " + i);
+			}
+		}
+		if (lexer instanceof CompiledLexer) {
+			checkSameTokens(output, Utils.toList(((CompiledLexer) lexer).lex(input)));
+			TokenBuffer buffer = new TokenBuffer();
+			((CompiledLexer) lexer).lex(input, buffer);
+			checkSameTokens(output, buffer.asList());
+		}
+	}
+
+	private static void checkSameTokens(List<Symbol> expected, List<Symbol> actual) {
+		Utils.check(actual.size() == expected.size(), "Bad output length!");
+		for (int i = 0; i < expected.size(); i++) {
+			Symbol a = expected.get(i), b = actual.get(i);
+			Utils.check(a.type().equals(b.type()) && a.text().equals(b.text()) && a.line() == b.line()
+					&& a.position() == b.position() && a.endLine() == b.endLine()
+					&& a.endPosition() == b.endPosition(), "Bad token at " + i);
+		}
 	}
 
 	public static void readerTest() throws IOException {
@@ -327,6 +1185,37 @@ public class LexTests {
 				Arrays.hashCode(new char[] { '\n', '\n', 'b', 'c' }), 4, 0, 'd', -1, 3, 2, 'd', 3, -1, 3, 3, 1, -1 };
 		Utils.check(Arrays.asList(expected).equals(result));
 		r.close();
+
+		// a read which hits EOF returns the characters read so far
+		r = new LineNumberAndPositionBufferedReader(new StringReader("xyz"));
+		Utils.check(r.read(buf) == 3 && buf[2] == 'z');
+		Utils.check(r.read(buf) == -1 && r.read(buf, 0, 0) == 0);
+		r.close();
+
+		// lookahead past the mark much longer than the buffer
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			sb.append((char) ('a' + i % 26)).append(i % 1000 == 999 ? "\n" : "");
+		}
+		String text = sb.toString();
+		r = new LineNumberAndPositionBufferedReader(new StringReader(text));
+		r.uncheckedRead();
+		r.mark();
+		char[] all = new char[text.length()];
+		Utils.check(r.read(all, 1, all.length - 1) == all.length - 1);
+		Utils.check(r.offsetFromMark() == all.length - 1 && r.lineNumber() == 100);
+		r.reset();
+		Utils.check(r.lineNumber() == 1 && r.position() == 1);
+		for (int i = 1; i < text.length(); i++) {
+			Utils.check(r.uncheckedRead() == text.charAt(i) && all[i] == text.charAt(i));
+			if (i % 7777 == 0) {
+				r.mark();
+			}
+		}
+		Utils.check(r.uncheckedRead() == -1);
+		r.reset();
+		Utils.check(r.uncheckedRead() == text.charAt(7777 * (text.length() / 7777 - (text.length() % 7777 == 0 ? 1 : 0)) + 1));
+		r.close();
 	}
 
 	public static void main(String[] args) {
@@ -342,9 +1231,33 @@ public class LexTests {
 
 		regexNfaTest();
 
+		glushkovNfaTest();
+
 		regexEscapeTest();
 
+		compiledRegexTest();
+
 		regexLexerGeneratorTest();
+		derivativesConstructionTest();
+
+		bitParallelAutomatonTest();
+
+		maximalMunchTest();
+
+		utf8LexerTest();
+
+		javaLexerGeneratorTest();
+
+		keywordSetTest();
+
+		incrementalLexingTest();
+		parallelLexingTest();
+
+		try {
+			lexerSerializationTest();
+		} catch (IOException ex) {
+			Utils.err(ex);
+		}
 
 		System.out.println("All lex tests passed!");
 	}
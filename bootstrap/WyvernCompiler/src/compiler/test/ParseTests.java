@@ -62,14 +62,21 @@ public class ParseTests {
 					.getNonTerminalSymbolType("T"), V = c
 					.getNonTerminalSymbolType("V");
 	private static final Lexer lexer;
+	/**
+	 * Lexes the same tokens as lexer, into buffers
+	 */
+	private static final RegexLexer regexLexer;
 
 	static {
 		CharLexerGenerator clg = new CharLexerGenerator();
-		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>();
+		LinkedHashSet<LexerAction> actions = new LinkedHashSet<LexerAction>(), regexActions = new LinkedHashSet<LexerAction>();
 		for (SymbolType type : Utils.set(lp, rp, x, comma, plus, star, equals,
-				dash, num))
+				dash, num)) {
 			actions.add(LexerAction.lexToken(type.name(), type));
+			regexActions.add(LexerAction.lexToken(Regex.escape(type.name()), type));
+		}
 		lexer = clg.generate(c, actions).lexer();
+		regexLexer = (RegexLexer) new RegexLexerGenerator().generate(c, regexActions).lexer();
 	}
 
 	private static class LRResultInfo {
@@ -528,22 +535,53 @@ public class ParseTests {
 		}
 		
 		Parser parser = result.parser();
+		TokenBuffer buffer = new TokenBuffer();
 		for (String prog : programStrings.keySet()) {
 			boolean succeeded = false;
+			Symbol root = null;
 			try {
 				Parser.Result parserResult = parser.parse(lexer.lex(new StringReader(prog)));
 				succeeded = parserResult.parseTree() != null;
 				if (succeeded) {
-					Symbol root = parserResult.parseTree();
+					root = parserResult.parseTree();
 					Utils.check(prog.equals(root.text()));
 				}
 			} catch (Exception ex) {
 				succeeded = false;
 			}
 			Utils.check(succeeded == programStrings.get(prog), prog + " succeeded = " + succeeded);
+
+			// parsing buffered tokens gives the same result
+			Symbol bufferRoot = null;
+			regexLexer.lex(prog, buffer);
+			try {
+				bufferRoot = parser.parse(buffer).parseTree();
+			} catch (Exception ex) {
+				bufferRoot = null;
+			}
+			Utils.check((bufferRoot != null) == succeeded, prog + " succeeded on buffer = " + (bufferRoot != null));
+			if (succeeded) {
+				checkSameTree(root, bufferRoot);
+			}
 		}		
 	}
 
+	/**
+	 * Checks that the trees have the same types, and the same tokens
+	 */
+	public static void checkSameTree(Symbol expected, Symbol actual) {
+		Utils.check(expected.type().equals(actual.type()), "Bad type: " + actual.type());
+		if (expected.type().isTerminal()) {
+			Utils.check(expected.text().equals(actual.text()) && expected.line() == actual.line()
+					&& expected.position() == actual.position(), "Bad token: " + actual);
+		} else {
+			Utils.check(expected.children().size() == actual.children().size(), "Bad child count for " + actual.type());
+			for (int i = 0; i < expected.children().size(); i++) {
+				checkSameTree(expected.children().get(i), actual.children().get(i));
+			}
+		}
+	}
+
 	/**
 	 * @param args
 	 */
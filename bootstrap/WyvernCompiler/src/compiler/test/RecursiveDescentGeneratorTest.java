@@ -18,7 +18,9 @@ import compiler.canonicalize.AutoGeneratedSymbolTypeCanonicalizer;
 import compiler.lex.Lexer;
 import compiler.lex.LexerAction;
 import compiler.lex.Regex;
+import compiler.lex.RegexLexer;
 import compiler.lex.RegexLexerGenerator;
+import compiler.lex.TokenBuffer;
 import compiler.parse.Grammar;
 import compiler.parse.Parser;
 import compiler.parse.ParserGenerator;
@@ -104,6 +106,11 @@ public class RecursiveDescentGeneratorTest {
 		Utils.check(result.parseTree().text().equals(text), "reconstruction failed for " + text + " was: "
 				+ result.parseTree().text());
 
+		// parsing buffered tokens gives the same tree
+		TokenBuffer buffer = new TokenBuffer();
+		((RegexLexer) lexer).lex(text, buffer);
+		ParseTests.checkSameTree(result.parseTree(), parser.parse(buffer).parseTree());
+
 		// precedence check
 		Symbol canonicalParseTree = AutoGeneratedSymbolTypeCanonicalizer.canonicalize(result.parseTree());
 		new OperatorCheckVisitor().check(canonicalParseTree);
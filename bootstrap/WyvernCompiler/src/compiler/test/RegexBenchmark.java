@@ -0,0 +1,108 @@
+/**
+ * 
+ */
+package compiler.test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import compiler.Utils;
+import compiler.lex.CompiledRegex;
+import compiler.lex.Regex;
+
+/**
+ * Compares compiled regexes against java.util.regex on log-like input, and on
+ * a pattern which makes java.util.regex backtrack excessively
+ * 
+ * @author Michael
+ */
+public class RegexBenchmark {
+	private static final String[] LEVELS = { "INFO", "INFO", "INFO", "WARN",
+			"ERROR" };
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String log = buildLog(20000);
+		// each pattern finds the same matches under both engines
+		for (String pattern : new String[] { "[0-9]+ms", "(ERROR)|(WARN)",
+				"\\[worker\\-[0-9]+\\]", "user=[a-z]+[0-9]*" }) {
+			benchmarkFindAll(pattern, log);
+		}
+
+		// (x+x+)+y makes java.util.regex try every way of splitting the x's
+		// between the loops at every starting position
+		StringBuilder xs = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			xs.append('x');
+		}
+		String pathological = "(x+x+)+y";
+		CompiledRegex compiled = Regex.compile(pathological);
+		long start = System.nanoTime();
+		Utils.check(compiled.find(xs) == null);
+		long compiledTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		Utils.check(!Pattern.compile(pathological).matcher(xs).find());
+		long javaTime = System.nanoTime() - start;
+		print(pathological + " on " + xs.length() + " x's", 0, compiledTime,
+				javaTime);
+	}
+
+	private static void benchmarkFindAll(String pattern, String log) {
+		CompiledRegex compiled = Regex.compile(pattern);
+		Pattern java = Pattern.compile(pattern);
+
+		// warm up
+		int count = 0;
+		for (int i = 0; i < 5; i++) {
+			count = compiled.findAll(log).size();
+			Utils.check(count == javaFindAll(java, log), "Bad match count for "
+					+ pattern);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			compiled.findAll(log);
+		}
+		long compiledTime = (System.nanoTime() - start) / 10;
+		start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			javaFindAll(java, log);
+		}
+		long javaTime = (System.nanoTime() - start) / 10;
+		print(pattern, count, compiledTime, javaTime);
+	}
+
+	private static int javaFindAll(Pattern pattern, String input) {
+		int count = 0;
+		Matcher matcher = pattern.matcher(input);
+		while (matcher.find()) {
+			count++;
+		}
+		return count;
+	}
+
+	private static String buildLog(int lineCount) {
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lineCount; i++) {
+			sb.append(String.format(
+					"2013-05-%02d %02d:%02d:%02d %s [worker-%d] user=%s%d request %d took %dms\n",
+					1 + random.nextInt(28), random.nextInt(24),
+					random.nextInt(60), random.nextInt(60),
+					LEVELS[random.nextInt(LEVELS.length)], random.nextInt(16),
+					random.nextBoolean() ? "alice" : "bob", random.nextInt(100),
+					random.nextInt(100000), random.nextInt(1000)));
+		}
+		return sb.toString();
+	}
+
+	private static void print(String pattern, int count, long compiledTime,
+			long javaTime) {
+		System.out.println(String.format(
+				"%-30s %7d matches  compiled: %8.3fms  java.util.regex: %8.3fms",
+				pattern, count, compiledTime / 1e6, javaTime / 1e6));
+	}
+}
@@ -3,14 +3,21 @@
  */
 package compiler.test;
 
+import static compiler.wyvern.WyvernLexer.CONTEXTUAL_KEYWORDS;
+import static compiler.wyvern.WyvernLexer.IDENTIFIER;
+import static compiler.wyvern.WyvernLexer.IF;
 import static compiler.wyvern.WyvernLexer.INT;
+import static compiler.wyvern.WyvernLexer.KEYWORDS;
+import static compiler.wyvern.WyvernLexer.LPAREN;
 import static compiler.wyvern.WyvernLexer.LEXER;
 import static compiler.wyvern.WyvernLexer.MULTI_LINE_COMMENT;
+import static compiler.wyvern.WyvernLexer.OPERATORS;
 import static compiler.wyvern.WyvernLexer.SINGLE_LINE_COMMENT;
 import static compiler.wyvern.WyvernLexer.TEXT_LITERAL;
 import static compiler.wyvern.WyvernLexer.TYPE;
 
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +51,24 @@ public class WyvernLexerTests {
 		check("int /* a */ \"a\"", INT, MULTI_LINE_COMMENT, TEXT_LITERAL);
 	}
 	
+	public static void keywordTest() {
+		// words which are symbols are lexed as such, but only when they
+		// aren't part of a longer identifier
+		List<SymbolType> words = new ArrayList<SymbolType>();
+		words.addAll(OPERATORS);
+		words.addAll(KEYWORDS);
+		words.addAll(CONTEXTUAL_KEYWORDS);
+		for (SymbolType word : words) {
+			if (Character.isLetter(word.name().charAt(0))) {
+				check(word.name(), word);
+				check(word.name() + "1", IDENTIFIER);
+				check("a" + word.name(), IDENTIFIER);
+				check(word.name() + " " + word.name() + "(", word, word, LPAREN);
+			}
+		}
+		check("iff if f", IDENTIFIER, IF, IDENTIFIER);
+	}
+	
 	public static void stripCommentTest() {
 		List<Symbol> tokens = lex("// a \n type A { // ignore \n /* a method */ int a }");
 		Map<Symbol, Symbol> comments = new HashMap<Symbol, Symbol>();
@@ -91,6 +116,7 @@ public class WyvernLexerTests {
 		lexCommentTest();
 		lexTextLiteralTest();
 		miscLexTest();
+		keywordTest();
 		stripCommentTest();
 		
 		System.out.println("All Wyvern Lexer tests passed!");
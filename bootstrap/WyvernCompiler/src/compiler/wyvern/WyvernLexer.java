@@ -4,9 +4,12 @@
 package compiler.wyvern;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import compiler.Context;
@@ -25,6 +28,7 @@ import compiler.lex.RegexLexerGenerator;
 public class WyvernLexer {
 	public static final Context CONTEXT = new Context();
 	public static final Lexer LEXER;
+	private static final String IDENTIFIER_PATTERN = "[a-zA-Z][a-zA-Z0-9]*";
 
 	private static SymbolType token(String name) {
 		return CONTEXT.getTerminalSymbolType(name);
@@ -115,15 +119,36 @@ public class WyvernLexer {
 
 		LinkedHashSet<LexerAction> actions = Utils.set();
 		for (SymbolType simpleType : simpleTypes) {
-			actions.add(LexerAction.lexToken(Regex.escape(simpleType.name()), simpleType));
+			// words are lexed as keywords of identifiers
+			if (!simpleType.name().matches(IDENTIFIER_PATTERN)) {
+				actions.add(LexerAction.lexToken(Regex.escape(simpleType.name()), simpleType));
+			}
 		}
 
 		return actions;
 	}
 
+	/**
+	 * The symbol types which look like identifiers (e.g. if, and, get), by
+	 * name. Rather than the lexer's DFA matching each of them, the identifier
+	 * action reclassifies them (see LexerAction.lexToken(String, SymbolType,
+	 * Map))
+	 */
+	private static Map<String, SymbolType> getKeywords() {
+		Map<String, SymbolType> keywords = new LinkedHashMap<String, SymbolType>();
+		for (Set<SymbolType> types : Arrays.asList(OPERATORS, KEYWORDS, CONTEXTUAL_KEYWORDS)) {
+			for (SymbolType type : types) {
+				if (type.name().matches(IDENTIFIER_PATTERN)) {
+					keywords.put(type.name(), type);
+				}
+			}
+		}
+		return keywords;
+	}
+
 	private static LinkedHashSet<LexerAction> getRegexSymbolTypeActions() {
 		return Utils.set(LexerAction.lexToken("[\\+\\-]?[0-9]*\\.[0-9]+", NUM_LITERAL),
-				LexerAction.lexToken("[a-zA-Z][a-zA-Z0-9]*", IDENTIFIER), LexerAction.lexToken("[\\+\\-]?[0-9]+", INT_LITERAL));
+				LexerAction.lexToken(IDENTIFIER_PATTERN, IDENTIFIER, getKeywords()), LexerAction.lexToken("[\\+\\-]?[0-9]+", INT_LITERAL));
 	}
 
 	private static LinkedHashSet<LexerAction> getWhitespaceActions() {